@@ -30,4 +30,7 @@ public interface OmService extends java.rmi.Remote {
     public om.axis.qengine.ProcessReturn process(java.lang.String questionSession, java.lang.String[] names, java.lang.String[] values) throws java.rmi.RemoteException, om.axis.qengine.OmException;
     public java.lang.String getEngineInfo() throws java.rmi.RemoteException;
     public java.lang.String getQuestionMetadata(java.lang.String questionID, java.lang.String questionVersion, java.lang.String questionBaseURL) throws java.rmi.RemoteException, om.axis.qengine.OmException;
+    public int prefetch(java.lang.String[] questionIDs, java.lang.String[] questionVersions, java.lang.String questionBaseURL, boolean instantiate) throws java.rmi.RemoteException, om.axis.qengine.OmException;
+    public om.axis.qengine.StartReturn replay(java.lang.String questionID, java.lang.String questionVersion, java.lang.String questionBaseURL, java.lang.String[] initialParamNames, java.lang.String[] initialParamValues, java.lang.String[] cachedResources, int actionCount, java.lang.String[] actionSequence, java.lang.String[] names, java.lang.String[] values) throws java.rmi.RemoteException, om.axis.qengine.OmException;
+    public java.lang.String getQuestionsMetadata(java.lang.String[] questionIDs, java.lang.String[] questionVersions, java.lang.String questionBaseURL) throws java.rmi.RemoteException, om.axis.qengine.OmException;
 }
@@ -33,7 +33,7 @@ public class OmSoapBindingStub extends org.apache.axis.client.Stub implements om
     static org.apache.axis.description.OperationDesc [] _operations;
 
     static {
-        _operations = new org.apache.axis.description.OperationDesc[5];
+        _operations = new org.apache.axis.description.OperationDesc[8];
         _initOperationDesc1();
     }
 
@@ -133,6 +133,85 @@ public class OmSoapBindingStub extends org.apache.axis.client.Stub implements om
                      ));
         _operations[4] = oper;
 
+        oper = new org.apache.axis.description.OperationDesc();
+        oper.setName("prefetch");
+        param = new org.apache.axis.description.ParameterDesc(new javax.xml.namespace.QName("", "questionIDs"), org.apache.axis.description.ParameterDesc.IN, new javax.xml.namespace.QName("http://om.open.ac.uk/", "ArrayOf_soapenc_string"), java.lang.String[].class, false, false);
+        oper.addParameter(param);
+        param = new org.apache.axis.description.ParameterDesc(new javax.xml.namespace.QName("", "questionVersions"), org.apache.axis.description.ParameterDesc.IN, new javax.xml.namespace.QName("http://om.open.ac.uk/", "ArrayOf_soapenc_string"), java.lang.String[].class, false, false);
+        oper.addParameter(param);
+        param = new org.apache.axis.description.ParameterDesc(new javax.xml.namespace.QName("", "questionBaseURL"), org.apache.axis.description.ParameterDesc.IN, new javax.xml.namespace.QName("http://schemas.xmlsoap.org/soap/encoding/", "string"), java.lang.String.class, false, false);
+        oper.addParameter(param);
+        param = new org.apache.axis.description.ParameterDesc(new javax.xml.namespace.QName("", "instantiate"), org.apache.axis.description.ParameterDesc.IN, new javax.xml.namespace.QName("http://www.w3.org/2001/XMLSchema", "boolean"), boolean.class, false, false);
+        oper.addParameter(param);
+        oper.setReturnType(new javax.xml.namespace.QName("http://www.w3.org/2001/XMLSchema", "int"));
+        oper.setReturnClass(int.class);
+        oper.setReturnQName(new javax.xml.namespace.QName("", "prefetchReturn"));
+        oper.setStyle(org.apache.axis.constants.Style.RPC);
+        oper.setUse(org.apache.axis.constants.Use.ENCODED);
+        oper.addFault(new org.apache.axis.description.FaultDesc(
+                      new javax.xml.namespace.QName("http://om.open.ac.uk/", "fault"),
+                      "om.axis.qengine.OmException",
+                      new javax.xml.namespace.QName("http://om.open.ac.uk/", "OmException"), 
+                      true
+                     ));
+        _operations[5] = oper;
+
+        oper = new org.apache.axis.description.OperationDesc();
+        oper.setName("replay");
+        param = new org.apache.axis.description.ParameterDesc(new javax.xml.namespace.QName("", "questionID"), org.apache.axis.description.ParameterDesc.IN, new javax.xml.namespace.QName("http://schemas.xmlsoap.org/soap/encoding/", "string"), java.lang.String.class, false, false);
+        oper.addParameter(param);
+        param = new org.apache.axis.description.ParameterDesc(new javax.xml.namespace.QName("", "questionVersion"), org.apache.axis.description.ParameterDesc.IN, new javax.xml.namespace.QName("http://schemas.xmlsoap.org/soap/encoding/", "string"), java.lang.String.class, false, false);
+        oper.addParameter(param);
+        param = new org.apache.axis.description.ParameterDesc(new javax.xml.namespace.QName("", "questionBaseURL"), org.apache.axis.description.ParameterDesc.IN, new javax.xml.namespace.QName("http://schemas.xmlsoap.org/soap/encoding/", "string"), java.lang.String.class, false, false);
+        oper.addParameter(param);
+        param = new org.apache.axis.description.ParameterDesc(new javax.xml.namespace.QName("", "initialParamNames"), org.apache.axis.description.ParameterDesc.IN, new javax.xml.namespace.QName("http://om.open.ac.uk/", "ArrayOf_soapenc_string"), java.lang.String[].class, false, false);
+        oper.addParameter(param);
+        param = new org.apache.axis.description.ParameterDesc(new javax.xml.namespace.QName("", "initialParamValues"), org.apache.axis.description.ParameterDesc.IN, new javax.xml.namespace.QName("http://om.open.ac.uk/", "ArrayOf_soapenc_string"), java.lang.String[].class, false, false);
+        oper.addParameter(param);
+        param = new org.apache.axis.description.ParameterDesc(new javax.xml.namespace.QName("", "cachedResources"), org.apache.axis.description.ParameterDesc.IN, new javax.xml.namespace.QName("http://om.open.ac.uk/", "ArrayOf_soapenc_string"), java.lang.String[].class, false, false);
+        oper.addParameter(param);
+        param = new org.apache.axis.description.ParameterDesc(new javax.xml.namespace.QName("", "actionCount"), org.apache.axis.description.ParameterDesc.IN, new javax.xml.namespace.QName("http://www.w3.org/2001/XMLSchema", "int"), int.class, false, false);
+        oper.addParameter(param);
+        param = new org.apache.axis.description.ParameterDesc(new javax.xml.namespace.QName("", "actionSequence"), org.apache.axis.description.ParameterDesc.IN, new javax.xml.namespace.QName("http://om.open.ac.uk/", "ArrayOf_soapenc_string"), java.lang.String[].class, false, false);
+        oper.addParameter(param);
+        param = new org.apache.axis.description.ParameterDesc(new javax.xml.namespace.QName("", "names"), org.apache.axis.description.ParameterDesc.IN, new javax.xml.namespace.QName("http://om.open.ac.uk/", "ArrayOf_soapenc_string"), java.lang.String[].class, false, false);
+        oper.addParameter(param);
+        param = new org.apache.axis.description.ParameterDesc(new javax.xml.namespace.QName("", "values"), org.apache.axis.description.ParameterDesc.IN, new javax.xml.namespace.QName("http://om.open.ac.uk/", "ArrayOf_soapenc_string"), java.lang.String[].class, false, false);
+        oper.addParameter(param);
+        oper.setReturnType(new javax.xml.namespace.QName("http://om.open.ac.uk/", "StartReturn"));
+        oper.setReturnClass(om.axis.qengine.StartReturn.class);
+        oper.setReturnQName(new javax.xml.namespace.QName("", "replayReturn"));
+        oper.setStyle(org.apache.axis.constants.Style.RPC);
+        oper.setUse(org.apache.axis.constants.Use.ENCODED);
+        oper.addFault(new org.apache.axis.description.FaultDesc(
+                      new javax.xml.namespace.QName("http://om.open.ac.uk/", "fault"),
+                      "om.axis.qengine.OmException",
+                      new javax.xml.namespace.QName("http://om.open.ac.uk/", "OmException"), 
+                      true
+                     ));
+        _operations[6] = oper;
+
+        oper = new org.apache.axis.description.OperationDesc();
+        oper.setName("getQuestionsMetadata");
+        param = new org.apache.axis.description.ParameterDesc(new javax.xml.namespace.QName("", "questionIDs"), org.apache.axis.description.ParameterDesc.IN, new javax.xml.namespace.QName("http://om.open.ac.uk/", "ArrayOf_soapenc_string"), java.lang.String[].class, false, false);
+        oper.addParameter(param);
+        param = new org.apache.axis.description.ParameterDesc(new javax.xml.namespace.QName("", "questionVersions"), org.apache.axis.description.ParameterDesc.IN, new javax.xml.namespace.QName("http://om.open.ac.uk/", "ArrayOf_soapenc_string"), java.lang.String[].class, false, false);
+        oper.addParameter(param);
+        param = new org.apache.axis.description.ParameterDesc(new javax.xml.namespace.QName("", "questionBaseURL"), org.apache.axis.description.ParameterDesc.IN, new javax.xml.namespace.QName("http://schemas.xmlsoap.org/soap/encoding/", "string"), java.lang.String.class, false, false);
+        oper.addParameter(param);
+        oper.setReturnType(new javax.xml.namespace.QName("http://schemas.xmlsoap.org/soap/encoding/", "string"));
+        oper.setReturnClass(java.lang.String.class);
+        oper.setReturnQName(new javax.xml.namespace.QName("", "getQuestionsMetadataReturn"));
+        oper.setStyle(org.apache.axis.constants.Style.RPC);
+        oper.setUse(org.apache.axis.constants.Use.ENCODED);
+        oper.addFault(new org.apache.axis.description.FaultDesc(
+                      new javax.xml.namespace.QName("http://om.open.ac.uk/", "fault"),
+                      "om.axis.qengine.OmException",
+                      new javax.xml.namespace.QName("http://om.open.ac.uk/", "OmException"), 
+                      true
+                     ));
+        _operations[7] = oper;
+
     }
 
     public OmSoapBindingStub() throws org.apache.axis.AxisFault {
@@ -496,4 +575,121 @@ public class OmSoapBindingStub extends org.apache.axis.client.Stub implements om
 }
     }
 
+    public int prefetch(java.lang.String[] questionIDs, java.lang.String[] questionVersions, java.lang.String questionBaseURL, boolean instantiate) throws java.rmi.RemoteException, om.axis.qengine.OmException {
+        if (super.cachedEndpoint == null) {
+            throw new org.apache.axis.NoEndPointException();
+        }
+        org.apache.axis.client.Call _call = createCall();
+        _call.setOperation(_operations[5]);
+        _call.setUseSOAPAction(true);
+        _call.setSOAPActionURI("");
+        _call.setSOAPVersion(org.apache.axis.soap.SOAPConstants.SOAP11_CONSTANTS);
+        _call.setOperationName(new javax.xml.namespace.QName("http://om.open.ac.uk/", "prefetch"));
+
+        setRequestHeaders(_call);
+        setAttachments(_call);
+ try {        java.lang.Object _resp = _call.invoke(new java.lang.Object[] {questionIDs, questionVersions, questionBaseURL, new java.lang.Boolean(instantiate)});
+
+        if (_resp instanceof java.rmi.RemoteException) {
+            throw (java.rmi.RemoteException)_resp;
+        }
+        else {
+            extractAttachments(_call);
+            try {
+                return ((java.lang.Integer) _resp).intValue();
+            } catch (java.lang.Exception _exception) {
+                return ((java.lang.Integer) org.apache.axis.utils.JavaUtils.convert(_resp, int.class)).intValue();
+            }
+        }
+  } catch (org.apache.axis.AxisFault axisFaultException) {
+    if (axisFaultException.detail != null) {
+        if (axisFaultException.detail instanceof java.rmi.RemoteException) {
+              throw (java.rmi.RemoteException) axisFaultException.detail;
+         }
+        if (axisFaultException.detail instanceof om.axis.qengine.OmException) {
+              throw (om.axis.qengine.OmException) axisFaultException.detail;
+         }
+   }
+  throw axisFaultException;
+}
+    }
+
+    public om.axis.qengine.StartReturn replay(java.lang.String questionID, java.lang.String questionVersion, java.lang.String questionBaseURL, java.lang.String[] initialParamNames, java.lang.String[] initialParamValues, java.lang.String[] cachedResources, int actionCount, java.lang.String[] actionSequence, java.lang.String[] names, java.lang.String[] values) throws java.rmi.RemoteException, om.axis.qengine.OmException {
+        if (super.cachedEndpoint == null) {
+            throw new org.apache.axis.NoEndPointException();
+        }
+        org.apache.axis.client.Call _call = createCall();
+        _call.setOperation(_operations[6]);
+        _call.setUseSOAPAction(true);
+        _call.setSOAPActionURI("");
+        _call.setSOAPVersion(org.apache.axis.soap.SOAPConstants.SOAP11_CONSTANTS);
+        _call.setOperationName(new javax.xml.namespace.QName("http://om.open.ac.uk/", "replay"));
+
+        setRequestHeaders(_call);
+        setAttachments(_call);
+ try {        java.lang.Object _resp = _call.invoke(new java.lang.Object[] {questionID, questionVersion, questionBaseURL, initialParamNames, initialParamValues, cachedResources, new java.lang.Integer(actionCount), actionSequence, names, values});
+
+        if (_resp instanceof java.rmi.RemoteException) {
+            throw (java.rmi.RemoteException)_resp;
+        }
+        else {
+            extractAttachments(_call);
+            try {
+                return (om.axis.qengine.StartReturn) _resp;
+            } catch (java.lang.Exception _exception) {
+                return (om.axis.qengine.StartReturn) org.apache.axis.utils.JavaUtils.convert(_resp, om.axis.qengine.StartReturn.class);
+            }
+        }
+  } catch (org.apache.axis.AxisFault axisFaultException) {
+    if (axisFaultException.detail != null) {
+        if (axisFaultException.detail instanceof java.rmi.RemoteException) {
+              throw (java.rmi.RemoteException) axisFaultException.detail;
+         }
+        if (axisFaultException.detail instanceof om.axis.qengine.OmException) {
+              throw (om.axis.qengine.OmException) axisFaultException.detail;
+         }
+   }
+  throw axisFaultException;
+}
+    }
+
+    public java.lang.String getQuestionsMetadata(java.lang.String[] questionIDs, java.lang.String[] questionVersions, java.lang.String questionBaseURL) throws java.rmi.RemoteException, om.axis.qengine.OmException {
+        if (super.cachedEndpoint == null) {
+            throw new org.apache.axis.NoEndPointException();
+        }
+        org.apache.axis.client.Call _call = createCall();
+        _call.setOperation(_operations[7]);
+        _call.setUseSOAPAction(true);
+        _call.setSOAPActionURI("");
+        _call.setSOAPVersion(org.apache.axis.soap.SOAPConstants.SOAP11_CONSTANTS);
+        _call.setOperationName(new javax.xml.namespace.QName("http://om.open.ac.uk/", "getQuestionsMetadata"));
+
+        setRequestHeaders(_call);
+        setAttachments(_call);
+ try {        java.lang.Object _resp = _call.invoke(new java.lang.Object[] {questionIDs, questionVersions, questionBaseURL});
+
+        if (_resp instanceof java.rmi.RemoteException) {
+            throw (java.rmi.RemoteException)_resp;
+        }
+        else {
+            extractAttachments(_call);
+            try {
+                return (java.lang.String) _resp;
+            } catch (java.lang.Exception _exception) {
+                return (java.lang.String) org.apache.axis.utils.JavaUtils.convert(_resp, java.lang.String.class);
+            }
+        }
+  } catch (org.apache.axis.AxisFault axisFaultException) {
+    if (axisFaultException.detail != null) {
+        if (axisFaultException.detail instanceof java.rmi.RemoteException) {
+              throw (java.rmi.RemoteException) axisFaultException.detail;
+         }
+        if (axisFaultException.detail instanceof om.axis.qengine.OmException) {
+              throw (om.axis.qengine.OmException) axisFaultException.detail;
+         }
+   }
+  throw axisFaultException;
+}
+    }
+
 }
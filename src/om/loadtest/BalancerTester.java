@@ -0,0 +1,235 @@
+/* OpenMark online assessment system
+   Copyright (C) 2007 The Open University
+
+   This program is free software; you can redistribute it and/or
+   modify it under the terms of the GNU General Public License
+   as published by the Free Software Foundation; either version 2
+   of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software
+   Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package om.loadtest;
+
+import java.net.URL;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.rpc.ServiceException;
+
+import util.misc.Strings;
+import util.servicebalancer.SelectionStrategy;
+import util.servicebalancer.ServiceBalancer;
+
+/**
+ * Compares the service balancer's selection strategies against a simulated
+ * pool of question engines. Each engine handles a limited number of requests
+ * at once (others wait inside the engine), so sending too much to one engine
+ * makes it slower. Half-way through each run, one engine becomes much
+ * slower, to show how quickly each strategy reacts.
+ */
+public class BalancerTester
+{
+	// Test configuration parameters
+	////////////////////////////////
+
+	/** Normal time (ms) an engine takes per request */
+	private final static int ENGINETIME=20;
+
+	/** Number of requests each engine works on at once */
+	private final static int ENGINEWORKERS=4;
+
+	/** Number of engines */
+	private final static int ENGINES=4;
+
+	/** Factor by which engine 0 slows down half-way through */
+	private final static int SLOWDOWN=5;
+
+	/** Number of client threads */
+	private final static int THREADS=24;
+
+	/** Length of each run (ms) */
+	private final static int DURATION=20000;
+
+	/** A simulated question engine */
+	private static class SimulatedEngine implements Remote
+	{
+		private Semaphore sWorkers=new Semaphore(ENGINEWORKERS,true);
+		private volatile int iTime=ENGINETIME;
+		private AtomicInteger[] aiRequests={new AtomicInteger(),new AtomicInteger()};
+		private Random r=new Random();
+
+		void handle(int iHalf) throws RemoteException
+		{
+			aiRequests[iHalf].incrementAndGet();
+			try
+			{
+				sWorkers.acquire();
+				try
+				{
+					// Times vary from half to one-and-a-half times the normal
+					double dRandom;
+					synchronized(r)
+					{
+						dRandom=r.nextDouble();
+					}
+					Thread.sleep((long)(iTime*(0.5+dRandom)));
+				}
+				finally
+				{
+					sWorkers.release();
+				}
+			}
+			catch(InterruptedException ie)
+			{
+				throw new RemoteException("Interrupted");
+			}
+		}
+	}
+
+	/** Balancer over simulated engines */
+	private static class SimulatedBalancer extends ServiceBalancer<SimulatedEngine>
+	{
+		/** Engines (no initialiser, as it is set during the superclass constructor) */
+		private List<SimulatedEngine> lEngines;
+
+		SimulatedBalancer(URL[] au) throws ServiceException
+		{
+			super(au,null,false);
+		}
+
+		@Override
+		protected SimulatedEngine createService(URL url)
+		{
+			if(lEngines==null) lEngines=new ArrayList<SimulatedEngine>();
+			SimulatedEngine se=new SimulatedEngine();
+			lEngines.add(se);
+			return se;
+		}
+
+		@Override
+		protected ServiceTask<Object> getCheckTask()
+		{
+			return null;
+		}
+
+		SimulatedEngine getEngine(int i)
+		{
+			return lEngines.get(i);
+		}
+
+		void request(final int iHalf) throws RemoteException
+		{
+			balanceServiceTask(null,new ServiceTask<Object>()
+			{
+				@Override
+				protected Object run(SimulatedEngine se) throws RemoteException
+				{
+					se.handle(iHalf);
+					return null;
+				}
+			});
+		}
+	}
+
+	/**
+	 * Run the test.
+	 * @param args Not used.
+	 */
+	public static void main(String[] args)
+	{
+		try
+		{
+			URL[] au=new URL[ENGINES];
+			for(int i=0;i<ENGINES;i++)
+			{
+				au[i]=new URL("http://engine"+i+"/");
+			}
+
+			System.out.println("Strategy\tRequests/s\tMean (ms)\tMedian\t95%\tMax\t"+
+				"Engine 0 share before/after slowdown");
+			for(int iStrategy=0;iStrategy<SelectionStrategy.NAMES.length;iStrategy++)
+			{
+				runStrategy(au,SelectionStrategy.NAMES[iStrategy]);
+			}
+		}
+		catch(Throwable t)
+		{
+			t.printStackTrace();
+		}
+	}
+
+	/**
+	 * Runs and reports on one strategy.
+	 * @param au Engine URLs (only used as names)
+	 * @param sStrategy Strategy name
+	 * @throws Exception Any error
+	 */
+	private static void runStrategy(URL[] au,String sStrategy) throws Exception
+	{
+		final SimulatedBalancer sb=new SimulatedBalancer(au);
+		sb.setStrategy(SelectionStrategy.create(sStrategy));
+		final TimeStatistics ts=new TimeStatistics();
+		final long lStart=System.currentTimeMillis();
+
+		Thread[] at=new Thread[THREADS];
+		for(int i=0;i<THREADS;i++)
+		{
+			at[i]=new Thread(new Runnable()
+			{
+				public void run()
+				{
+					try
+					{
+						while(true)
+						{
+							long lBefore=System.currentTimeMillis();
+							if(lBefore-lStart>=DURATION) break;
+							sb.request(lBefore-lStart<DURATION/2 ? 0 : 1);
+							ts.add(System.currentTimeMillis()-lBefore);
+						}
+					}
+					catch(RemoteException re)
+					{
+						re.printStackTrace();
+					}
+				}
+			});
+			at[i].start();
+		}
+		Thread.sleep(DURATION/2);
+		sb.getEngine(0).iTime=ENGINETIME*SLOWDOWN;
+		for(int i=0;i<THREADS;i++)
+		{
+			at[i].join();
+		}
+
+		int[] aiTotal=new int[2];
+		for(int iEngine=0;iEngine<ENGINES;iEngine++)
+		{
+			for(int iHalf=0;iHalf<2;iHalf++)
+			{
+				aiTotal[iHalf]+=sb.getEngine(iEngine).aiRequests[iHalf].get();
+			}
+		}
+		int[] aiMedians=ts.getMedians();
+		SimulatedEngine se0=sb.getEngine(0);
+		System.out.println(sStrategy+"\t"+
+			Strings.formatOneDecimal((aiTotal[0]+aiTotal[1])*1000.0/DURATION)+"\t"+
+			Strings.formatOneDecimal(ts.getMean())+"\t"+
+			aiMedians[10]+"\t"+aiMedians[19]+"\t"+aiMedians[20]+"\t"+
+			Strings.formatOneDecimal(se0.aiRequests[0].get()*100.0/aiTotal[0])+"% / "+
+			Strings.formatOneDecimal(se0.aiRequests[1].get()*100.0/aiTotal[1])+"%");
+	}
+}
@@ -110,7 +110,7 @@ public class QETester
 	private final static long TESTRSEED1=1121953794043L,TESTRSEED2=1122029257610L;
 
 	/** Steps from database, converted using process above */
-	private final static QuestionSteps[] QUESTIONSTEPS=
+	final static QuestionSteps[] QUESTIONSTEPS=
 	{
 		new QuestionSteps("samples.q1",1,1,TESTRSEED1,new Step[]{
 			new Step(1,"omact_gen_0","Submit"),
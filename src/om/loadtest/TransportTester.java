@@ -0,0 +1,189 @@
+/* OpenMark online assessment system
+   Copyright (C) 2007 The Open University
+
+   This program is free software; you can redistribute it and/or
+   modify it under the terms of the GNU General Public License
+   as published by the Free Software Foundation; either version 2
+   of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software
+   Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package om.loadtest;
+
+import java.net.URL;
+
+import om.axis.qengine.OmService;
+import om.axis.qengine.OmServiceServiceLocator;
+import om.tnavigator.BinaryOmService;
+
+import org.apache.axis.MessageContext;
+import org.apache.axis.client.Stub;
+
+import util.misc.NameValuePairs;
+import util.misc.Strings;
+
+/**
+ * Compares the SOAP and binary transports to a question engine, by running
+ * the sample questions from {@link QETester} through each and reporting
+ * payload sizes and call times.
+ */
+public class TransportTester
+{
+	// Test configuration parameters
+	////////////////////////////////
+
+	/** Question engine webapp URL (without /services/Om or /binary) */
+	private final static String ENGINEURL="http://localhost:8080/om-qe";
+
+	/** Question base URL passed to engine */
+	private final static String QUESTIONBASEURL="frog";
+
+	/** Range of questions from QETester.QUESTIONSTEPS to use (inclusive) */
+	private final static int QUESTIONMIN=0,QUESTIONMAX=4;
+
+	/** Number of measured iterations of each question per transport */
+	private final static int ITERATIONS=20;
+
+	/** Totals for one transport */
+	private static class Totals
+	{
+		String sName;
+		long lRequestBytes,lResponseBytes;
+		TimeStatistics tsStart=new TimeStatistics(),tsProcess=new TimeStatistics();
+
+		Totals(String sName)
+		{
+			this.sName=sName;
+		}
+	}
+
+	/**
+	 * Run the test.
+	 * @param args Not used.
+	 */
+	public static void main(String[] args)
+	{
+		try
+		{
+			OmService osSOAP=new OmServiceServiceLocator().getOm(
+				new URL(ENGINEURL+"/services/Om"));
+			BinaryOmService osBinary=new BinaryOmService(
+				new URL(ENGINEURL+BinaryOmService.PATH),30000);
+
+			// Warm up both paths (and load questions) before measuring
+			System.out.println("Initial question preload...");
+			Totals tIgnore=new Totals("");
+			for(int iQuestion=QUESTIONMIN;iQuestion<=QUESTIONMAX;iQuestion++)
+			{
+				doIteration(osSOAP,QETester.QUESTIONSTEPS[iQuestion],tIgnore);
+				doIteration(osBinary,QETester.QUESTIONSTEPS[iQuestion],tIgnore);
+			}
+
+			// Alternate transports so that neither benefits from running later
+			Totals tSOAP=new Totals("SOAP"),tBinary=new Totals("Binary");
+			for(int i=0;i<ITERATIONS;i++)
+			{
+				for(int iQuestion=QUESTIONMIN;iQuestion<=QUESTIONMAX;iQuestion++)
+				{
+					doIteration(osSOAP,QETester.QUESTIONSTEPS[iQuestion],tSOAP);
+					doIteration(osBinary,QETester.QUESTIONSTEPS[iQuestion],tBinary);
+				}
+			}
+
+			System.out.println("\nTransport\tRequest\tResponse\tStart mean (ms)\tProcess mean (ms)");
+			Totals[] at={tSOAP,tBinary};
+			for(int i=0;i<at.length;i++)
+			{
+				System.out.println(at[i].sName+"\t"+
+					Strings.formatBytes(at[i].lRequestBytes)+"\t"+
+					Strings.formatBytes(at[i].lResponseBytes)+"\t"+
+					Strings.formatOneDecimal(at[i].tsStart.getMean())+"\t"+
+					Strings.formatOneDecimal(at[i].tsProcess.getMean()));
+			}
+			System.out.println("\n\tMean\tMin\t5%\t10%\t15%\t20%\t25%\t30%\t35%\t40%\t45%\tMedian\t55%\t60%\t65%\t70%\t75%\t80%\t85%\t90%\t95%\tMax");
+			for(int i=0;i<at.length;i++)
+			{
+				System.out.println(at[i].sName+" start()\t"+at[i].tsStart);
+				System.out.println(at[i].sName+" process()\t"+at[i].tsProcess);
+			}
+		}
+		catch(Throwable t)
+		{
+			t.printStackTrace();
+		}
+	}
+
+	/**
+	 * Runs one question through to the end, adding to totals.
+	 * @param os Service
+	 * @param qs Question and steps
+	 * @param t Totals
+	 * @throws Exception Any error
+	 */
+	private static void doIteration(OmService os,QETester.QuestionSteps qs,Totals t)
+		throws Exception
+	{
+		NameValuePairs nvp=new NameValuePairs();
+		nvp.add("randomseed",""+(qs.lRSeed+1));
+		long lBefore=System.currentTimeMillis();
+		String sSession=os.start(qs.sID,qs.iMajor+"."+qs.iMinor,QUESTIONBASEURL,
+			nvp.getNames(),nvp.getValues(),null).getQuestionSession();
+		t.tsStart.add(System.currentTimeMillis()-lBefore);
+		addSizes(os,t);
+
+		for(int iSequence=1;;iSequence++)
+		{
+			nvp=new NameValuePairs();
+			boolean bFound=false;
+			for(int iStep=0;iStep<qs.asSteps.length;iStep++)
+			{
+				QETester.Step s=qs.asSteps[iStep];
+				if(s.iSeq==iSequence)
+				{
+					nvp.add(s.sName,s.sValue);
+					bFound=true;
+				}
+			}
+			if(!bFound)
+			{
+				os.stop(sSession);
+				addSizes(os,t);
+				break;
+			}
+
+			lBefore=System.currentTimeMillis();
+			boolean bEnd=os.process(sSession,nvp.getNames(),nvp.getValues()).isQuestionEnd();
+			t.tsProcess.add(System.currentTimeMillis()-lBefore);
+			addSizes(os,t);
+			if(bEnd) break;
+		}
+	}
+
+	/**
+	 * Adds the request and response sizes of the last call to totals.
+	 * @param os Service
+	 * @param t Totals
+	 * @throws Exception Any error
+	 */
+	private static void addSizes(OmService os,Totals t) throws Exception
+	{
+		if(os instanceof BinaryOmService)
+		{
+			t.lRequestBytes+=((BinaryOmService)os).getLastRequestSize();
+			t.lResponseBytes+=((BinaryOmService)os).getLastResponseSize();
+		}
+		else
+		{
+			MessageContext mc=((Stub)os)._getCall().getMessageContext();
+			t.lRequestBytes+=mc.getRequestMessage().getContentLength();
+			t.lResponseBytes+=mc.getResponseMessage().getContentLength();
+		}
+	}
+}
@@ -0,0 +1,227 @@
+/* OpenMark online assessment system
+   Copyright (C) 2007 The Open University
+
+   This program is free software; you can redistribute it and/or
+   modify it under the terms of the GNU General Public License
+   as published by the Free Software Foundation; either version 2
+   of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software
+   Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package om.qengine;
+
+import java.io.*;
+import java.net.URL;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.*;
+
+import om.question.*;
+import util.misc.BinaryMessage;
+import util.misc.IO;
+
+/**
+ * Servlet providing the question engine's methods over a compact binary
+ * protocol (see {@link BinaryMessage}) as an alternative to SOAP. Calls go to
+ * the same {@link OmService} instance that handles SOAP requests. Resources
+ * are sent as raw bytes rather than base64, and responses have a
+ * Content-Length so that connections can be kept alive.
+ */
+public class BinaryServlet extends HttpServlet
+{
+	private static final long serialVersionUID = 1030302749958465343L;
+
+	@Override
+	protected void doPost(HttpServletRequest request,HttpServletResponse response)
+		throws ServletException,IOException
+	{
+		ByteArrayOutputStream baos=new ByteArrayOutputStream();
+		DataOutputStream dos=new DataOutputStream(baos);
+		try
+		{
+			// Read the whole request first so that lengths in it are bounded by
+			// what was sent
+			DataInputStream dis=new DataInputStream(new ByteArrayInputStream(
+				BinaryMessage.readMessage(request.getInputStream(),request.getContentLength())));
+			BinaryMessage.readMagic(dis);
+			String sMethod=BinaryMessage.readString(dis);
+			OmService os=getService(request);
+
+			// Write result to a separate buffer so that errors part-way through
+			// don't leave half a result
+			ByteArrayOutputStream baosResult=new ByteArrayOutputStream();
+			DataOutputStream dosResult=new DataOutputStream(baosResult);
+			handle(os,sMethod,dis,dosResult);
+			dosResult.flush();
+
+			dos.writeInt(BinaryMessage.MAGIC);
+			dos.writeByte(BinaryMessage.STATUS_OK);
+			baosResult.writeTo(dos);
+		}
+		catch(Throwable t)
+		{
+			baos.reset();
+			dos=new DataOutputStream(baos);
+			dos.writeInt(BinaryMessage.MAGIC);
+			dos.writeByte(BinaryMessage.STATUS_ERROR);
+			BinaryMessage.writeString(dos,
+				t.getMessage()==null ? t.getClass().toString() : t.getMessage());
+		}
+		dos.flush();
+
+		response.setContentType(BinaryMessage.CONTENTTYPE);
+		response.setContentLength(baos.size());
+		OutputStream os=response.getOutputStream();
+		baos.writeTo(os);
+		os.close();
+	}
+
+	/**
+	 * Reads parameters for a method, calls it, and writes its return value.
+	 * @param os Service
+	 * @param sMethod Method name
+	 * @param dis Input positioned after method name
+	 * @param dos Output for return value
+	 * @throws Exception Any error
+	 */
+	private void handle(OmService os,String sMethod,DataInputStream dis,DataOutputStream dos)
+		throws Exception
+	{
+		if(sMethod.equals("start"))
+		{
+			writeStartReturn(dos,os.start(
+				BinaryMessage.readString(dis),BinaryMessage.readString(dis),
+				BinaryMessage.readString(dis),BinaryMessage.readStrings(dis),
+				BinaryMessage.readStrings(dis),BinaryMessage.readStrings(dis)));
+		}
+		else if(sMethod.equals("process"))
+		{
+			writeProcessReturn(dos,os.process(
+				BinaryMessage.readString(dis),BinaryMessage.readStrings(dis),
+				BinaryMessage.readStrings(dis)));
+		}
+		else if(sMethod.equals("stop"))
+		{
+			os.stop(BinaryMessage.readString(dis));
+		}
+		else if(sMethod.equals("getEngineInfo"))
+		{
+			BinaryMessage.writeString(dos,os.getEngineInfo());
+		}
+		else if(sMethod.equals("getQuestionMetadata"))
+		{
+			BinaryMessage.writeString(dos,os.getQuestionMetadata(
+				BinaryMessage.readString(dis),BinaryMessage.readString(dis),
+				BinaryMessage.readString(dis)));
+		}
+		else if(sMethod.equals("getQuestionsMetadata"))
+		{
+			BinaryMessage.writeString(dos,os.getQuestionsMetadata(
+				BinaryMessage.readStrings(dis),BinaryMessage.readStrings(dis),
+				BinaryMessage.readString(dis)));
+		}
+		else if(sMethod.equals("prefetch"))
+		{
+			dos.writeInt(os.prefetch(
+				BinaryMessage.readStrings(dis),BinaryMessage.readStrings(dis),
+				BinaryMessage.readString(dis),dis.readBoolean()));
+		}
+		else if(sMethod.equals("replay"))
+		{
+			writeStartReturn(dos,os.replay(
+				BinaryMessage.readString(dis),BinaryMessage.readString(dis),
+				BinaryMessage.readString(dis),BinaryMessage.readStrings(dis),
+				BinaryMessage.readStrings(dis),BinaryMessage.readStrings(dis),
+				dis.readInt(),BinaryMessage.readStrings(dis),
+				BinaryMessage.readStrings(dis),BinaryMessage.readStrings(dis)));
+		}
+		else
+		{
+			throw new IOException("Unknown method: "+sMethod);
+		}
+	}
+
+	private static void writeStartReturn(DataOutputStream dos,StartReturn sr) throws IOException
+	{
+		BinaryMessage.writeString(dos,sr.getQuestionSession());
+		BinaryMessage.writeString(dos,sr.getXHTML());
+		BinaryMessage.writeString(dos,sr.getCSS());
+		BinaryMessage.writeString(dos,sr.getProgressInfo());
+		writeResources(dos,sr.getResources());
+	}
+
+	private static void writeProcessReturn(DataOutputStream dos,ProcessReturn pr) throws IOException
+	{
+		dos.writeBoolean(pr.isQuestionEnd());
+		BinaryMessage.writeString(dos,pr.getXHTML());
+		BinaryMessage.writeString(dos,pr.getCSS());
+		BinaryMessage.writeString(dos,pr.getProgressInfo());
+		writeResources(dos,pr.getResources());
+
+		Results r=pr.getResults();
+		dos.writeBoolean(r!=null);
+		if(r==null) return;
+		BinaryMessage.writeString(dos,r.getQuestionLine());
+		BinaryMessage.writeString(dos,r.getAnswerLine());
+		BinaryMessage.writeString(dos,r.getActionSummary());
+		dos.writeInt(r.getAttempts());
+		Score[] as=r.getScores();
+		dos.writeInt(as.length);
+		for(int i=0;i<as.length;i++)
+		{
+			BinaryMessage.writeString(dos,as[i].getAxis());
+			dos.writeInt(as[i].getMarks());
+		}
+		CustomResult[] acr=r.getCustomResults();
+		dos.writeInt(acr.length);
+		for(int i=0;i<acr.length;i++)
+		{
+			BinaryMessage.writeString(dos,acr[i].getName());
+			BinaryMessage.writeString(dos,acr[i].getValue());
+		}
+	}
+
+	private static void writeResources(DataOutputStream dos,Resource[] ar) throws IOException
+	{
+		if(ar==null)
+		{
+			dos.writeInt(-1);
+			return;
+		}
+		dos.writeInt(ar.length);
+		for(int i=0;i<ar.length;i++)
+		{
+			BinaryMessage.writeString(dos,ar[i].getFilename());
+			BinaryMessage.writeString(dos,ar[i].getMimeType());
+			BinaryMessage.writeString(dos,ar[i].getEncoding());
+			BinaryMessage.writeBytes(dos,ar[i].getContent());
+		}
+	}
+
+	/**
+	 * Gets the service, making a SOAP request to create it if it hasn't been
+	 * created yet (as in {@link CheckServlet}).
+	 * @param request Request
+	 * @return Service
+	 * @throws IOException If the service can't be created
+	 */
+	private OmService getService(HttpServletRequest request) throws IOException
+	{
+		OmService os=OmService.getStatic();
+		if(os!=null) return os;
+
+		URL u=new URL(request.getRequestURL().toString().replaceAll(
+			"/binary$","/services/Om?method=getEngineInfo"));
+		IO.eat(u.openStream());
+		os=OmService.getStatic();
+		if(os==null) throw new IOException("Question engine service not available");
+		return os;
+	}
+}
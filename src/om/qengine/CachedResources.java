@@ -0,0 +1,72 @@
+/* OpenMark online assessment system
+   Copyright (C) 2007 The Open University
+
+   This program is free software; you can redistribute it and/or
+   modify it under the terms of the GNU General Public License
+   as published by the Free Software Foundation; either version 2
+   of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software
+   Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package om.qengine;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import om.question.Resource;
+import util.misc.ContentDigest;
+
+/**
+ * Resources that the test navigator already holds for a question session,
+ * from the cachedResources parameter of start (see {@link ContentDigest} for
+ * the format). Returned resources with the same filename and content are
+ * sent with null content, and the navigator uses its own copy.
+ */
+class CachedResources
+{
+	/** Map from filename to digest of content held by navigator */
+	private Map<String,String> mDigests=new HashMap<String,String>();
+
+	/**
+	 * @param asEntries Entries from the cachedResources parameter
+	 * @return Cached resources, or null if there are none (or none valid)
+	 */
+	static CachedResources create(String[] asEntries)
+	{
+		CachedResources cr=new CachedResources();
+		for(int i=0;i<asEntries.length;i++)
+		{
+			int iColon=asEntries[i].indexOf(':');
+			if(iColon<1 || iColon==asEntries[i].length()-1) continue;
+			cr.mDigests.put(asEntries[i].substring(iColon+1),asEntries[i].substring(0,iColon));
+		}
+		return cr.mDigests.isEmpty() ? null : cr;
+	}
+
+	/**
+	 * @param ar Resources about to be returned
+	 * @return Same resources, except those the navigator already holds have
+	 *   null content
+	 */
+	Resource[] omit(Resource[] ar)
+	{
+		Resource[] arResult=null;
+		for(int i=0;i<ar.length;i++)
+		{
+			String sDigest=mDigests.get(ar[i].getFilename());
+			if(sDigest==null || !sDigest.equals(ContentDigest.get(ar[i].getContent()))) continue;
+
+			if(arResult==null) arResult=ar.clone();
+			arResult[i]=new Resource(ar[i].getFilename(),ar[i].getMimeType(),
+				ar[i].getEncoding(),null);
+		}
+		return arResult==null ? ar : arResult;
+	}
+}
@@ -27,8 +27,13 @@ import javax.servlet.http.*;
 import om.OmVersion;
 import util.misc.IO;
 import util.misc.NameValuePairs;
+import util.misc.Profiler;
 
-/** Servlet just to provide the automated check page */
+/**
+ * Servlet to provide the automated check page. Also provides profiling
+ * statistics: /check?profile gives them as XML per question, and /metrics
+ * as plain-text metrics.
+ */
 public class CheckServlet extends HttpServlet
 {
 	private final static int MB=1024*1024;
@@ -38,6 +43,26 @@ public class CheckServlet extends HttpServlet
 	protected void doGet(HttpServletRequest request,HttpServletResponse response)
 		throws ServletException,IOException
 	{
+		// Profiling statistics
+		if(request.getServletPath().equals("/metrics"))
+		{
+			response.setContentType("text/plain");
+			response.setCharacterEncoding("UTF-8");
+			PrintWriter pw=response.getWriter();
+			pw.print(Profiler.getText("question"));
+			pw.close();
+			return;
+		}
+		if(request.getParameter("profile")!=null)
+		{
+			response.setContentType("text/xml");
+			response.setCharacterEncoding("UTF-8");
+			PrintWriter pw=response.getWriter();
+			pw.print(Profiler.getXML("question"));
+			pw.close();
+			return;
+		}
+
 		response.setContentType("text/plain");
 		response.setCharacterEncoding("UTF-8");
 		PrintWriter pw=response.getWriter();
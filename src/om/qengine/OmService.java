@@ -22,6 +22,9 @@ import java.io.File;
 import java.io.IOException;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.ServletContext;
 import javax.xml.rpc.ServiceException;
@@ -37,6 +40,7 @@ import org.w3c.dom.Element;
 
 import util.misc.*;
 import util.xml.XML;
+import util.xml.XMLException;
 
 /**
  * Question engine Web service. This contains all public methods of the
@@ -50,21 +54,63 @@ public class OmService implements ServiceLifecycle, QEngineConfig
 	/** Cache for Java question objects and jar files */
 	private QuestionCache qc;
 
-	/** All current question sessions (maps String -> QuestionSession) */
-	private Map<String, QuestionSession> mQuestionSessions=new HashMap<String, QuestionSession>();
+	/** All current question sessions */
+	private QuestionSessionRegistry qsr;
 
-	/** ID to use for next session */
-	private int iNextSessionID=1;
+	/** How often to check for timed-out sessions (ms) */
+	private long lSessionCheck=SESSIONTIMEOUTCHECK;
+
+	/** Question downloads in progress (maps question key -> download task) */
+	private ConcurrentHashMap<QuestionCache.QuestionKey, FutureTask<Object>> mDownloads=
+		new ConcurrentHashMap<QuestionCache.QuestionKey, FutureTask<Object>>();
+
+	/**
+	 * HTTP response header in which the question server may give the SHA-1
+	 * digest (hex) of a question jar
+	 */
+	public final static String QUESTIONDIGESTHEADER="X-OpenMark-SHA1";
+
+	/** Runs background work for prefetch requests */
+	private ThreadPoolExecutor tpePrefetch=new ThreadPoolExecutor(
+		PREFETCHTHREADS,PREFETCHTHREADS,60L,TimeUnit.SECONDS,
+		new LinkedBlockingQueue<Runnable>(PREFETCHQUEUE),new ThreadFactory()
+		{
+			public Thread newThread(Runnable r)
+			{
+				Thread t=new Thread(r,"Om question prefetch");
+				t.setDaemon(true);
+				t.setPriority(Thread.NORM_PRIORITY-1);
+				return t;
+			}
+		});
+
+	/** Number of threads warming up questions for prefetch requests */
+	private final static int PREFETCHTHREADS=2;
+
+	/** Maximum number of questions waiting to be warmed up */
+	private final static int PREFETCHQUEUE=1000;
 
 	/** Synch object used for thread */
 	private Object oThreadSynch=new Object();
 
-	/** How often to check for timed-out sessions */
-	private final static long SESSIONTIMEOUTCHECK=60L*60L*1000L;
+	/** Thread that expires sessions (see {@link #checkThread()}) */
+	private Thread tCheck;
+
+	/** Default for how often to check for timed-out sessions */
+	private final static long SESSIONTIMEOUTCHECK=5L*60L*1000L;
 
-	/** How long sessions are allowed to lie idle */
+	/** Default for how long sessions are allowed to lie idle */
 	private final static long SESSIONTIMEOUT=24L*60L*60L*1000L;
 
+	/** Default for how long sessions may lie idle before being hibernated */
+	private final static long SESSIONHIBERNATE=30L*60L*1000L;
+
+	/** Number of sessions currently hibernated */
+	private AtomicInteger aiHibernatedSessions=new AtomicInteger();
+
+	/** Number of times a hibernated session has been brought back */
+	private AtomicLong alWokenSessions=new AtomicLong();
+
 	/** Single instance (needed only for check method) */
 	private static OmService osSingleton=null;
 
@@ -75,13 +121,47 @@ public class OmService implements ServiceLifecycle, QEngineConfig
      * later by setConfiguration. */
     private Map<String, Object> configuration = new HashMap<String, Object>();
 
-    /** Information about a single question session */
-	private static class QuestionSession
+	/** Information about a single question session */
+	static class QuestionSession
 	{
 		String sSession;
+		/** Question; null while the session is hibernated */
 		Question q;
-		long lLastUsedTime;
+		volatile long lLastUsedTime;
 		boolean bInUse;
+
+		/** Details needed to rebuild the question after hibernation */
+		String sQuestionBaseURL;
+		QuestionCache.QuestionKey qk;
+		StartParams sp;
+		/** Actions so far (null if sessions aren't hibernated) */
+		List<ActionParams> lActions;
+
+		/** Resources the navigator already holds (null if none) */
+		CachedResources crCached;
+	}
+
+	/** Initial parameters a question session was started with */
+	private static class StartParams
+	{
+		long lRandomSeed;
+		String sFixedFG,sFixedBG;
+		double dZoom;
+		boolean bPlain;
+		int iFixedVariant;
+		int iAttempt;
+		String sNavigatorVersion;
+
+		/**
+		 * @param cl Class loader for the question's resources
+		 * @param config Engine configuration
+		 * @return Parameters for initialising the question
+		 */
+		InitParams getInitParams(ClassLoader cl,QEngineConfig config)
+		{
+			return new InitParams(lRandomSeed,sFixedFG,sFixedBG,dZoom,bPlain,cl,
+				iFixedVariant,config,iAttempt,sNavigatorVersion);
+		}
 	}
 
 	/**
@@ -120,7 +200,11 @@ public class OmService implements ServiceLifecycle, QEngineConfig
 	 * @param questionBaseURL Base URL for questions (see above)
 	 * @param initialParamNames Names of initial parameters
 	 * @param initialParamValues Values of initial parameters
-	 * @param cachedResources List of resources that the Test Navigator has cached
+	 * @param cachedResources List of resources that the Test Navigator has cached,
+	 *   each as the hex SHA-1 of the content, a colon, and the filename (see
+	 *   util.misc.ContentDigest). Any resource with the same filename and
+	 *   content, returned from this call or later process calls in the same
+	 *   session, is sent with null content. May be null or empty
 	 * @return Various data in order to provide the initial page of the question
 	 * @throws OmException Whenever something goes wrong
 	 */
@@ -129,6 +213,100 @@ public class OmService implements ServiceLifecycle, QEngineConfig
 		String[] initialParamNames,String[] initialParamValues,
 		String[] cachedResources)
 	  throws OmException
+	{
+		return startSession("start",questionID,questionVersion,questionBaseURL,
+			initialParamNames,initialParamValues,cachedResources,null);
+	}
+
+	/**
+	 * Creates a new question session and brings it to the state it was in
+	 * after a list of earlier actions, as when a user returns to a question
+	 * they had not finished. The actions are applied within the question
+	 * engine, so only the final state is returned rather than one response
+	 * per action.
+	 * <p>
+	 * The actions are given as parallel arrays of names and values, as for
+	 * {@link #process(String, String[], String[])}, with actionSequence
+	 * giving the number (1 to actionCount) of the action each pair belongs to.
+	 * Actions with no parameters are allowed. The question must not end
+	 * during the actions.
+	 * <p>
+	 * API METHOD: This method signature must not be changed in future (after
+	 * initial release) unless careful attention is paid to simultaneous changes
+	 * of Test Navigator. In general, if additional parameters or return values
+	 * are added, a new method should be defined.
+	 * @param questionID Unique ID of question
+	 * @param questionVersion Version identifier of question
+	 * @param questionBaseURL Base URL for questions
+	 * @param initialParamNames Names of initial parameters
+	 * @param initialParamValues Values of initial parameters
+	 * @param cachedResources List of resources that the Test Navigator has cached
+	 *   (as for start)
+	 * @param actionCount Number of actions to apply
+	 * @param actionSequence Number of the action for each name/value pair
+	 * @param names Names of action parameters
+	 * @param values Values of action parameters
+	 * @return Data for the question's current page. XHTML is from the last
+	 *   action; CSS and progress info are the latest set; resources include
+	 *   all those from the start and every action.
+	 * @throws OmException Whenever something goes wrong
+	 */
+	public StartReturn replay(
+		String questionID,String questionVersion,String questionBaseURL,
+		String[] initialParamNames,String[] initialParamValues,
+		String[] cachedResources,
+		int actionCount,String[] actionSequence,String[] names,String[] values)
+	  throws OmException
+	{
+		ActionParams[] aap;
+		try
+		{
+			if(actionSequence==null) actionSequence=new String[0];
+			if(names==null) names=new String[0];
+			if(values==null) values=new String[0];
+			if(actionSequence.length!=names.length || names.length!=values.length)
+				throw new OmException("actionSequence, names and values must be of same length");
+			aap=new ActionParams[actionCount];
+			for(int i=0;i<actionCount;i++)
+			{
+				aap[i]=new ActionParams();
+			}
+			for(int i=0;i<names.length;i++)
+			{
+				int iSeq=Integer.parseInt(actionSequence[i]);
+				if(iSeq<1 || iSeq>actionCount) throw new OmException(
+					"Action number out of range: "+iSeq);
+				aap[iSeq-1].setParameter(names[i],values[i]);
+			}
+		}
+		catch(Throwable t)
+		{
+			throw handleException("replay",t);
+		}
+
+		return startSession("replay",questionID,questionVersion,questionBaseURL,
+			initialParamNames,initialParamValues,cachedResources,aap);
+	}
+
+	/**
+	 * Shared implementation of {@link #start(String,String,String,String[],String[],String[])}
+	 * and {@link #replay(String,String,String,String[],String[],String[],int,String[],String[],String[])}.
+	 * @param sMethod Name of calling method (for errors)
+	 * @param questionID Unique ID of question
+	 * @param questionVersion Version identifier of question
+	 * @param questionBaseURL Base URL for questions
+	 * @param initialParamNames Names of initial parameters
+	 * @param initialParamValues Values of initial parameters
+	 * @param cachedResources List of resources that the Test Navigator has cached
+	 * @param aapReplay Actions to apply after starting, or null for none
+	 * @return Data for the question's current page
+	 * @throws OmException Whenever something goes wrong
+	 */
+	private StartReturn startSession(String sMethod,
+		String questionID,String questionVersion,String questionBaseURL,
+		String[] initialParamNames,String[] initialParamValues,
+		String[] cachedResources,ActionParams[] aapReplay)
+	  throws OmException
 	{
 		setServletForThread();
 		if(initialParamNames==null) initialParamNames=new String[0];
@@ -197,32 +375,49 @@ public class OmService implements ServiceLifecycle, QEngineConfig
 			// Get question into cache
 			QuestionCache.QuestionKey qk=new QuestionCache.QuestionKey(
 				questionID,questionVersion);
+			Profiler.setContext(questionID);
 			obtainQuestion(questionBaseURL,qk);
 
 			// Create and initialise question
-			QuestionCache.QuestionInstance qi=qc.newQuestion(qk);
+			QuestionCache.QuestionInstance qi=newQuestion(qk);
 			
 			// UNED: 27-05-2013 - dballestin - Added a chance to stop question session on errors when starting a
 			//                                 question
 			//Question q=qi.q;
 			q=qi.q;
 			
-			InitParams ip=new InitParams(lRandomSeed,sFixedFG,sFixedBG,dZoom,bPlain,qi.ccl,iFixedVariant,this, attempt, navigatorVersion);
-			Rendering r=q.init(qc.getMetadata(qk),ip);
-
-			// Generate session details and store in map
+			StartParams sp=new StartParams();
+			sp.lRandomSeed=lRandomSeed;
+			sp.sFixedFG=sFixedFG;
+			sp.sFixedBG=sFixedBG;
+			sp.dZoom=dZoom;
+			sp.bPlain=bPlain;
+			sp.iFixedVariant=iFixedVariant;
+			sp.iAttempt=attempt;
+			sp.sNavigatorVersion=navigatorVersion;
+			Rendering r=initQuestion(q,qc.getMetadata(qk),sp.getInitParams(qi.ccl,this));
+
+			// Generate session details
 			QuestionSession qs=new QuestionSession();
 			qs.q=q;
-			qs.lLastUsedTime=System.currentTimeMillis();
-			String sSession;
-			synchronized(this)
+			qs.sQuestionBaseURL=questionBaseURL;
+			qs.qk=qk;
+			qs.sp=sp;
+			qs.crCached=CachedResources.create(cachedResources);
+			if(qsr.isHibernating()) qs.lActions=new ArrayList<ActionParams>();
+
+			// Apply earlier actions if replaying
+			if(aapReplay!=null && aapReplay.length>0)
 			{
-				sSession=""+(iNextSessionID++);
-				qs.sSession=sSession;
-				mQuestionSessions.put(sSession,qs);
+				r=replayActions(qs,r,aapReplay);
 			}
 
-			return new StartReturn(sSession,r);
+			// Store in registry
+			String sSession=qsr.add(qs);
+
+			StartReturn sr=new StartReturn(sSession,r);
+			if(qs.crCached!=null) sr.omitCached(qs.crCached);
+			return sr;
 		}
 		catch(Throwable t)
 		{
@@ -230,7 +425,7 @@ public class OmService implements ServiceLifecycle, QEngineConfig
 			//                                 question
 			handleQuestionStartError(qc,q);
 			
-			throw handleException("start",t);
+			throw handleException(sMethod,t);
 		}
 		finally
 		{
@@ -238,6 +433,61 @@ public class OmService implements ServiceLifecycle, QEngineConfig
 		}
 	}
 
+	/**
+	 * Applies a list of actions to a newly-started question session.
+	 * @param qs Session (not yet in the registry)
+	 * @param rStart Rendering from starting the question
+	 * @param aap Actions to apply
+	 * @return Combined rendering with the final XHTML, latest CSS and progress
+	 *   info, and all resources (later ones replacing earlier ones of the same
+	 *   name)
+	 * @throws OmException If an action fails or the question ends
+	 */
+	private Rendering replayActions(QuestionSession qs,Rendering rStart,ActionParams[] aap)
+		throws OmException
+	{
+		Rendering r=new Rendering();
+		r.setXHTML(rStart.getXHTML());
+		r.setCSS(rStart.getCSS());
+		r.setProgressInfo(rStart.getProgressInfo());
+		Map<String, Resource> mResources=new LinkedHashMap<String, Resource>();
+		addResources(mResources,rStart);
+
+		for(int i=0;i<aap.length;i++)
+		{
+			ActionRendering ar=actionQuestion(qs.q,aap[i]);
+			if(ar.isSessionEnd()) throw new OmException(
+				"Unexpected end of question in replay (action "+(i+1)+")");
+			if(qs.lActions!=null) qs.lActions.add(aap[i]);
+
+			if(ar.getXHTML()!=null) r.setXHTML(ar.getXHTML());
+			if(ar.getCSS()!=null) r.setCSS(ar.getCSS());
+			if(ar.getProgressInfo()!=null) r.setProgressInfo(ar.getProgressInfo());
+			addResources(mResources,ar);
+		}
+
+		for(Resource res : mResources.values())
+		{
+			r.addResource(res);
+		}
+		return r;
+	}
+
+	/**
+	 * Adds resources from a rendering to a map, replacing any of the same name.
+	 * @param mResources Map from filename to resource
+	 * @param r Rendering
+	 */
+	private static void addResources(Map<String, Resource> mResources,Rendering r)
+	{
+		Resource[] ar=r.getResources();
+		for(int i=0;i<ar.length;i++)
+		{
+			mResources.remove(ar[i].getFilename());
+			mResources.put(ar[i].getFilename(),ar[i]);
+		}
+	}
+
 	/**
 	 * Obtains XML metadata about a question. Metadata currently is of the form:
 	 * <pre>
@@ -273,38 +523,183 @@ public class OmService implements ServiceLifecycle, QEngineConfig
 		setServletForThread();
 		try
 		{
-			// Initial part
-			String sResponse="<questionmetadata>";
+			return getMetadataXML(questionBaseURL,
+				new QuestionCache.QuestionKey(questionID,questionVersion),"");
+		}
+		catch(Throwable t)
+		{
+			throw handleException("getQuestionMetadata",t);
+		}
+		finally
+		{
+			unsetServletForThread();
+		}
+	}
+
+	/**
+	 * Obtains metadata for several questions in one call, for example all the
+	 * questions in a test. The result contains a &lt;questionmetadata> element
+	 * for each question in turn, as returned by
+	 * {@link #getQuestionMetadata(String, String, String)} but with id and
+	 * version attributes, inside a &lt;questionsmetadata> root element. If a
+	 * question fails, its element has an error attribute (containing the
+	 * message) and no content; other questions are unaffected.
+	 * <p>
+	 * API METHOD: This method signature must not be changed in future (after
+	 * initial release) unless careful attention is paid to simultaneous changes
+	 * of Test Navigator. In general, if additional parameters or return values
+	 * are added, a new method should be defined.
+	 * @param questionIDs IDs of questions
+	 * @param questionVersions Version identifiers of questions (must be an
+	 *   array of equal size to questionIDs)
+	 * @param questionBaseURL Base URL for questions (see start)
+	 * @return XML containing metadata for each question
+	 * @throws OmException If the parameters are invalid
+	 */
+	public String getQuestionsMetadata(String[] questionIDs,String[] questionVersions,
+		String questionBaseURL) throws OmException
+	{
+		setServletForThread();
+		if(questionIDs==null) questionIDs=new String[0];
+		if(questionVersions==null) questionVersions=new String[0];
+		try
+		{
+			if(questionIDs.length!=questionVersions.length)
+				throw new OmException("questionIDs and questionVersions must be of same length");
 
-			// Get question into cache
-			QuestionCache.QuestionKey qk=new QuestionCache.QuestionKey(
-				questionID,questionVersion);
-			obtainQuestion(questionBaseURL,qk);
+			StringBuffer sbResponse=new StringBuffer("<questionsmetadata>");
+			for(int i=0;i<questionIDs.length;i++)
+			{
+				String sAttributes=" id=\""+XML.escape(questionIDs[i])+
+					"\" version=\""+XML.escape(questionVersions[i])+"\"";
+				try
+				{
+					sbResponse.append(getMetadataXML(questionBaseURL,
+						new QuestionCache.QuestionKey(questionIDs[i],questionVersions[i]),
+						sAttributes));
+				}
+				catch(Throwable t)
+				{
+					sbResponse.append("<questionmetadata"+sAttributes+" error=\""+
+						XML.escape(t.getMessage()==null ? t.getClass().getName() : t.getMessage())+
+						"\"/>");
+				}
+			}
+			sbResponse.append("</questionsmetadata>");
+			return sbResponse.toString();
+		}
+		catch(Throwable t)
+		{
+			throw handleException("getQuestionsMetadata",t);
+		}
+		finally
+		{
+			unsetServletForThread();
+		}
+	}
 
-			// Get question.xml from question cache
-			Document dMetadata=qc.getMetadata(qk);
+	/**
+	 * Builds the metadata XML for a question (see
+	 * {@link #getQuestionMetadata(String, String, String)}).
+	 * @param questionBaseURL Base URL for questions
+	 * @param qk Question key
+	 * @param sAttributes Attributes for the root element (with leading space)
+	 *   or ""
+	 * @return XML string
+	 * @throws Exception Any error
+	 */
+	private String getMetadataXML(String questionBaseURL,QuestionCache.QuestionKey qk,
+		String sAttributes) throws Exception
+	{
+		// Initial part
+		String sResponse="<questionmetadata"+sAttributes+">";
 
-			// Title
-			if(XML.hasChild(dMetadata.getDocumentElement(),"title"))
-				sResponse+=XML.saveString(XML.getChild(dMetadata.getDocumentElement(),"title"));
+		// Get question into cache
+		obtainQuestion(questionBaseURL,qk);
 
-			// Scoring
-			if(XML.hasChild(dMetadata.getDocumentElement(),"scoring"))
-				sResponse+=XML.saveString(XML.getChild(dMetadata.getDocumentElement(),"scoring"));
+		// Get question.xml from question cache
+		Document dMetadata=qc.getMetadata(qk);
 
-			// Plain mode support
-			if("no".equals(dMetadata.getDocumentElement().getAttribute("plainmode")))
-				sResponse+="<plainmode>no</plainmode>";
-			else
-				sResponse+="<plainmode>yes</plainmode>";
+		// Title
+		if(XML.hasChild(dMetadata.getDocumentElement(),"title"))
+			sResponse+=XML.saveString(XML.getChild(dMetadata.getDocumentElement(),"title"));
 
-			// Finish response
-			sResponse+="</questionmetadata>";
-			return sResponse;
+		// Scoring
+		if(XML.hasChild(dMetadata.getDocumentElement(),"scoring"))
+			sResponse+=XML.saveString(XML.getChild(dMetadata.getDocumentElement(),"scoring"));
+
+		// Plain mode support
+		if("no".equals(dMetadata.getDocumentElement().getAttribute("plainmode")))
+			sResponse+="<plainmode>no</plainmode>";
+		else
+			sResponse+="<plainmode>yes</plainmode>";
+
+		// Finish response
+		sResponse+="</questionmetadata>";
+		return sResponse;
+	}
+
+	/**
+	 * Warms up the question engine for a set of questions, so that the first
+	 * start of each is quick. Work happens in the background after this method
+	 * returns: each question is obtained (as for
+	 * {@link #start(String,String,String,String[],String[],String[])}) and
+	 * loaded into the question cache, and if requested an instance is created,
+	 * initialised and thrown away so that its code is already compiled when
+	 * real sessions arrive.
+	 * <p>
+	 * API METHOD: This method signature must not be changed in future (after
+	 * initial release) unless careful attention is paid to simultaneous changes
+	 * of Test Navigator. In general, if additional parameters or return values
+	 * are added, a new method should be defined.
+	 * @param questionIDs IDs of questions
+	 * @param questionVersions Version identifiers of questions (must be an
+	 *   array of equal size to questionIDs)
+	 * @param questionBaseURL Base URL for questions (see start)
+	 * @param instantiate If true, initialise and discard an instance of each
+	 *   question as well as loading it
+	 * @return Number of questions queued for warming up (questions are skipped
+	 *   if too many are already queued)
+	 * @throws OmException If the parameters are invalid
+	 */
+	public int prefetch(String[] questionIDs,String[] questionVersions,
+		final String questionBaseURL,final boolean instantiate) throws OmException
+	{
+		setServletForThread();
+		if(questionIDs==null) questionIDs=new String[0];
+		if(questionVersions==null) questionVersions=new String[0];
+		try
+		{
+			if(questionIDs.length!=questionVersions.length)
+				throw new OmException("questionIDs and questionVersions must be of same length");
+
+			int iQueued=0;
+			for(int i=0;i<questionIDs.length;i++)
+			{
+				final QuestionCache.QuestionKey qk=new QuestionCache.QuestionKey(
+					questionIDs[i],questionVersions[i]);
+				try
+				{
+					tpePrefetch.execute(new Runnable()
+					{
+						public void run()
+						{
+							warmQuestion(questionBaseURL,qk,instantiate);
+						}
+					});
+					iQueued++;
+				}
+				catch(RejectedExecutionException ree)
+				{
+					// Queue full or shutting down; skip the rest
+					break;
+				}
+			}
+			return iQueued;
 		}
 		catch(Throwable t)
 		{
-			throw handleException("getQuestionMetadata",t);
+			throw handleException("prefetch",t);
 		}
 		finally
 		{
@@ -312,44 +707,156 @@ public class OmService implements ServiceLifecycle, QEngineConfig
 		}
 	}
 
-
-	private void obtainQuestion(String questionBaseURL,QuestionCache.QuestionKey qk) throws OmException
+	/**
+	 * Background part of {@link #prefetch(String[], String[], String, boolean)}
+	 * for a single question. An instance is always created and returned to the
+	 * cache, so that the question's classes are loaded and kept; it is only
+	 * initialised if requested. Errors are logged to the servlet log and
+	 * otherwise ignored; they'll show up again when a real session starts.
+	 * @param questionBaseURL Base URL for questions
+	 * @param qk Question key
+	 * @param bInstantiate If true, initialise the instance before discarding it
+	 */
+	private void warmQuestion(String questionBaseURL,QuestionCache.QuestionKey qk,
+		boolean bInstantiate)
 	{
-		if(!qc.containsQuestion(qk))
+		if(qc==null) return; // Shut down
+		setServletForThread();
+		try
 		{
-			String sContentURL=questionBaseURL+"/"+qk.getURLPart();
+			Profiler.setContext(qk.getQuestionID());
+			obtainQuestion(questionBaseURL,qk);
+			Document dMeta=qc.getMetadata(qk);
+
+			QuestionCache.QuestionInstance qi=newQuestion(qk);
 			try
 			{
-				// Get it from the URL
-				byte[] abJar;
-				if(sContentURL.equals("/!test.0.0"))
+				if(bInstantiate)
+				{
+					InitParams ip=new InitParams(0L,null,null,1.0,false,qi.ccl,-1,this,1,null);
+					initQuestion(qi.q,dMeta,ip);
+				}
+			}
+			finally
+			{
+				try
 				{
-					// Question used during automated check
-					abJar=IO.loadBytes(getClass().getResourceAsStream("testquestion.jar"));
+					qi.q.close();
 				}
-				else
+				finally
 				{
-					URL u=new URL(sContentURL);
-					HttpURLConnection huc=(HttpURLConnection)u.openConnection();
-					HTTPS.considerCertificatesValid(huc);
-					HTTPS.allowDifferentServerNames(huc);
-					abJar=IO.loadBytes(huc.getInputStream());
+					qc.returnQuestion(qi.q);
 				}
+			}
+		}
+		catch(Throwable t)
+		{
+			ServletContext scLog=sc;
+			if(scLog!=null) scLog.log("Prefetch of question "+qk+" failed",t);
+		}
+		finally
+		{
+			unsetServletForThread();
+		}
+	}
 
-				// Put it in cache
-				qc.saveQuestion(qk,abJar);
+	/**
+	 * Ensures a question is in the cache, downloading it if necessary. If
+	 * other threads need the same question at the same time, only one of them
+	 * downloads it and the rest wait for that download.
+	 * @param questionBaseURL Base URL for questions
+	 * @param qk Question key
+	 * @throws OmException If the question can't be obtained
+	 */
+	private void obtainQuestion(final String questionBaseURL,final QuestionCache.QuestionKey qk)
+		throws OmException
+	{
+		if(qc.containsQuestion(qk)) return;
 
+		FutureTask<Object> ft=new FutureTask<Object>(new Callable<Object>()
+		{
+			public Object call() throws OmException
+			{
+				downloadQuestion(questionBaseURL,qk);
+				return null;
 			}
-			catch(MalformedURLException e)
+		});
+		FutureTask<Object> ftExisting=mDownloads.putIfAbsent(qk,ft);
+		if(ftExisting==null)
+		{
+			try
 			{
-				throw new OmException("Invalid question content URL: "+
-					sContentURL,e);
+				ft.run();
 			}
-			catch(IOException e)
+			finally
 			{
-				throw new OmException("Error accessing content URL: "+
-					sContentURL,e);
+				mDownloads.remove(qk,ft);
 			}
+			ftExisting=ft;
+		}
+
+		try
+		{
+			ftExisting.get();
+		}
+		catch(ExecutionException ee)
+		{
+			if(ee.getCause() instanceof OmException) throw (OmException)ee.getCause();
+			throw new OmException("Error obtaining question: "+qk,ee.getCause());
+		}
+		catch(InterruptedException ie)
+		{
+			throw new OmException("Interrupted while obtaining question: "+qk,ie);
+		}
+	}
+
+	/**
+	 * Downloads a question into the cache. The jar is streamed to disk and
+	 * checked against the Content-Length and X-OpenMark-SHA1 response headers
+	 * when the server supplies them.
+	 * @param questionBaseURL Base URL for questions
+	 * @param qk Question key
+	 * @throws OmException If the question can't be obtained
+	 */
+	private void downloadQuestion(String questionBaseURL,QuestionCache.QuestionKey qk)
+		throws OmException
+	{
+		// Another thread may have finished the download since we checked
+		if(qc.containsQuestion(qk)) return;
+
+		String sContentURL=questionBaseURL+"/"+qk.getURLPart();
+		Profiler.Timer t=Profiler.start("download");
+		try
+		{
+			// Get it from the URL and put it in cache
+			if(sContentURL.equals("/!test.0.0"))
+			{
+				// Question used during automated check
+				qc.saveQuestion(qk,getClass().getResourceAsStream("testquestion.jar"),-1,null);
+			}
+			else
+			{
+				URL u=new URL(sContentURL);
+				HttpURLConnection huc=(HttpURLConnection)u.openConnection();
+				HTTPS.considerCertificatesValid(huc);
+				HTTPS.allowDifferentServerNames(huc);
+				qc.saveQuestion(qk,huc.getInputStream(),huc.getContentLength(),
+					huc.getHeaderField(QUESTIONDIGESTHEADER));
+			}
+		}
+		catch(MalformedURLException e)
+		{
+			throw new OmException("Invalid question content URL: "+
+				sContentURL,e);
+		}
+		catch(IOException e)
+		{
+			throw new OmException("Error accessing content URL: "+
+				sContentURL,e);
+		}
+		finally
+		{
+			t.stop();
 		}
 	}
 
@@ -373,13 +880,13 @@ public class OmService implements ServiceLifecycle, QEngineConfig
 		setServletForThread();
 		try
 		{
-			synchronized(this)
+			QuestionSession qs=qsr.get(questionSession);
+			if(qs==null) throw new OmException("Unknown question session");
+			synchronized(qs)
 			{
-				QuestionSession qs=mQuestionSessions.get(questionSession);
-				if(qs==null) throw new OmException("Unknown question session");
 				if(qs.bInUse) throw new OmException("Question cannot be stopped mid-call");
 
-				closeSession(qs);
+				if(!closeSession(qs)) throw new OmException("Unknown question session");
 			}
 		}
 		catch(Throwable t)
@@ -393,15 +900,86 @@ public class OmService implements ServiceLifecycle, QEngineConfig
 	}
 
 	/**
-	 * Removes a given session from the internal memory
+	 * Removes a given session from the internal memory. Only the first call
+	 * for a session closes its question.
+	 * @return True if the session was closed, false if it was already gone
 	 * @throws OmException If something goes wrong
 	 */
-	private void closeSession(QuestionSession qs) throws OmException
+	private boolean closeSession(QuestionSession qs) throws OmException
 	{
+		if(!qsr.remove(qs)) return false;
+
+		if(qs.q==null)
+		{
+			aiHibernatedSessions.decrementAndGet();
+			return true;
+		}
 		qs.q.close();
 		qc.returnQuestion(qs.q);
+		return true;
+	}
 
-		mQuestionSessions.remove(qs.sSession);
+	/**
+	 * Hibernates a session by closing its question, keeping only what is
+	 * needed to rebuild it. Caller must synchronize on the session.
+	 * @param qs Session
+	 * @throws OmException If something goes wrong
+	 */
+	private void hibernateSession(QuestionSession qs) throws OmException
+	{
+		Question q=qs.q;
+		qs.q=null;
+		aiHibernatedSessions.incrementAndGet();
+		try
+		{
+			q.close();
+		}
+		finally
+		{
+			qc.returnQuestion(q);
+		}
+	}
+
+	/**
+	 * Rebuilds a hibernated session's question by starting it again with the
+	 * same parameters and replaying its actions. Caller must synchronize on
+	 * the session.
+	 * @param qs Session
+	 * @throws OmException If the question can't be rebuilt
+	 */
+	private void wakeSession(QuestionSession qs) throws OmException
+	{
+		obtainQuestion(qs.sQuestionBaseURL,qs.qk);
+		QuestionCache.QuestionInstance qi=newQuestion(qs.qk);
+		boolean bOK=false;
+		try
+		{
+			initQuestion(qi.q,qc.getMetadata(qs.qk),qs.sp.getInitParams(qi.ccl,this));
+			for(ActionParams ap : qs.lActions)
+			{
+				actionQuestion(qi.q,ap);
+			}
+			bOK=true;
+		}
+		finally
+		{
+			if(!bOK)
+			{
+				try
+				{
+					qi.q.close();
+				}
+				finally
+				{
+					qc.returnQuestion(qi.q);
+				}
+			}
+		}
+
+		qs.q=qi.q;
+		aiHibernatedSessions.decrementAndGet();
+		alWokenSessions.incrementAndGet();
+		qsr.woken(qs);
 	}
 
 	/**
@@ -438,13 +1016,17 @@ public class OmService implements ServiceLifecycle, QEngineConfig
 		try
 		{
 			// Get question session
-			QuestionSession qs;
-			synchronized(this)
+			QuestionSession qs=qsr.get(questionSession);
+			if(qs==null) throw new OmException(
+				"Unknown question session");
+			Profiler.setContext(qs.qk.getQuestionID());
+			synchronized(qs)
 			{
-				qs=mQuestionSessions.get(questionSession);
-				if(qs==null) throw new OmException(
+				// Check it didn't expire while we were waiting
+				if(qsr.get(questionSession)!=qs) throw new OmException(
 					"Unknown question session");
-				qs.lLastUsedTime=System.currentTimeMillis(); // In sync just because it's a long
+				qs.lLastUsedTime=System.currentTimeMillis();
+				if(qs.q==null) wakeSession(qs);
 				qs.bInUse=true;
 			}
 
@@ -460,7 +1042,8 @@ public class OmService implements ServiceLifecycle, QEngineConfig
 				}
 
 				// Actually call question
-				ActionRendering ar=qs.q.action(ap);
+				ActionRendering ar=actionQuestion(qs.q,ap);
+				if(qs.lActions!=null) qs.lActions.add(ap);
 
 				// Close question session if needed
 				if(ar.isSessionEnd())
@@ -468,11 +1051,13 @@ public class OmService implements ServiceLifecycle, QEngineConfig
 					closeSession(qs);
 				}
 
-				return new ProcessReturn(ar);
+				ProcessReturn pr=new ProcessReturn(ar);
+				if(qs.crCached!=null) pr.omitCached(qs.crCached);
+				return pr;
 			}
 			finally
 			{
-				synchronized(this)
+				synchronized(qs)
 				{
 					qs.bInUse=false;
 				}
@@ -488,6 +1073,70 @@ public class OmService implements ServiceLifecycle, QEngineConfig
 		}
 	}
 
+	/**
+	 * Creates a question instance, recording the time taken (which includes
+	 * loading its classes if they aren't already loaded).
+	 * @param qk Question key
+	 * @return New instance
+	 * @throws OmException If the question can't be created
+	 */
+	private QuestionCache.QuestionInstance newQuestion(QuestionCache.QuestionKey qk)
+		throws OmException
+	{
+		Profiler.Timer t=Profiler.start("load");
+		try
+		{
+			return qc.newQuestion(qk);
+		}
+		finally
+		{
+			t.stop();
+		}
+	}
+
+	/**
+	 * Initialises a question, recording the time taken.
+	 * @param q Question
+	 * @param dMeta Question metadata
+	 * @param ip Initialisation parameters
+	 * @return Initial rendering
+	 * @throws OmException If the question fails
+	 */
+	private static Rendering initQuestion(Question q,Document dMeta,InitParams ip)
+		throws OmException
+	{
+		Profiler.Timer t=Profiler.start("init");
+		try
+		{
+			return q.init(dMeta,ip);
+		}
+		finally
+		{
+			t.stop();
+		}
+	}
+
+	/**
+	 * Passes an action to a question, recording the time taken.
+	 * @param q Question
+	 * @param ap Action parameters
+	 * @return Rendering after the action
+	 * @throws OmException If the question fails
+	 */
+	private static ActionRendering actionQuestion(Question q,ActionParams ap)
+		throws OmException
+	{
+		Profiler.Timer t=Profiler.start("action");
+		try
+		{
+			return q.action(ap);
+		}
+		finally
+		{
+			t.stop();
+		}
+	}
+
 	private static OmException handleException(String sMethod,Throwable t)
 	{
 		return new OmException("[[BEGINEXCEPTION]]"+
@@ -542,15 +1191,87 @@ public class OmService implements ServiceLifecycle, QEngineConfig
 				new ServiceException("Failed to load and parse configuration file.");
 			}
 		}
+		configureQuestionCache();
+		configureSessions();
+
+		// Profiling can be turned off with <profiling>no</profiling>
+		Object oProfiling=getConfiguration("profiling");
+		if(oProfiling instanceof Element)
+			Profiler.setEnabled(!XML.getText((Element)oProfiling).trim().equals("no"));
+
+		// Let prefetch threads go away when there's nothing to warm up
+		tpePrefetch.allowCoreThreadTimeOut(true);
 
 		// Start the check thread.
-		(new Thread(new Runnable()
+		tCheck=new Thread(new Runnable()
 		{
 			public void run()
 			{
 				checkThread();
 			}
-		})).start();
+		});
+		tCheck.start();
+	}
+
+	/**
+	 * Applies question cache settings from the &lt;questioncache> element of
+	 * qengine.xml, if present.
+	 * @throws ServiceException If the settings are invalid
+	 */
+	private void configureQuestionCache() throws ServiceException
+	{
+		Object o=getConfiguration("questioncache");
+		if(!(o instanceof Element)) return;
+		Element e=(Element)o;
+		try
+		{
+			int iMaxQuestions=QuestionCache.DEFAULTMAXRETAINED;
+			long lMaxBytes=QuestionCache.DEFAULTMAXRETAINEDBYTES;
+			long lMaxIdle=QuestionCache.DEFAULTMAXRETAINEDIDLE;
+			if(XML.hasChild(e,"retainedquestions"))
+				iMaxQuestions=XML.getInt(e,"retainedquestions");
+			if(XML.hasChild(e,"retainedmegabytes"))
+				lMaxBytes=XML.getInt(e,"retainedmegabytes")*1024L*1024L;
+			if(XML.hasChild(e,"retainedidleminutes"))
+				lMaxIdle=XML.getInt(e,"retainedidleminutes")*60L*1000L;
+			qc.setRetention(iMaxQuestions,lMaxBytes,lMaxIdle);
+		}
+		catch(XMLException xe)
+		{
+			throw new ServiceException("Invalid <questioncache> settings in qengine.xml",xe);
+		}
+	}
+
+	/**
+	 * Creates the session registry using the &lt;sessions> element of
+	 * qengine.xml, if present.
+	 * @throws ServiceException If the settings are invalid
+	 */
+	private void configureSessions() throws ServiceException
+	{
+		long lTimeout=SESSIONTIMEOUT,lCheck=SESSIONTIMEOUTCHECK,lHibernate=SESSIONHIBERNATE;
+		Object o=getConfiguration("sessions");
+		if(o instanceof Element)
+		{
+			Element e=(Element)o;
+			try
+			{
+				if(XML.hasChild(e,"timeoutminutes"))
+					lTimeout=XML.getInt(e,"timeoutminutes")*60L*1000L;
+				if(XML.hasChild(e,"checkminutes"))
+					lCheck=XML.getInt(e,"checkminutes")*60L*1000L;
+				if(XML.hasChild(e,"hibernateminutes"))
+					lHibernate=XML.getInt(e,"hibernateminutes")*60L*1000L;
+			}
+			catch(XMLException xe)
+			{
+				throw new ServiceException("Invalid <sessions> settings in qengine.xml",xe);
+			}
+			if(lTimeout<=0 || lCheck<=0 || lHibernate<0)
+				throw new ServiceException("Invalid <sessions> settings in qengine.xml");
+		}
+		lSessionCheck=lCheck;
+		qsr=new QuestionSessionRegistry(lTimeout,lHibernate,lCheck);
 	}
 
 	/** Thread that periodically expires unused sessions */
@@ -560,35 +1281,34 @@ public class OmService implements ServiceLifecycle, QEngineConfig
 		{
 			synchronized(oThreadSynch)
 			{
-				// Timeout runs each hour
+				// Bail on exit (destroy may have been called during the last check)
+				if(sc==null) return;
+
+				// Timeout runs every few minutes
 				try
 				{
-					oThreadSynch.wait(SESSIONTIMEOUTCHECK);
+					oThreadSynch.wait(lSessionCheck);
 				}
 				catch(InterruptedException e)
 				{
 				}
 
 				// Bail on exit
-				if(sc==null)
-				{
-					oThreadSynch.notifyAll();
-					return;
-				}
+				if(sc==null) return;
 			}
 
-			// OK, check for any timed-out sessions
-			long lTimeout=System.currentTimeMillis() - SESSIONTIMEOUT;
-			synchronized(this)
+			// Unload questions that have been retained but unused for too long
+			qc.evictRetained();
+
+			// OK, check for any timed-out sessions, and hibernate idle ones;
+			// sessions in use are left for next time
+			qsr.expire(System.currentTimeMillis(),new QuestionSessionRegistry.ExpiryHandler()
 			{
-				// Copy list because we'll make changes to map while going through
-				LinkedList<Map.Entry<String, QuestionSession> > ll =
-						new LinkedList<Map.Entry<String, QuestionSession> >(mQuestionSessions.entrySet());
-				for (Map.Entry<String, QuestionSession> me : ll)
+				public boolean expire(QuestionSession qs)
 				{
-					QuestionSession qs=me.getValue();
-					if(qs.lLastUsedTime < lTimeout)
+					synchronized(qs)
 					{
+						if(qs.bInUse) return false;
 						try
 						{
 							closeSession(qs);
@@ -597,38 +1317,78 @@ public class OmService implements ServiceLifecycle, QEngineConfig
 						{
 							// Ignore exception
 						}
+						return true;
 					}
 				}
-			}
-
+			},new QuestionSessionRegistry.ExpiryHandler()
+			{
+				public boolean expire(QuestionSession qs)
+				{
+					synchronized(qs)
+					{
+						if(qs.bInUse) return false;
+						if(qs.q==null) return true;
+						try
+						{
+							hibernateSession(qs);
+						}
+						catch(OmException oe)
+						{
+							// Ignore exception
+						}
+						return true;
+					}
+				}
+			});
 		}
 	}
 
 	/** @return Static instance of the class; null if none's been created yet */
 	static OmService getStatic() { return osSingleton; }
 
+	/**
+	 * Removes a question from the running question engine's cache so that it
+	 * will be obtained again next time it is used. Not a web service method.
+	 * @param questionID Question ID
+	 * @param questionVersion Question version
+	 * @return True if done; false if the question engine isn't running, in
+	 *   which case the caller should delete the cached files itself
+	 */
+	public static boolean removeCachedQuestion(String questionID,String questionVersion)
+	{
+		OmService os=osSingleton;
+		if(os==null || os.qc==null) return false;
+		os.qc.removeQuestion(new QuestionCache.QuestionKey(questionID,questionVersion));
+		return true;
+	}
+
 	public void destroy()
 	{
 		if(osSingleton==this) osSingleton=null;
 
 		sc=null;
-		mQuestionSessions=null;
-		qc.shutdown();
-		qc=null;
 
-		// Close thread
+		// Close thread, waiting for any check in progress to finish before
+		// clearing the things it uses
 		synchronized(oThreadSynch)
 		{
 			oThreadSynch.notifyAll();
+		}
+		if(tCheck!=null)
+		{
 			try
 			{
-				oThreadSynch.wait();
+				tCheck.join();
 			}
 			catch(InterruptedException e)
 			{
 			}
 		}
-		oThreadSynch=null;
+
+		qsr=null;
+		tpePrefetch.shutdownNow();
+		qc.shutdown();
+		qc=null;
 
 		System.gc();
 	}
@@ -645,7 +1405,12 @@ public class OmService implements ServiceLifecycle, QEngineConfig
 			"<engineinfo>\n" +
 			"<name>Om question engine</name>\n"+
 			"<usedmemory>"+sMemoryUsed+"</usedmemory>\n"+
-			"<activesessions>"+mQuestionSessions.size()+"</activesessions>\n"+
+			"<activesessions>"+qsr.size()+"</activesessions>\n"+
+			"<hibernatedsessions>"+aiHibernatedSessions.get()+"</hibernatedsessions>\n"+
+			"<wokensessions>"+alWokenSessions.get()+"</wokensessions>\n"+
+			"<expiredsessions>"+qsr.getExpiredCount()+"</expiredsessions>\n"+
+			qc.getInfo()+
+			Profiler.getXML(null)+
 			"</engineinfo>";
 	}
 
@@ -668,6 +1433,7 @@ public class OmService implements ServiceLifecycle, QEngineConfig
 	 */
 	private void unsetServletForThread() {
 		servletForThread.set(null);
+		Profiler.setContext(null);
 	}
 
 	/**
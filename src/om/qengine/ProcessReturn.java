@@ -59,6 +59,15 @@ public class ProcessReturn
 		r=ar.getResults();
 	}
 
+	/**
+	 * Leaves out the content of resources the navigator already holds.
+	 * @param cr Resources held by navigator
+	 */
+	void omitCached(CachedResources cr)
+	{
+		arResources=cr.omit(arResources);
+	}
+
 	/**
 	 * @return Results from this question if provided this time; null if
 	 *   not provided. (Results are sometimes provided before the end of the
@@ -19,8 +19,16 @@ package om.qengine;
 
 import java.io.*;
 import java.net.URL;
-import java.util.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
 
 import om.OmDeveloperException;
 import om.OmException;
@@ -31,6 +39,7 @@ import org.w3c.dom.Element;
 
 import util.misc.ClosableClassLoader;
 import util.misc.IO;
+import util.misc.Strings;
 import util.xml.XML;
 
 /**
@@ -38,31 +47,163 @@ import util.xml.XML;
  * <p>
  * Note that all methods in here take a 'question key' parameter ({@link om.qengine.QuestionCache.QuestionKey});
  * this is a combination of the question ID and version.
+ * <p>
+ * The cache is safe for concurrent use without a cache-wide lock. Each
+ * question key has its own entry; only one thread loads a given question
+ * while others needing that question wait on its entry alone, and questions
+ * that are already loaded are instantiated and returned without locking.
+ * <p>
+ * When the last instance of a question is returned, its classloader is kept
+ * (retained) so that the next start of that question doesn't need to load it
+ * again. Retained questions are limited by number, approximate size and idle
+ * time, and are evicted least-recently-used first; see
+ * {@link #setRetention(int, long, long)}.
  */
 public class QuestionCache
 {
-	/** Map of String (question key) -> QuestionStuff */
-	private Map<QuestionKey, QuestionStuff> mActiveQuestions1=new HashMap<QuestionKey, QuestionStuff>();
+	/** Map of question key -> QuestionStuff */
+	private final ConcurrentHashMap<QuestionKey, QuestionStuff> mActiveQuestions1=
+		new ConcurrentHashMap<QuestionKey, QuestionStuff>();
+
+	/** Map of Question -> QuestionStuff it was created from */
+	private final Map<Question, QuestionStuff> mActiveQuestions2=
+		new ConcurrentHashMap<Question, QuestionStuff>();
 
-	/** Map of Question -> String (question key) */
-	private Map<Question, QuestionKey> mActiveQuestions2=new HashMap<Question, QuestionKey>();
+	/**
+	 * Map of question key -> parsed question.xml. Filled when questions are
+	 * saved (or on first metadata request for jars saved before the index
+	 * existed) so that metadata requests don't need to open the jar.
+	 */
+	private final Map<QuestionKey, Document> mMetadata=
+		new ConcurrentHashMap<QuestionKey, Document>();
 
 	/** Folder where questions are cached */
 	private File fFolder;
 
+	/** Set once the cache has been shut down */
+	private volatile boolean bShutdown=false;
+
+	/**
+	 * Loaded questions that currently have no instances, in order of release
+	 * (eldest first). Map of QuestionStuff -> question key. Synchronize on
+	 * the map to use it.
+	 */
+	private final LinkedHashMap<QuestionStuff, QuestionKey> mRetained=
+		new LinkedHashMap<QuestionStuff, QuestionKey>();
+
+	/** Total approximate size of retained questions (bytes); sync on mRetained */
+	private long lRetainedBytes=0;
+
+	/** Maximum number of retained questions (0 = don't retain) */
+	private int iMaxRetained=DEFAULTMAXRETAINED;
+
+	/** Maximum approximate size of retained questions in bytes */
+	private long lMaxRetainedBytes=DEFAULTMAXRETAINEDBYTES;
+
+	/** Time a question may stay retained without being used (milliseconds) */
+	private long lMaxRetainedIdle=DEFAULTMAXRETAINEDIDLE;
+
+	/** Default for maximum number of retained questions */
+	final static int DEFAULTMAXRETAINED=50;
+
+	/** Default for maximum approximate size of retained questions */
+	final static long DEFAULTMAXRETAINEDBYTES=64L*1024L*1024L;
+
+	/** Default for time a question may stay retained without being used */
+	final static long DEFAULTMAXRETAINEDIDLE=30L*60L*1000L;
+
+	/** Count of new instances where the class was already loaded */
+	private final AtomicLong alHits=new AtomicLong();
+
+	/** Count of new instances that had to load the class */
+	private final AtomicLong alMisses=new AtomicLong();
+
+	/** Count of retained questions unloaded to keep within limits */
+	private final AtomicLong alEvictions=new AtomicLong();
+
 	QuestionCache(File f)
 	{
 		if(!f.exists()) f.mkdirs();
 		this.fFolder=f;
 	}
 
-	/** Holds stuff related to a particular question (ID) */
+	/**
+	 * Sets limits on questions retained in memory after their last instance
+	 * is returned. Retained questions beyond the new limits are unloaded
+	 * straight away.
+	 * @param iMaxQuestions Maximum number of retained questions; 0 to unload
+	 *   questions as soon as they aren't in use
+	 * @param lMaxBytes Maximum total approximate size (based on the content
+	 *   of the jar files) of retained questions, in bytes
+	 * @param lMaxIdle Time after which an unused question is unloaded, in
+	 *   milliseconds
+	 */
+	void setRetention(int iMaxQuestions,long lMaxBytes,long lMaxIdle)
+	{
+		synchronized(mRetained)
+		{
+			iMaxRetained=iMaxQuestions;
+			lMaxRetainedBytes=lMaxBytes;
+			lMaxRetainedIdle=lMaxIdle;
+		}
+		evictRetained();
+	}
+
+	/**
+	 * Holds stuff related to a particular question (ID). The class is loaded
+	 * while holding this object's monitor; everything else uses the reference
+	 * count.
+	 */
 	private static class QuestionStuff
 	{
-		Class<?> c=null;
-		ClosableClassLoader ccl;
-		Document dMeta;
-		List<Question> lActive=new LinkedList<Question>();
+		/** Question key */
+		final QuestionKey qk;
+
+		volatile Class<?> c=null;
+		volatile ClosableClassLoader ccl;
+		volatile Document dMeta;
+
+		/** Approximate memory used by the loaded question (bytes) */
+		long lSize;
+
+		/** Time at which the last instance was returned */
+		long lReleased;
+
+		/**
+		 * Set if the question was removed from the cache while loaded; the
+		 * entry is then discarded rather than retained when no longer used.
+		 */
+		volatile boolean bRemoved;
+
+		/**
+		 * @param qk Question key
+		 */
+		QuestionStuff(QuestionKey qk)
+		{
+			this.qk=qk;
+		}
+
+		/**
+		 * Number of references (active questions, plus threads in the middle
+		 * of creating one). -1 once the entry has been discarded, after which
+		 * it must not be used.
+		 */
+		final AtomicInteger aiReferences=new AtomicInteger(0);
+
+		/**
+		 * Adds a reference unless the entry has been discarded.
+		 * @return Previous number of references, or -1 if the entry has been
+		 *   discarded and no reference was added
+		 */
+		int acquire()
+		{
+			while(true)
+			{
+				int iCount=aiReferences.get();
+				if(iCount<0) return -1;
+				if(aiReferences.compareAndSet(iCount,iCount+1)) return iCount;
+			}
+		}
 	}
 
 	/**
@@ -83,6 +224,12 @@ public class QuestionCache
 			this.sVersion=sVersion;
 		}
 
+		/** @return ID of question */
+		String getQuestionID()
+		{
+			return sQuestionID;
+		}
+
 		// Hashcode and equals so it can be used in maps
 		@Override
 		public int hashCode()
@@ -110,6 +257,13 @@ public class QuestionCache
 		{
 			return getURLPart()+".jar";
 		}
+		/**
+		 * @return filename for the question.xml copy kept in the metadata index
+		 */
+		public String getMetadataFileName()
+		{
+			return getURLPart()+".xml";
+		}
 		/**
 		 * @return url fragment for this question.
 		 */
@@ -121,39 +275,123 @@ public class QuestionCache
 	}
 
 	/**
-	 * Returns metadata for a particular question ID. Must not be called unless
-	 * it is certain that the question is loaded (i.e. after newQuestion, before
-	 * returnQuestion).
+	 * Returns metadata for a particular question ID. If the question is not
+	 * currently loaded, the metadata comes from the index (in memory, or the
+	 * question.xml copy saved next to the jar file); the jar itself is only
+	 * opened for questions that were cached before the index existed.
 	 * @param qk Question key
 	 * @return Metadata
-	 * @throws OmException If question isn't loaded
+	 * @throws OmException If question doesn't exist or metadata can't be loaded
 	 */
-	synchronized Document getMetadata(QuestionKey qk) throws OmException
+	Document getMetadata(QuestionKey qk) throws OmException
 	{
 		checkNotShutdown();
 		// Find question ID in first map
 		QuestionStuff qs=mActiveQuestions1.get(qk);
-		if(qs==null)
+		if(qs!=null && qs.dMeta!=null) return qs.dMeta;
+
+		return getIndexedMetadata(qk);
+	}
+
+	/**
+	 * Obtains metadata from the index, adding it to the index from the jar
+	 * file if it isn't there yet.
+	 * @param qk Question key
+	 * @return Metadata
+	 * @throws OmException If question doesn't exist or metadata can't be loaded
+	 */
+	private Document getIndexedMetadata(QuestionKey qk) throws OmException
+	{
+		// Already in memory
+		Document dMeta=mMetadata.get(qk);
+		if(dMeta!=null) return dMeta;
+
+		File fJar=getFile(qk);
+		if(!fJar.exists()) throw new OmException("Question '"+qk+
+			"' does not exist");
+
+		File fMeta=getMetadataFile(qk);
+		try
 		{
-			// TODO Make it so it can cache the metadata somehow
-			// Load question temporarily just for metadata
-			File fJar=getFile(qk);
-			if(!fJar.exists()) throw new OmException("Question '"+qk+
-				"' does not exist");
-			try
+			if(fMeta.exists())
 			{
-				JarFile jf=new JarFile(fJar);
-				InputStream is=jf.getInputStream(jf.getEntry("question.xml"));
-				Document dMeta=XML.parse(IO.loadBytes(is));
-				jf.close();
-				return dMeta;
+				// Saved in index on disk
+				dMeta=XML.parse(fMeta);
 			}
-			catch(IOException ioe)
+			else
 			{
-				throw new OmException("Error loading question metadata for: "+qk,ioe);
+				// Jar saved before the index existed; extract question.xml once
+				JarFile jf=new JarFile(fJar);
+				byte[] abMeta;
+				try
+				{
+					ZipEntry ze=jf.getEntry("question.xml");
+					if(ze==null) throw new OmDeveloperException(
+						"question.xml not present in: "+fJar);
+					abMeta=IO.loadBytes(jf.getInputStream(ze));
+				}
+				finally
+				{
+					jf.close();
+				}
+				dMeta=XML.parse(abMeta);
+				saveMetadataFile(qk,abMeta);
 			}
 		}
-		return qs.dMeta;
+		catch(IOException ioe)
+		{
+			throw new OmException("Error loading question metadata for: "+qk,ioe);
+		}
+
+		mMetadata.put(qk,dMeta);
+		return dMeta;
+	}
+
+	/**
+	 * @param qk Question key
+	 * @return File that does/would hold the indexed question.xml for that question
+	 */
+	private File getMetadataFile(QuestionKey qk)
+	{
+		return new File(fFolder,qk.getMetadataFileName());
+	}
+
+	/**
+	 * Writes question.xml into the on-disk index. The data goes to a temporary
+	 * file first so that a partly-written file is never picked up.
+	 * @param qk Question key
+	 * @param abMeta Content of question.xml
+	 * @throws IOException If there's an error writing the file
+	 */
+	private void saveMetadataFile(QuestionKey qk,byte[] abMeta) throws IOException
+	{
+		File fTemp=File.createTempFile(qk.getMetadataFileName()+".",".tmp",fFolder);
+		FileOutputStream fos=new FileOutputStream(fTemp);
+		try
+		{
+			fos.write(abMeta);
+		}
+		finally
+		{
+			fos.close();
+		}
+		renameReplacing(fTemp,getMetadataFile(qk));
+	}
+
+	/**
+	 * Renames a file over another one. On platforms where rename doesn't
+	 * replace an existing file, the target is deleted first.
+	 * @param fFrom Newly-written file
+	 * @param fTo Target filename
+	 * @throws IOException If the rename fails (source file is deleted)
+	 */
+	private static void renameReplacing(File fFrom,File fTo) throws IOException
+	{
+		if(fFrom.renameTo(fTo)) return;
+		fTo.delete();
+		if(fFrom.renameTo(fTo)) return;
+		fFrom.delete();
+		throw new IOException("Failed to rename "+fFrom+" to "+fTo);
 	}
 
 	/**
@@ -171,9 +409,9 @@ public class QuestionCache
 	 * @return True if it's in the cache, false if it needs to be obtained
 	 *   and saved
 	 */
-	synchronized boolean containsQuestion(QuestionKey qk)
+	boolean containsQuestion(QuestionKey qk)
 	{
-		if(mActiveQuestions1==null) return false; // If shutdown
+		if(bShutdown) return false;
 
 		// If it's loaded in memory, we've got it, return true to save time
 		if(mActiveQuestions1.containsKey(qk)) return true;
@@ -184,25 +422,96 @@ public class QuestionCache
 
 	/**
 	 * Saves a newly-retrieved question into the cache so that it can be loaded
-	 * with {@link #newQuestion(String)}.
+	 * with {@link #newQuestion(QuestionKey)}.
+	 * <p>
+	 * The data is streamed to a temporary file which is renamed into place
+	 * only once it is complete and verified, so other threads never see a
+	 * partly-written question.
 	 * @param qk Question key
-	 * @param abData Data of question .jar file
-	 * @throws OmException If there's an error saving it
+	 * @param is Data of question .jar file (will be closed)
+	 * @param lExpectedLength Expected length in bytes, or -1 if not known
+	 * @param sExpectedSHA1 Expected SHA-1 digest of the data as a hex string,
+	 *   or null if not known
+	 * @throws OmException If there's an error saving it, or the data doesn't
+	 *   match the expected length or digest
 	 */
-	synchronized void saveQuestion(QuestionKey qk,byte[] abData)
-	  throws OmException
+	void saveQuestion(QuestionKey qk,InputStream is,long lExpectedLength,
+		String sExpectedSHA1) throws OmException
 	{
 		checkNotShutdown();
+		File fTemp=null;
 		try
 		{
-			FileOutputStream fos=new FileOutputStream(getFile(qk));
-			fos.write(abData);
-			fos.close();
+			MessageDigest md=null;
+			if(sExpectedSHA1!=null)
+			{
+				try
+				{
+					md=MessageDigest.getInstance("SHA-1");
+				}
+				catch(NoSuchAlgorithmException nsae)
+				{
+					throw new OmException("SHA-1 not available",nsae);
+				}
+			}
+
+			// Write to a file of our own, so that concurrent saves of the same
+			// question can't interleave
+			fTemp=File.createTempFile(qk.getURLPart()+".",".tmp",fFolder);
+			long lLength=0;
+			FileOutputStream fos=new FileOutputStream(fTemp);
+			try
+			{
+				byte[] abBuffer=new byte[32768];
+				while(true)
+				{
+					int iRead=is.read(abBuffer);
+					if(iRead<0) break;
+					fos.write(abBuffer,0,iRead);
+					if(md!=null) md.update(abBuffer,0,iRead);
+					lLength+=iRead;
+				}
+			}
+			finally
+			{
+				fos.close();
+				is.close();
+			}
+
+			// Verify
+			if(lExpectedLength>=0 && lLength!=lExpectedLength)
+				throw new OmException("Question file for "+qk+" incomplete: expected "+
+					lExpectedLength+" bytes, received "+lLength);
+			if(md!=null)
+			{
+				String sSHA1=Strings.byteArrayToHexString(md.digest());
+				if(!sSHA1.equalsIgnoreCase(sExpectedSHA1))
+					throw new OmException("Question file for "+qk+" doesn't match digest");
+			}
+
+			renameReplacing(fTemp,getFile(qk));
+			fTemp=null;
 		}
 		catch(IOException ioe)
 		{
 			throw new OmException("Failed to save question file",ioe);
 		}
+		finally
+		{
+			if(fTemp!=null) fTemp.delete();
+		}
+
+		// Index metadata now so that later requests don't need the jar. If this
+		// fails the question is still usable; the index is filled on demand.
+		mMetadata.remove(qk);
+		getMetadataFile(qk).delete();
+		try
+		{
+			getIndexedMetadata(qk);
+		}
+		catch(OmException oe)
+		{
+		}
 	}
 
 	static class QuestionInstance
@@ -215,51 +524,160 @@ public class QuestionCache
 	 * Returns new instance of a question with the given question ID. Question
 	 * has not yet been initialised, only constructed.
 	 * <p>
-	 * The question jar file is loaded if necessary.
+	 * The question jar file is loaded if necessary. If another thread is
+	 * already loading the same question, this waits for it rather than loading
+	 * it again.
 	 * @param qk Question key
 	 * @return New Question object
 	 * @throws OmException If various problems with the .jar occur
 	 */
-	synchronized QuestionInstance newQuestion(QuestionKey qk) throws OmException
+	QuestionInstance newQuestion(QuestionKey qk) throws OmException
 	{
 		checkNotShutdown();
-		// Find question ID in first map
-		QuestionStuff qs=mActiveQuestions1.get(qk);
-		if(qs==null)
-		{
-			qs=new QuestionStuff();
-			mActiveQuestions1.put(qk,qs);
-		}
+		QuestionStuff qs=acquireStuff(qk);
 
-		// If we don't already have the class loaded, we need to load it
-		if(qs.c==null)
+		boolean bSuccess=false;
+		try
 		{
-			File fJar=getFile(qk);
-			if(!fJar.exists()) throw new OmException("Question '"+qk+
-				"' does not exist");
+			// If we don't already have the class loaded, we need to load it
+			if(qs.c==null)
+			{
+				synchronized(qs)
+				{
+					if(qs.c==null)
+					{
+						loadClass(qk,qs);
+						alMisses.incrementAndGet();
+					}
+					else
+					{
+						alHits.incrementAndGet();
+					}
+				}
+			}
+			else
+			{
+				alHits.incrementAndGet();
+			}
 
-			// Get new classloader
+			// Instantiate question
+			Question q;
 			try
 			{
-				qs.ccl=new ClosableClassLoader(fJar,getClass().getClassLoader());
+				q=(Question)qs.c.newInstance();
+			}
+			catch(ClassCastException cce)
+			{
+				throw new OmDeveloperException(
+					"Class "+qs.c+" doesn't implement Question, in: "+qk);
+			}
+			catch(InstantiationException ie)
+			{
+				throw new OmException(
+					"Error instantiating "+qs.c+" in: "+qk,ie);
+			}
+			catch(IllegalAccessException iae)
+			{
+				throw new OmException(
+					"Error instantiating "+qs.c+" (check it's public) in: "+qk,iae);
 			}
-			catch(IOException ioe)
+			catch(Throwable t)
 			{
 				throw new OmException(
-					"Failed to start question classloader for: "+fJar,ioe);
+					"Error instantiating "+qs.c+" in: "+qk,t);
 			}
 
-			boolean bSuccess=false;
-			try
+			// Record question so it can be returned
+			mActiveQuestions2.put(q,qs);
+			bSuccess=true;
+
+			// Return question
+			QuestionInstance qi=new QuestionInstance();
+			qi.q=q;
+			qi.ccl=qs.ccl;
+			return qi;
+		}
+		finally
+		{
+			// If no other questions were already instantiated, throw away the
+			// classloader too
+			if(!bSuccess) release(qk,qs);
+		}
+	}
+
+	/**
+	 * Obtains the entry for a question key, creating it if needed, and adds a
+	 * reference to it.
+	 * @param qk Question key
+	 * @return Entry, with a reference held by the caller
+	 */
+	private QuestionStuff acquireStuff(QuestionKey qk)
+	{
+		while(true)
+		{
+			QuestionStuff qs=mActiveQuestions1.get(qk);
+			if(qs==null)
+			{
+				QuestionStuff qsNew=new QuestionStuff(qk);
+				qs=mActiveQuestions1.putIfAbsent(qk,qsNew);
+				if(qs==null) qs=qsNew;
+			}
+			int iPrevious=qs.acquire();
+			if(iPrevious==0)
+			{
+				// Was retained with no instances; it's in use again now
+				synchronized(mRetained)
+				{
+					if(mRetained.remove(qs)!=null) lRetainedBytes-=qs.lSize;
+				}
+			}
+			if(iPrevious>=0) return qs;
+
+			// Entry was discarded between get and acquire; make sure it's gone
+			// and try again
+			mActiveQuestions1.remove(qk,qs);
+		}
+	}
+
+	/**
+	 * Loads the question class for an entry. Must be called while holding the
+	 * entry's monitor.
+	 * @param qk Question key
+	 * @param qs Entry to fill in
+	 * @throws OmException If various problems with the .jar occur
+	 */
+	private void loadClass(QuestionKey qk,QuestionStuff qs) throws OmException
+	{
+		File fJar=getFile(qk);
+		if(!fJar.exists()) throw new OmException("Question '"+qk+
+			"' does not exist");
+
+		// Get new classloader
+		ClosableClassLoader ccl;
+		try
+		{
+			ccl=new ClosableClassLoader(fJar,getClass().getClassLoader());
+		}
+		catch(IOException ioe)
+		{
+			throw new OmException(
+				"Failed to start question classloader for: "+fJar,ioe);
+		}
+
+		boolean bSuccess=false;
+		try
+		{
+			// Get metadata document (from index if possible)
+			Document dMeta=mMetadata.get(qk);
+			if(dMeta==null)
 			{
-				// Get metadata document
 				try
 				{
-					URL uXML=qs.ccl.findResource("question.xml");
+					URL uXML=ccl.findResource("question.xml");
 					if(uXML==null)
 						throw new OmDeveloperException("question.xml not present in: "+fJar);
 					InputStream is=uXML.openStream();
-					qs.dMeta=XML.parse(is);
+					dMeta=XML.parse(is);
 					is.close();
 				}
 				catch(IOException ioe)
@@ -267,83 +685,144 @@ public class QuestionCache
 					throw new OmDeveloperException(
 						"Failed to load or parse question.xml in: "+fJar,ioe);
 				}
+				mMetadata.put(qk,dMeta);
+			}
 
-				// Find classname
-				Element eRoot=qs.dMeta.getDocumentElement();
-				if(!eRoot.getTagName().equals("question"))
-					throw new OmDeveloperException(
-						"Expecting <question> as root of question.xml in: "+fJar);
-				if(!eRoot.hasAttribute("class"))
-					throw new OmDeveloperException(
-						"Expecting class= attribute on root of question.xml in: "+fJar);
-				String sClass=eRoot.getAttribute("class");
-
-				// Load class
-				try
-				{
-					qs.c = qs.ccl.loadClass(sClass);
-				}
-				catch(ClassNotFoundException cnfe)
-				{
-					throw new OmDeveloperException("Failed to find "+sClass+" in: "+fJar);
-				}
-
-				bSuccess=true;
+			// Find classname
+			Element eRoot=dMeta.getDocumentElement();
+			if(!eRoot.getTagName().equals("question"))
+				throw new OmDeveloperException(
+					"Expecting <question> as root of question.xml in: "+fJar);
+			if(!eRoot.hasAttribute("class"))
+				throw new OmDeveloperException(
+					"Expecting class= attribute on root of question.xml in: "+fJar);
+			String sClass=eRoot.getAttribute("class");
+
+			// Load class
+			Class<?> c;
+			try
+			{
+				c=ccl.loadClass(sClass);
 			}
-			finally
+			catch(ClassNotFoundException cnfe)
 			{
-				if(!bSuccess) qs.ccl.close();
+				throw new OmDeveloperException("Failed to find "+sClass+" in: "+fJar);
 			}
-		}
 
-		// Instantiate question
-		Question q;
-		boolean bSuccess=false;
-		try
-		{
-			q=(Question)qs.c.newInstance();
+			// Publish; c is written last as other threads test it without locking
+			qs.lSize=ccl.getContentSize();
+			qs.ccl=ccl;
+			qs.dMeta=dMeta;
+			qs.c=c;
 			bSuccess=true;
 		}
-		catch(ClassCastException cce)
-		{
-			throw new OmDeveloperException(
-				"Class "+qs.c+" doesn't implement Question, in: "+qk);
-		}
-		catch(InstantiationException ie)
+		finally
 		{
-			throw new OmException(
-				"Error instantiating "+qs.c+" in: "+qk,ie);
+			if(!bSuccess) ccl.close();
 		}
-		catch(IllegalAccessException iae)
+	}
+
+	/**
+	 * Drops a reference to an entry. When the last reference goes, the entry
+	 * is retained if it's loaded and retention is enabled; otherwise it is
+	 * removed and its classloader closed.
+	 * @param qk Question key
+	 * @param qs Entry
+	 */
+	private void release(QuestionKey qk,QuestionStuff qs)
+	{
+		if(qs.aiReferences.decrementAndGet()>0) return;
+
+		if(qs.c!=null && !bShutdown && !qs.bRemoved)
 		{
-			throw new OmException(
-				"Error instantiating "+qs.c+" (check it's public) in: "+qk,iae);
+			synchronized(mRetained)
+			{
+				// If somebody acquired it again in the meantime, leave it alone
+				if(qs.aiReferences.get()!=0) return;
+				if(iMaxRetained>0)
+				{
+					qs.lReleased=System.currentTimeMillis();
+					if(mRetained.put(qs,qk)==null) lRetainedBytes+=qs.lSize;
+				}
+			}
+			if(iMaxRetained>0)
+			{
+				evictRetained();
+				return;
+			}
 		}
-		catch(Throwable t)
+
+		discard(qk,qs);
+	}
+
+	/**
+	 * Discards an entry with no references, unless somebody acquired it
+	 * again in the meantime.
+	 * @param qk Question key
+	 * @param qs Entry
+	 * @return True if the entry was discarded
+	 */
+	private boolean discard(QuestionKey qk,QuestionStuff qs)
+	{
+		if(!qs.aiReferences.compareAndSet(0,-1)) return false;
+		mActiveQuestions1.remove(qk,qs);
+		synchronized(qs)
 		{
-			throw new OmException(
-				"Error instantiating "+qs.c+" in: "+qk,t);
+			if(qs.ccl!=null) qs.ccl.close();
+			qs.c=null;
 		}
-		finally
+		return true;
+	}
+
+	/**
+	 * Unloads retained questions that are over the count or size limits
+	 * (least recently used first) or have been idle too long. Called whenever
+	 * a question is retained, and periodically by the question engine.
+	 */
+	void evictRetained()
+	{
+		long lIdleLimit=System.currentTimeMillis()-lMaxRetainedIdle;
+		while(true)
 		{
-			// If no other questions were already instantiated, throw away the
-			// classloader too
-			if(!bSuccess && qs.lActive.isEmpty())
+			QuestionStuff qs;
+			QuestionKey qk;
+			synchronized(mRetained)
 			{
-				mActiveQuestions1.remove(qk);
-				qs.ccl.close();
+				if(mRetained.isEmpty()) return;
+				Iterator<Map.Entry<QuestionStuff, QuestionKey>> i=mRetained.entrySet().iterator();
+				Map.Entry<QuestionStuff, QuestionKey> me=i.next();
+				qs=me.getKey();
+				qk=me.getValue();
+				if(mRetained.size()<=iMaxRetained && lRetainedBytes<=lMaxRetainedBytes
+					&& qs.lReleased>=lIdleLimit) return;
+				i.remove();
+				lRetainedBytes-=qs.lSize;
 			}
+			if(discard(qk,qs)) alEvictions.incrementAndGet();
 		}
+	}
 
-		// Add question to both directional maps
-		qs.lActive.add(q);
-		mActiveQuestions2.put(q,qk);
-
-		// Return question
-		QuestionInstance qi=new QuestionInstance();
-		qi.q=q;
-		qi.ccl=qs.ccl;
-		return qi;
+	/**
+	 * @return XML fragment describing cache usage, for engine status
+	 */
+	String getInfo()
+	{
+		int iRetained;
+		long lBytes;
+		synchronized(mRetained)
+		{
+			iRetained=mRetained.size();
+			lBytes=lRetainedBytes;
+		}
+		return
+			"<questioncache>\n"+
+			"<loaded>"+mActiveQuestions1.size()+"</loaded>\n"+
+			"<retained>"+iRetained+"</retained>\n"+
+			"<retainedsize>"+Strings.formatBytes(lBytes)+"</retainedsize>\n"+
+			"<hits>"+alHits.get()+"</hits>\n"+
+			"<misses>"+alMisses.get()+"</misses>\n"+
+			"<evictions>"+alEvictions.get()+"</evictions>\n"+
+			"</questioncache>\n";
 	}
 
 	// UNED: 27-05-2013 - dballestin - Changed access modifier of this method to public so
@@ -356,43 +835,68 @@ public class QuestionCache
 	 * @param q Question to return to the bank.
 	 * @throws OmException If the data structures are inconsistent
 	 */
-	public synchronized void returnQuestion(Question q) throws OmException
+	public void returnQuestion(Question q) throws OmException
 	{
 		checkNotShutdown();
 		// Remove from both directional maps
-		QuestionKey qk=mActiveQuestions2.remove(q);
-		if(qk==null) throw new OmException(
+		QuestionStuff qs=mActiveQuestions2.remove(q);
+		if(qs==null) throw new OmException(
 			"Attempt to close question that wasn't currently open");
-		QuestionStuff qs=mActiveQuestions1.get(qk);
-		if(qs==null)
-			throw new OmException("Question maps inconsistent (missing list)");
-		if(!qs.lActive.remove(q))
-			throw new OmException("Question maps inconsistent (missing question)");
-		if(!qs.lActive.isEmpty()) return; // If it wasn't the last, we're done
 
-		// Remove the whole question class entry from the jarfile
-		mActiveQuestions1.remove(qk);
+		// If it was the last, that jar file can now be closed
+		release(qs.qk,qs);
+	}
 
-		// OK, that jar file can now be closed
-		qs.ccl.close();
+	/**
+	 * Removes a question from the cache: deletes its jar file and metadata,
+	 * and unloads it. Sessions currently using the question keep their
+	 * instances; it is unloaded when they finish. The next request for the
+	 * question will obtain it again.
+	 * @param qk Question key
+	 */
+	void removeQuestion(QuestionKey qk)
+	{
+		QuestionStuff qs=mActiveQuestions1.remove(qk);
+		if(qs!=null)
+		{
+			qs.bRemoved=true;
+			synchronized(mRetained)
+			{
+				if(mRetained.remove(qs)!=null) lRetainedBytes-=qs.lSize;
+			}
+			discard(qk,qs);
+		}
+		mMetadata.remove(qk);
+		getFile(qk).delete();
+		getMetadataFile(qk).delete();
 	}
 
 	/** Abandon all questions and close all classloaders */
-	synchronized void shutdown()
+	void shutdown()
 	{
+		bShutdown=true;
+		synchronized(mRetained)
+		{
+			mRetained.clear();
+			lRetainedBytes=0;
+		}
 		for(QuestionStuff qs : mActiveQuestions1.values())
 		{
-			((ClosableClassLoader)qs.c.getClassLoader()).close();
-			qs.c=null;
+			synchronized(qs)
+			{
+				if(qs.ccl!=null) qs.ccl.close();
+				qs.c=null;
+			}
 		}
-		mActiveQuestions1=null;
-		mActiveQuestions2=null;
+		mActiveQuestions1.clear();
+		mActiveQuestions2.clear();
+		mMetadata.clear();
 	}
 
 	/** @throws OmException If the question cache was shut down */
 	private void checkNotShutdown() throws OmException
 	{
-		if(mActiveQuestions1==null) throw new OmException(
+		if(bShutdown) throw new OmException(
 			"Can't call question cache methods after shutdown");
 	}
 
@@ -0,0 +1,249 @@
+/* OpenMark online assessment system
+   Copyright (C) 2007 The Open University
+
+   This program is free software; you can redistribute it and/or
+   modify it under the terms of the GNU General Public License
+   as published by the Free Software Foundation; either version 2
+   of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software
+   Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package om.qengine;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the question engine's current question sessions.
+ * <p>
+ * Sessions are kept in a concurrent map, so looking up and touching a session
+ * doesn't need any engine-wide lock. Expiry (and hibernation of idle sessions)
+ * uses timing wheels: each session is placed in the slot for the time it would
+ * become due if not used again. Using a session only updates its last-used
+ * time; when its slot comes round, a session that has been used since is moved
+ * to its new slot rather than handled. So the cost of a check depends on the
+ * sessions due at that time, not on the total number of sessions.
+ */
+class QuestionSessionRegistry
+{
+	/** All current question sessions (maps String -> QuestionSession) */
+	private final ConcurrentHashMap<String, OmService.QuestionSession> mSessions=
+		new ConcurrentHashMap<String, OmService.QuestionSession>();
+
+	/** ID to use for next session */
+	private final AtomicInteger aiNextSessionID=new AtomicInteger(1);
+
+	/** Wheel for sessions that have been idle longer than the timeout */
+	private final Wheel wExpiry;
+
+	/** Wheel for sessions that should be hibernated; null if not in use */
+	private final Wheel wHibernate;
+
+	/** Number of sessions that have been expired */
+	private final AtomicLong alExpired=new AtomicLong();
+
+	/**
+	 * @param lTimeout How long sessions are allowed to lie idle (ms)
+	 * @param lHibernate How long sessions may be idle before they are
+	 *   hibernated (ms); 0 to never hibernate them
+	 * @param lTick How often {@link #expire(long, ExpiryHandler, ExpiryHandler)}
+	 *   will be called (ms); sessions are handled up to this long after they
+	 *   become due
+	 */
+	QuestionSessionRegistry(long lTimeout,long lHibernate,long lTick)
+	{
+		wExpiry=new Wheel(lTimeout,lTick);
+		wHibernate=(lHibernate>0 && lHibernate<lTimeout) ? new Wheel(lHibernate,lTick) : null;
+	}
+
+	/**
+	 * Adds a new session, giving it an ID and marking it as just used.
+	 * @param qs Session
+	 * @return New session ID
+	 */
+	String add(OmService.QuestionSession qs)
+	{
+		String sSession=""+aiNextSessionID.getAndIncrement();
+		qs.sSession=sSession;
+		qs.lLastUsedTime=System.currentTimeMillis();
+		mSessions.put(sSession,qs);
+		wExpiry.schedule(qs,qs.lLastUsedTime);
+		if(wHibernate!=null) wHibernate.schedule(qs,qs.lLastUsedTime);
+		return sSession;
+	}
+
+	/**
+	 * Must be called when a hibernated session is brought back, so that it
+	 * can be hibernated again later.
+	 * @param qs Session
+	 */
+	void woken(OmService.QuestionSession qs)
+	{
+		if(wHibernate!=null) wHibernate.schedule(qs,qs.lLastUsedTime);
+	}
+
+	/** @return True if sessions are hibernated when idle */
+	boolean isHibernating()
+	{
+		return wHibernate!=null;
+	}
+
+	/**
+	 * @param sSession Session ID
+	 * @return Session or null if there isn't one with that ID
+	 */
+	OmService.QuestionSession get(String sSession)
+	{
+		return mSessions.get(sSession);
+	}
+
+	/**
+	 * Removes a session.
+	 * @param qs Session
+	 * @return True if it was removed by this call, false if it was already gone
+	 */
+	boolean remove(OmService.QuestionSession qs)
+	{
+		return mSessions.remove(qs.sSession,qs);
+	}
+
+	/** @return Number of current sessions */
+	int size()
+	{
+		return mSessions.size();
+	}
+
+	/** @return Number of sessions that have been expired */
+	long getExpiredCount()
+	{
+		return alExpired.get();
+	}
+
+	/** @return All current sessions (a copy) */
+	List<OmService.QuestionSession> getAll()
+	{
+		return new ArrayList<OmService.QuestionSession>(mSessions.values());
+	}
+
+	/**
+	 * Finds sessions that have been idle longer than the timeout (which are
+	 * removed) or the hibernation time. Sessions that have been used since
+	 * they were scheduled are moved to their new slot. Must only be called
+	 * from one thread.
+	 * @param lNow Current time
+	 * @param hExpire Handler given each session that has timed out
+	 * @param hHibernate Handler given each session that should be hibernated
+	 */
+	void expire(long lNow,ExpiryHandler hExpire,ExpiryHandler hHibernate)
+	{
+		alExpired.addAndGet(wExpiry.check(lNow,hExpire));
+		if(wHibernate!=null) wHibernate.check(lNow,hHibernate);
+	}
+
+	/** Timing wheel for sessions that become due a fixed time after last use */
+	private class Wheel
+	{
+		/** How long after last use sessions are due (ms) */
+		private final long lDelay;
+
+		/** Time covered by each slot of the wheel (ms) */
+		private final long lTick;
+
+		/** Slot i holds sessions that are due in tick numbers = i mod length */
+		private final ConcurrentLinkedQueue<OmService.QuestionSession>[] aqSlots;
+
+		/** Last tick number that has been checked (only used by expiry thread) */
+		private long lLastTick;
+
+		@SuppressWarnings({"rawtypes","unchecked"})
+		Wheel(long lDelay,long lTick)
+		{
+			this.lDelay=lDelay;
+			this.lTick=Math.max(1L,lTick);
+
+			// A session is never due more than lDelay ahead, so this many slots
+			// means a slot never holds sessions from different turns of the wheel
+			int iSlots=(int)(lDelay/this.lTick)+2;
+			aqSlots=new ConcurrentLinkedQueue[iSlots];
+			for(int i=0;i<iSlots;i++)
+			{
+				aqSlots[i]=new ConcurrentLinkedQueue<OmService.QuestionSession>();
+			}
+			lLastTick=System.currentTimeMillis()/this.lTick;
+		}
+
+		/**
+		 * Handles sessions that are due.
+		 * @param lNow Current time
+		 * @param h Handler given each due session
+		 * @return Number of sessions the handler accepted
+		 */
+		int check(long lNow,ExpiryHandler h)
+		{
+			int iHandled=0;
+			long lNowTick=lNow/lTick;
+			long lFirst=Math.max(lLastTick+1,lNowTick-aqSlots.length+1);
+			for(long lSlotTick=lFirst;lSlotTick<=lNowTick;lSlotTick++)
+			{
+				// Take the current contents; anything rescheduled into this same
+				// slot belongs to the next turn of the wheel
+				ConcurrentLinkedQueue<OmService.QuestionSession> q=aqSlots[(int)(lSlotTick%aqSlots.length)];
+				List<OmService.QuestionSession> lDue=new LinkedList<OmService.QuestionSession>();
+				for(OmService.QuestionSession qs=q.poll();qs!=null;qs=q.poll())
+				{
+					lDue.add(qs);
+				}
+
+				for(OmService.QuestionSession qs : lDue)
+				{
+					if(mSessions.get(qs.sSession)!=qs) continue; // Already gone
+					if(qs.lLastUsedTime+lDelay > lNow || !h.expire(qs))
+					{
+						// Used since, or can't be handled right now
+						schedule(qs,lNow);
+					}
+					else
+					{
+						iHandled++;
+					}
+				}
+			}
+			lLastTick=lNowTick;
+			return iHandled;
+		}
+
+		/**
+		 * Puts a session into the slot for when it is due, making sure it goes
+		 * to a slot after the current one.
+		 * @param qs Session
+		 * @param lNow Current time
+		 */
+		void schedule(OmService.QuestionSession qs,long lNow)
+		{
+			long lDueTick=Math.max((qs.lLastUsedTime+lDelay)/lTick,lNow/lTick+1);
+			aqSlots[(int)(lDueTick%aqSlots.length)].add(qs);
+		}
+	}
+
+	/** Called for sessions found to be due */
+	interface ExpiryHandler
+	{
+		/**
+		 * Handles a due session (for example, removing and closing it).
+		 * @param qs Session
+		 * @return True if the session was handled, false if it should be
+		 *   checked again later
+		 */
+		boolean expire(OmService.QuestionSession qs);
+	}
+}
@@ -53,6 +53,15 @@ public class StartReturn
 		arResources=r.getResources();
 	}
 
+	/**
+	 * Leaves out the content of resources the navigator already holds.
+	 * @param cr Resources held by navigator
+	 */
+	void omitCached(CachedResources cr)
+	{
+		arResources=cr.omit(arResources);
+	}
+
 	/** @return Question session ID.
 	 * (Not a user session ID! Used to refer to the period between a start() call
 	 * and the end of the question or stop().) */
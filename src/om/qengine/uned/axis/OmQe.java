@@ -6,6 +6,8 @@ import java.rmi.RemoteException;
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServlet;
 
+import om.qengine.OmService;
+
 import org.apache.axis.MessageContext;
 import org.apache.axis.transport.http.HTTPConstants;
 
@@ -18,11 +20,22 @@ public class OmQe implements IOmQe
 	@Override
 	public void deleteQuestionFromCache(String packageName) throws RemoteException
 	{
+		// If the question engine is running, it must also forget the question
+		// metadata and unload the classes it may be keeping
+		if (OmService.removeCachedQuestion(packageName,"1.0"))
+		{
+			return;
+		}
 		File questionFromCache=getQuestionJarFile(packageName);
 		if (questionFromCache.exists())
 		{
 			questionFromCache.delete();
 		}
+		File metadataFromCache=new File(questionFromCache.getPath().replaceFirst("\\.jar$",".xml"));
+		if (metadataFromCache.exists())
+		{
+			metadataFromCache.delete();
+		}
 	}
 	
 	/**
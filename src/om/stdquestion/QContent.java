@@ -31,6 +31,7 @@ import om.question.Resource;
 
 import org.w3c.dom.*;
 
+import util.misc.Profiler;
 import util.xml.XML;
 
 /**
@@ -286,6 +287,7 @@ public class QContent
 	 */
 	public static byte[] convertPNG(BufferedImage bi) throws OmUnexpectedException
 	{
+		Profiler.Timer t=Profiler.start("png");
 		try
 		{
 			ByteArrayOutputStream baos=new ByteArrayOutputStream();
@@ -298,6 +300,10 @@ public class QContent
 		{
 			throw new OmUnexpectedException(ioe);
 		}
+		finally
+		{
+			t.stop();
+		}
 	}
 
 	/**
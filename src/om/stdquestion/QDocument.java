@@ -26,6 +26,7 @@ import om.stdcomponent.RootComponent;
 
 import org.w3c.dom.*;
 
+import util.misc.Profiler;
 import util.xml.XML;
 
 /** Tree of QComponents used for a question */
@@ -324,6 +325,25 @@ public class QDocument
 	 * @throws OmException If there's any problem
 	 */
 	public void render(Rendering r,boolean bInit) throws OmException
+	{
+		Profiler.Timer t=Profiler.start("render");
+		try
+		{
+			renderInner(r,bInit);
+		}
+		finally
+		{
+			t.stop();
+		}
+	}
+
+	/**
+	 * Does the work of {@link #render(Rendering, boolean)}.
+	 * @param r Output for rendering
+	 * @param bInit True if this is the first call to components in question init
+	 * @throws OmException If there's any problem
+	 */
+	private void renderInner(Rendering r,boolean bInit) throws OmException
 	{
 		// Create blank QContent
 		QContent qc=new QContent(XML.createDocument());
@@ -30,6 +30,7 @@ import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
 import util.misc.IO;
+import util.misc.Profiler;
 import util.xml.XML;
 import util.xml.XMLException;
 
@@ -164,11 +165,19 @@ public abstract class StandardQuestion implements Question
 	{
 		if(sName.startsWith("/")) throw new IllegalArgumentException(
 			"loadResource with class reference must be relative name");
-		if(sResourcePath!=null)
-			return IO.loadResource(ip.getClassLoader(),sResourcePath+sName);
-		else
+		Profiler.Timer t=Profiler.start("resource");
+		try
+		{
+			if(sResourcePath!=null)
+				return IO.loadResource(ip.getClassLoader(),sResourcePath+sName);
+			else
+			{
+				return IO.loadResource(getClass(),sName);
+			}
+		}
+		finally
 		{
-			return IO.loadResource(getClass(),sName);
+			t.stop();
 		}
 	}
 
@@ -0,0 +1,424 @@
+/* OpenMark online assessment system
+   Copyright (C) 2007 The Open University
+
+   This program is free software; you can redistribute it and/or
+   modify it under the terms of the GNU General Public License
+   as published by the Free Software Foundation; either version 2
+   of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software
+   Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package om.tnavigator;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.rmi.RemoteException;
+
+import om.axis.qengine.*;
+
+import org.apache.axis.AxisFault;
+
+import util.misc.BinaryMessage;
+
+/**
+ * Client for the question engine's binary protocol (om.qengine.BinaryServlet),
+ * usable anywhere the SOAP stub is. Each call is an HTTP POST; the JVM's
+ * HTTP keep-alive reuses connections because responses have a length and
+ * are always read to the end.
+ * <p>
+ * Errors reported by the question engine are thrown as AxisFault with the
+ * same message they would have over SOAP; communication errors are thrown
+ * as RemoteException.
+ */
+public class BinaryOmService implements OmService
+{
+	/** Path of binary endpoint within the question engine webapp */
+	public final static String PATH="/binary";
+
+	/** Endpoint URL */
+	private URL url;
+
+	/** Timeout (ms) */
+	private int iTimeout;
+
+	/** Sizes of last request and response (bytes; for benchmarking) */
+	private volatile int iLastRequestSize,iLastResponseSize;
+
+	/**
+	 * @param url Binary endpoint URL (ending in {@link #PATH})
+	 * @param iTimeout Connect and read timeout (ms)
+	 */
+	public BinaryOmService(URL url,int iTimeout)
+	{
+		this.url=url;
+		this.iTimeout=iTimeout;
+	}
+
+	/** @return Size in bytes of the most recent request body */
+	public int getLastRequestSize()
+	{
+		return iLastRequestSize;
+	}
+
+	/** @return Size in bytes of the most recent response body */
+	public int getLastResponseSize()
+	{
+		return iLastResponseSize;
+	}
+
+	/** Holds a request while it is being written */
+	private static class Request
+	{
+		ByteArrayOutputStream baos=new ByteArrayOutputStream();
+		DataOutputStream dos=new DataOutputStream(baos);
+
+		Request(String sMethod) throws IOException
+		{
+			dos.writeInt(BinaryMessage.MAGIC);
+			BinaryMessage.writeString(dos,sMethod);
+		}
+	}
+
+	/**
+	 * Sends a request and returns a stream positioned at the start of the
+	 * return value (the whole response has already been read).
+	 * @param r Request
+	 * @return Return value data
+	 * @throws RemoteException If the call fails
+	 */
+	private DataInputStream call(Request r) throws RemoteException
+	{
+		HttpURLConnection huc=null;
+		try
+		{
+			r.dos.flush();
+			byte[] abRequest=r.baos.toByteArray();
+			iLastRequestSize=abRequest.length;
+
+			huc=(HttpURLConnection)url.openConnection();
+			huc.setConnectTimeout(iTimeout);
+			huc.setReadTimeout(iTimeout);
+			huc.setDoOutput(true);
+			huc.setRequestMethod("POST");
+			huc.setRequestProperty("Content-Type",BinaryMessage.CONTENTTYPE);
+			huc.setFixedLengthStreamingMode(abRequest.length);
+			OutputStream os=huc.getOutputStream();
+			os.write(abRequest);
+			os.close();
+
+			if(huc.getResponseCode()!=HttpURLConnection.HTTP_OK)
+				throw new IOException("HTTP error "+huc.getResponseCode()+" from "+url);
+
+			// Read whole response so the connection can be reused
+			byte[] abResponse=readFully(huc.getInputStream(),huc.getContentLength());
+			iLastResponseSize=abResponse.length;
+
+			DataInputStream dis=new DataInputStream(new ByteArrayInputStream(abResponse));
+			BinaryMessage.readMagic(dis);
+			if(dis.readByte()==BinaryMessage.STATUS_ERROR)
+				throw new AxisFault(BinaryMessage.readString(dis));
+			return dis;
+		}
+		catch(RemoteException re)
+		{
+			throw re;
+		}
+		catch(IOException ioe)
+		{
+			// Drain any error response so the connection can be reused
+			if(huc!=null)
+			{
+				try
+				{
+					InputStream isError=huc.getErrorStream();
+					if(isError!=null) readFully(isError,-1);
+				}
+				catch(IOException ioe2)
+				{
+				}
+			}
+			throw new RemoteException("Error calling question engine at "+url,ioe);
+		}
+	}
+
+	/**
+	 * Reads and closes a stream.
+	 * @param is Stream
+	 * @param iLength Expected length or -1 if unknown
+	 * @return All data
+	 * @throws IOException Any error
+	 */
+	private static byte[] readFully(InputStream is,int iLength) throws IOException
+	{
+		try
+		{
+			ByteArrayOutputStream baos=new ByteArrayOutputStream(iLength>0 ? iLength : 8192);
+			byte[] abBuffer=new byte[8192];
+			while(true)
+			{
+				int iRead=is.read(abBuffer);
+				if(iRead==-1) break;
+				baos.write(abBuffer,0,iRead);
+			}
+			return baos.toByteArray();
+		}
+		finally
+		{
+			is.close();
+		}
+	}
+
+	public StartReturn start(String questionID,String questionVersion,
+		String questionBaseURL,String[] initialParamNames,String[] initialParamValues,
+		String[] cachedResources) throws RemoteException
+	{
+		try
+		{
+			Request r=new Request("start");
+			BinaryMessage.writeString(r.dos,questionID);
+			BinaryMessage.writeString(r.dos,questionVersion);
+			BinaryMessage.writeString(r.dos,questionBaseURL);
+			BinaryMessage.writeStrings(r.dos,initialParamNames);
+			BinaryMessage.writeStrings(r.dos,initialParamValues);
+			BinaryMessage.writeStrings(r.dos,cachedResources);
+			return readStartReturn(call(r));
+		}
+		catch(RemoteException re)
+		{
+			throw re;
+		}
+		catch(IOException ioe)
+		{
+			throw new RemoteException("Invalid response from question engine at "+url,ioe);
+		}
+	}
+
+	public void stop(String questionSession) throws RemoteException
+	{
+		try
+		{
+			Request r=new Request("stop");
+			BinaryMessage.writeString(r.dos,questionSession);
+			call(r);
+		}
+		catch(RemoteException re)
+		{
+			throw re;
+		}
+		catch(IOException ioe)
+		{
+			throw new RemoteException("Invalid response from question engine at "+url,ioe);
+		}
+	}
+
+	public ProcessReturn process(String questionSession,String[] names,String[] values)
+		throws RemoteException
+	{
+		try
+		{
+			Request r=new Request("process");
+			BinaryMessage.writeString(r.dos,questionSession);
+			BinaryMessage.writeStrings(r.dos,names);
+			BinaryMessage.writeStrings(r.dos,values);
+			return readProcessReturn(call(r));
+		}
+		catch(RemoteException re)
+		{
+			throw re;
+		}
+		catch(IOException ioe)
+		{
+			throw new RemoteException("Invalid response from question engine at "+url,ioe);
+		}
+	}
+
+	public String getEngineInfo() throws RemoteException
+	{
+		try
+		{
+			return BinaryMessage.readString(call(new Request("getEngineInfo")));
+		}
+		catch(RemoteException re)
+		{
+			throw re;
+		}
+		catch(IOException ioe)
+		{
+			throw new RemoteException("Invalid response from question engine at "+url,ioe);
+		}
+	}
+
+	public String getQuestionMetadata(String questionID,String questionVersion,
+		String questionBaseURL) throws RemoteException
+	{
+		try
+		{
+			Request r=new Request("getQuestionMetadata");
+			BinaryMessage.writeString(r.dos,questionID);
+			BinaryMessage.writeString(r.dos,questionVersion);
+			BinaryMessage.writeString(r.dos,questionBaseURL);
+			return BinaryMessage.readString(call(r));
+		}
+		catch(RemoteException re)
+		{
+			throw re;
+		}
+		catch(IOException ioe)
+		{
+			throw new RemoteException("Invalid response from question engine at "+url,ioe);
+		}
+	}
+
+	public String getQuestionsMetadata(String[] questionIDs,String[] questionVersions,
+		String questionBaseURL) throws RemoteException
+	{
+		try
+		{
+			Request r=new Request("getQuestionsMetadata");
+			BinaryMessage.writeStrings(r.dos,questionIDs);
+			BinaryMessage.writeStrings(r.dos,questionVersions);
+			BinaryMessage.writeString(r.dos,questionBaseURL);
+			return BinaryMessage.readString(call(r));
+		}
+		catch(RemoteException re)
+		{
+			throw re;
+		}
+		catch(IOException ioe)
+		{
+			throw new RemoteException("Invalid response from question engine at "+url,ioe);
+		}
+	}
+
+	public int prefetch(String[] questionIDs,String[] questionVersions,
+		String questionBaseURL,boolean instantiate) throws RemoteException
+	{
+		try
+		{
+			Request r=new Request("prefetch");
+			BinaryMessage.writeStrings(r.dos,questionIDs);
+			BinaryMessage.writeStrings(r.dos,questionVersions);
+			BinaryMessage.writeString(r.dos,questionBaseURL);
+			r.dos.writeBoolean(instantiate);
+			return call(r).readInt();
+		}
+		catch(RemoteException re)
+		{
+			throw re;
+		}
+		catch(IOException ioe)
+		{
+			throw new RemoteException("Invalid response from question engine at "+url,ioe);
+		}
+	}
+
+	public StartReturn replay(String questionID,String questionVersion,
+		String questionBaseURL,String[] initialParamNames,String[] initialParamValues,
+		String[] cachedResources,int actionCount,String[] actionSequence,
+		String[] names,String[] values) throws RemoteException
+	{
+		try
+		{
+			Request r=new Request("replay");
+			BinaryMessage.writeString(r.dos,questionID);
+			BinaryMessage.writeString(r.dos,questionVersion);
+			BinaryMessage.writeString(r.dos,questionBaseURL);
+			BinaryMessage.writeStrings(r.dos,initialParamNames);
+			BinaryMessage.writeStrings(r.dos,initialParamValues);
+			BinaryMessage.writeStrings(r.dos,cachedResources);
+			r.dos.writeInt(actionCount);
+			BinaryMessage.writeStrings(r.dos,actionSequence);
+			BinaryMessage.writeStrings(r.dos,names);
+			BinaryMessage.writeStrings(r.dos,values);
+			return readStartReturn(call(r));
+		}
+		catch(RemoteException re)
+		{
+			throw re;
+		}
+		catch(IOException ioe)
+		{
+			throw new RemoteException("Invalid response from question engine at "+url,ioe);
+		}
+	}
+
+	private static StartReturn readStartReturn(DataInputStream dis) throws IOException
+	{
+		StartReturn sr=new StartReturn();
+		sr.setQuestionSession(BinaryMessage.readString(dis));
+		sr.setXHTML(BinaryMessage.readString(dis));
+		sr.setCSS(BinaryMessage.readString(dis));
+		sr.setProgressInfo(BinaryMessage.readString(dis));
+		sr.setResources(readResources(dis));
+		return sr;
+	}
+
+	private static ProcessReturn readProcessReturn(DataInputStream dis) throws IOException
+	{
+		ProcessReturn pr=new ProcessReturn();
+		pr.setQuestionEnd(dis.readBoolean());
+		pr.setXHTML(BinaryMessage.readString(dis));
+		pr.setCSS(BinaryMessage.readString(dis));
+		pr.setProgressInfo(BinaryMessage.readString(dis));
+		pr.setResources(readResources(dis));
+		if(dis.readBoolean())
+		{
+			Results r=new Results();
+			r.setQuestionLine(BinaryMessage.readString(dis));
+			r.setAnswerLine(BinaryMessage.readString(dis));
+			r.setActionSummary(BinaryMessage.readString(dis));
+			r.setAttempts(dis.readInt());
+			Score[] as=new Score[readArrayCount(dis)];
+			for(int i=0;i<as.length;i++)
+			{
+				as[i]=new Score(BinaryMessage.readString(dis),dis.readInt());
+			}
+			r.setScores(as);
+			CustomResult[] acr=new CustomResult[readArrayCount(dis)];
+			for(int i=0;i<acr.length;i++)
+			{
+				acr[i]=new CustomResult(BinaryMessage.readString(dis),BinaryMessage.readString(dis));
+			}
+			r.setCustomResults(acr);
+			pr.setResults(r);
+		}
+		return pr;
+	}
+
+	/**
+	 * Reads the count of an array that the engine never sends as null.
+	 * @param dis Stream
+	 * @return Count (0 or more)
+	 * @throws IOException If the count is missing or marks a null array
+	 */
+	private static int readArrayCount(DataInputStream dis) throws IOException
+	{
+		int iCount=BinaryMessage.readCount(dis);
+		if(iCount==-1) throw new IOException("Unexpected null array in binary message");
+		return iCount;
+	}
+
+	private static Resource[] readResources(DataInputStream dis) throws IOException
+	{
+		int iCount=BinaryMessage.readCount(dis);
+		if(iCount==-1) return null;
+		Resource[] ar=new Resource[iCount];
+		for(int i=0;i<iCount;i++)
+		{
+			ar[i]=new Resource();
+			ar[i].setFilename(BinaryMessage.readString(dis));
+			ar[i].setMimeType(BinaryMessage.readString(dis));
+			ar[i].setEncoding(BinaryMessage.readString(dis));
+			ar[i].setContent(BinaryMessage.readBytes(dis));
+		}
+		return ar;
+	}
+}
@@ -0,0 +1,320 @@
+/* OpenMark online assessment system
+   Copyright (C) 2007 The Open University
+
+   This program is free software; you can redistribute it and/or
+   modify it under the terms of the GNU General Public License
+   as published by the Free Software Foundation; either version 2
+   of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software
+   Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package om.tnavigator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.*;
+
+import util.misc.HTTPS;
+import util.misc.IO;
+import util.misc.Strings;
+
+/**
+ * Sends forbid calls to the other navigators, so that a user who logs in here
+ * is dropped from any session they had on another server.
+ * <p>
+ * Each other navigator has one worker thread that sends its calls in turn,
+ * so a slow or dead server only delays its own calls and the JVM's keep-alive
+ * cache can reuse a connection to each server. Forbids waiting for the same
+ * user and test are merged. When a call fails, that server's calls wait for
+ * a back-off delay (doubling up to {@link #MAXBACKOFF}) and are retried until
+ * they are {@link #GIVEUP} old.
+ * <p>
+ * A forbid removes the user's session on the other server and locks them out
+ * there for a minute, so a late one could throw out a session they have since
+ * started legitimately. Forbids are therefore only sent while this server still
+ * holds the session that caused them, and are not retried for longer than
+ * that lock-out lasts.
+ */
+class ForbidDispatcher
+{
+	/** Connect and read timeout (ms) for forbid calls */
+	private final static int TIMEOUT=5000;
+
+	/** Maximum forbids waiting for one server; beyond this the oldest is dropped */
+	private final static int MAXPENDING=1000;
+
+	/** First and largest delay (ms) before retrying after a failure */
+	private final static long MINBACKOFF=1000,MAXBACKOFF=8*1000;
+
+	/**
+	 * Age (ms) after which a forbid that keeps failing is dropped; well inside
+	 * the minute for which a forbid locks the user out
+	 */
+	private final static long GIVEUP=30*1000;
+
+	/** Minimum time (ms) between log warnings for a server that keeps failing */
+	private final static long ERRORLOGDELAY=60*60*1000;
+
+	private Log l;
+
+	/** Sessions on this server, checked before each forbid is sent */
+	private UserSessionRegistry sessions;
+
+	private Peer[] ap;
+
+	/**
+	 * Starts a worker for each server.
+	 * @param asURL Base URLs of other navigators
+	 * @param sessions Sessions on this server
+	 * @param l Log for failures
+	 */
+	ForbidDispatcher(String[] asURL,UserSessionRegistry sessions,Log l)
+	{
+		this.sessions=sessions;
+		this.l=l;
+		ap=new Peer[asURL.length];
+		for(int i=0;i<asURL.length;i++)
+		{
+			ap[i]=new Peer(asURL[i]);
+		}
+	}
+
+	/**
+	 * Queues a forbid call to every other server. Returns at once.
+	 * @param sOUCUTest User and test, as used in the forbid URL
+	 * @param us Session here that the user just started
+	 */
+	void forbid(String sOUCUTest,UserSession us)
+	{
+		for(int i=0;i<ap.length;i++)
+		{
+			ap[i].add(sOUCUTest,us);
+		}
+	}
+
+	/** A forbid waiting to be sent */
+	private static class Pending
+	{
+		/** Session that caused it */
+		UserSession us;
+
+		/** Time it was first queued */
+		long lQueued;
+
+		Pending(UserSession us,long lQueued)
+		{
+			this.us=us;
+			this.lQueued=lQueued;
+		}
+	}
+
+	/** Stops the worker threads. Forbids still waiting are not sent. */
+	void close()
+	{
+		for(int i=0;i<ap.length;i++)
+		{
+			ap[i].close();
+		}
+	}
+
+	/** @return Description of each server's forbid calls for the status page */
+	String getInfo()
+	{
+		if(ap.length==0) return "No other navigators";
+		StringBuffer sb=new StringBuffer();
+		for(int i=0;i<ap.length;i++)
+		{
+			if(i>0) sb.append("; ");
+			sb.append(ap[i].getInfo());
+		}
+		return sb.toString();
+	}
+
+	/** Worker and figures for one other navigator */
+	private class Peer extends Thread
+	{
+		private String sURL;
+
+		/** Forbids waiting to be sent, in order */
+		private LinkedHashMap<String,Pending> mPending=new LinkedHashMap<String,Pending>();
+
+		/** Time before which nothing is sent after a failure (0 if none) */
+		private long lRetryTime;
+
+		/** Current back-off delay (0 after a success) */
+		private long lBackoff;
+
+		private boolean bClosed;
+
+		/** Figures for status page */
+		private long lSent,lFailed,lMerged,lDropped,lStale,lTotalTime,lMaxTime;
+
+		/** Time last failure was logged (0 if calls are working) */
+		private long lLastErrorLogged;
+
+		Peer(String sURL)
+		{
+			super("Forbid dispatcher: "+sURL);
+			this.sURL=sURL;
+			setDaemon(true);
+			start();
+		}
+
+		synchronized void add(String sOUCUTest,UserSession us)
+		{
+			Pending p=mPending.get(sOUCUTest);
+			if(p!=null)
+			{
+				// The newer login is the one to protect
+				p.us=us;
+				lMerged++;
+				return;
+			}
+			if(mPending.size()>=MAXPENDING)
+			{
+				Iterator<String> i=mPending.keySet().iterator();
+				i.next();
+				i.remove();
+				lDropped++;
+			}
+			mPending.put(sOUCUTest,new Pending(us,System.currentTimeMillis()));
+			notify();
+		}
+
+		synchronized void close()
+		{
+			bClosed=true;
+			notify();
+		}
+
+		@Override
+		public void run()
+		{
+			while(true)
+			{
+				String sOUCUTest;
+				Pending p;
+				synchronized(this)
+				{
+					while(true)
+					{
+						if(bClosed) return;
+						long lNow=System.currentTimeMillis();
+						if(!mPending.isEmpty() && lNow>=lRetryTime) break;
+						try
+						{
+							wait(mPending.isEmpty() ? 0 : lRetryTime-lNow);
+						}
+						catch(InterruptedException ie)
+						{
+							return;
+						}
+					}
+
+					// Take it off the queue while sending, so that a new login during
+					// the call gets its own forbid
+					Map.Entry<String,Pending> me=mPending.entrySet().iterator().next();
+					sOUCUTest=me.getKey();
+					p=me.getValue();
+					mPending.remove(sOUCUTest);
+				}
+
+				// Don't send if the session that caused it has gone (for example
+				// because the user has since logged on to another server)
+				if(!sessions.isCurrentUser(sOUCUTest,p.us))
+				{
+					synchronized(this)
+					{
+						lStale++;
+					}
+					continue;
+				}
+
+				long lStart=System.currentTimeMillis();
+				try
+				{
+					send(sOUCUTest);
+					long lTime=System.currentTimeMillis()-lStart;
+					boolean bWasFailing;
+					synchronized(this)
+					{
+						lSent++;
+						lTotalTime+=lTime;
+						lMaxTime=Math.max(lMaxTime,lTime);
+						lBackoff=0;
+						lRetryTime=0;
+						bWasFailing=lLastErrorLogged!=0;
+						lLastErrorLogged=0;
+					}
+					// Because we only display errors once per hour, better display the
+					// 'OK' state too if it was marked as error before
+					if(bWasFailing) l.logNormal("Forbids",sURL+": Forbid call OK now");
+				}
+				catch(IOException ioe)
+				{
+					long lNow=System.currentTimeMillis();
+					boolean bLog;
+					synchronized(this)
+					{
+						lFailed++;
+						if(lNow-p.lQueued>=GIVEUP)
+							lDropped++;
+						else if(!mPending.containsKey(sOUCUTest))
+							mPending.put(sOUCUTest,p);
+						lBackoff=Math.min(Math.max(lBackoff*2,MINBACKOFF),MAXBACKOFF);
+						lRetryTime=lNow+lBackoff;
+						bLog=lLastErrorLogged==0 || (lNow-lLastErrorLogged) > ERRORLOGDELAY;
+						if(bLog) lLastErrorLogged=lNow;
+					}
+					// Display an error once per hour if it's still erroring
+					if(bLog) l.logWarning("Forbids",sURL+": Forbid call failed",ioe);
+				}
+			}
+		}
+
+		/**
+		 * Makes one forbid call. The response is always read to the end so that
+		 * the connection can be reused.
+		 * @param sOUCUTest User and test
+		 * @throws IOException If the call fails
+		 */
+		private void send(String sOUCUTest) throws IOException
+		{
+			URL u=new URL(sURL+"!forbid/"+sOUCUTest);
+			HttpURLConnection huc=(HttpURLConnection)u.openConnection();
+			HTTPS.allowDifferentServerNames(huc);
+			HTTPS.considerCertificatesValid(huc);
+			huc.setConnectTimeout(TIMEOUT);
+			huc.setReadTimeout(TIMEOUT);
+
+			int iCode=huc.getResponseCode();
+			if(iCode!=HttpURLConnection.HTTP_OK)
+			{
+				InputStream isError=huc.getErrorStream();
+				if(isError!=null) IO.eat(isError);
+				throw new IOException("Error with navigator "+iCode);
+			}
+			IO.eat(huc.getInputStream());
+		}
+
+		synchronized String getInfo()
+		{
+			String sInfo=sURL+": "+mPending.size()+" waiting, "+lSent+" sent ("+
+				Strings.formatOneDecimal(lSent==0 ? 0.0 : (double)lTotalTime/lSent)+
+				" ms on average, "+lMaxTime+" ms most), "+lFailed+" failed, "+
+				lMerged+" merged, "+lStale+" no longer needed, "+lDropped+" dropped";
+			long lWait=lRetryTime-System.currentTimeMillis();
+			if(lWait>0) sInfo+=", retrying in "+((lWait+999)/1000)+" s";
+			return sInfo;
+		}
+	}
+}
@@ -0,0 +1,116 @@
+/* OpenMark online assessment system
+   Copyright (C) 2007 The Open University
+
+   This program is free software; you can redistribute it and/or
+   modify it under the terms of the GNU General Public License
+   as published by the Free Software Foundation; either version 2
+   of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software
+   Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package om.tnavigator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import javax.xml.soap.SOAPException;
+
+import org.apache.axis.AxisFault;
+import org.apache.axis.Message;
+import org.apache.axis.MessageContext;
+import org.apache.axis.handlers.BasicHandler;
+
+import util.misc.IO;
+
+/**
+ * Axis transport for SOAP calls to question engines that reuses connections.
+ * The standard Axis HTTP sender opens a new socket for every call; this one
+ * sends requests through HttpURLConnection, so the JVM's keep-alive cache
+ * holds idle connections to each engine and reuses them. Responses are
+ * always read to the end (including errors) so that the connection can go
+ * back into the cache.
+ */
+class KeepAliveHTTPSender extends BasicHandler
+{
+	private static final long serialVersionUID = 5758969424175855275L;
+
+	public void invoke(MessageContext mc) throws AxisFault
+	{
+		HttpURLConnection huc=null;
+		try
+		{
+			URL url=new URL(mc.getStrProp(MessageContext.TRANS_URL));
+			Message mRequest=mc.getRequestMessage();
+			ByteArrayOutputStream baos=new ByteArrayOutputStream();
+			mRequest.writeTo(baos);
+			byte[] abRequest=baos.toByteArray();
+
+			huc=(HttpURLConnection)url.openConnection();
+			huc.setConnectTimeout(mc.getTimeout());
+			huc.setReadTimeout(mc.getTimeout());
+			huc.setDoOutput(true);
+			huc.setRequestMethod("POST");
+			huc.setRequestProperty("Content-Type",
+				mRequest.getContentType(mc.getSOAPConstants()));
+			String sAction=mc.useSOAPAction() ? mc.getSOAPActionURI() : null;
+			huc.setRequestProperty("SOAPAction","\""+(sAction==null ? "" : sAction)+"\"");
+			huc.setFixedLengthStreamingMode(abRequest.length);
+			OutputStream os=huc.getOutputStream();
+			os.write(abRequest);
+			os.close();
+
+			int iCode=huc.getResponseCode();
+			String sContentType=huc.getContentType();
+			InputStream is=iCode>=400 ? huc.getErrorStream() : huc.getInputStream();
+			byte[] abResponse=is==null ? new byte[0] : IO.loadBytes(is);
+
+			// SOAP faults come back as 500 with an XML body; anything else that
+			// isn't 200 is a transport error
+			if(iCode!=HttpURLConnection.HTTP_OK && !(iCode==HttpURLConnection.HTTP_INTERNAL_ERROR
+				&& sContentType!=null && sContentType.indexOf("xml")!=-1))
+			{
+				throw AxisFault.makeFault(new IOException(
+					"HTTP error "+iCode+" ("+huc.getResponseMessage()+") from "+url));
+			}
+
+			Message mResponse=new Message(abResponse,false,sContentType,null);
+			mResponse.setMessageType(Message.RESPONSE);
+			mc.setResponseMessage(mResponse);
+		}
+		catch(AxisFault af)
+		{
+			throw af;
+		}
+		catch(SOAPException se)
+		{
+			throw AxisFault.makeFault(se);
+		}
+		catch(IOException ioe)
+		{
+			// Drain any error response so the connection can be reused
+			if(huc!=null)
+			{
+				try
+				{
+					InputStream isError=huc.getErrorStream();
+					if(isError!=null) IO.eat(isError);
+				}
+				catch(IOException ioe2)
+				{
+				}
+			}
+			throw AxisFault.makeFault(ioe);
+		}
+	}
+}
@@ -23,6 +23,7 @@ import java.net.InetAddress;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -36,6 +37,8 @@ import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
 import util.misc.Strings;
+import util.servicebalancer.SelectionStrategy;
+import util.servicebalancer.WeightedRandomStrategy;
 import util.xml.XML;
 
 /** Loads navigator configuration file. */
@@ -44,6 +47,30 @@ public class NavigatorConfig
 	/** Om services */
 	private URL[] omServices;
 
+	/** Maximum requests in progress to each Om service (0 = no limit) */
+	private int omMaxRequests;
+
+	/** Maximum time (ms) a request waits when an Om service is at its limit */
+	private int omQueueWait;
+
+	/** Name of strategy for choosing an Om service */
+	private String omStrategy;
+
+	/** Time (ms) between background checks of each Om service (0 = none) */
+	private int omProbeInterval;
+
+	/** True if each question should go to the same Om service where possible */
+	private boolean omAffinity;
+
+	/** Size (MB) of shared question resource store (0 = none) */
+	private int resourceStoreMegabytes=32;
+
+	/** Threads for asynchronous request handling (0 = handle on container threads) */
+	private int asyncThreads;
+
+	/** Maximum requests queued for an asynchronous request thread */
+	private int asyncQueue=1000;
+
 	/** URL of this navigator */
 	private URL thisTN;
 
@@ -238,6 +265,15 @@ public class NavigatorConfig
 		}
 		if(omServices.length==0) throw new IOException(
 			"navigator.xml: requires at leat one <url> inside <questionengines>");
+		omMaxRequests=getIntAttribute(eQE,"maxrequests",0);
+		omQueueWait=getIntAttribute(eQE,"queuewait",0);
+		omStrategy=eQE.hasAttribute("strategy")
+			? eQE.getAttribute("strategy").trim() : WeightedRandomStrategy.NAME;
+		omProbeInterval=getIntAttribute(eQE,"probeinterval",10000);
+		omAffinity="yes".equals(eQE.getAttribute("affinity"));
+		if(SelectionStrategy.create(omStrategy)==null) throw new IOException(
+			"navigator.xml: <questionengines strategy> must be one of: "+
+			Strings.join(", ",Arrays.asList(SelectionStrategy.NAMES)));
 
 		Element eTN=XML.getChild(eRoot,"testnavigators");
 		Element[] aeTN=XML.getChildren(eTN,"url");
@@ -263,6 +299,19 @@ public class NavigatorConfig
 			"navigator.xml: requires one <url this='yes'> inside <testnavigators>");
 		otherNavigators=lNavigators.toArray(new String[lNavigators.size()]);
 
+		if(XML.hasChild(eRoot,"resourcestore"))
+		{
+			resourceStoreMegabytes=getIntAttribute(
+				XML.getChild(eRoot,"resourcestore"),"megabytes",resourceStoreMegabytes);
+		}
+
+		if(XML.hasChild(eRoot,"asyncrequests"))
+		{
+			Element eAsync=XML.getChild(eRoot,"asyncrequests");
+			asyncThreads=getIntAttribute(eAsync,"threads",asyncThreads);
+			asyncQueue=getIntAttribute(eAsync,"queue",asyncQueue);
+		}
+
 		if(XML.hasChild(eRoot,"extrareports"))
 		{
 			extraReports=XML.getTextFromChildren(XML.getChild(eRoot,"extrareports"),"report");
@@ -351,6 +400,77 @@ public class NavigatorConfig
 		return omServices;
 	}
 
+	/** @return Maximum requests in progress to each question engine (0 = no limit) */
+	public int getOmMaxRequests()
+	{
+		return omMaxRequests;
+	}
+
+	/** @return Maximum time (ms) a request waits when a question engine is busy */
+	public int getOmQueueWait()
+	{
+		return omQueueWait;
+	}
+
+	/** @return Time (ms) between background checks of each question engine (0 = none) */
+	public int getOmProbeInterval()
+	{
+		return omProbeInterval;
+	}
+
+	/** @return True if each question should go to the same question engine where possible */
+	public boolean isOmAffinity()
+	{
+		return omAffinity;
+	}
+
+	/** @return Size (MB) of shared question resource store (0 = none) */
+	public int getResourceStoreMegabytes()
+	{
+		return resourceStoreMegabytes;
+	}
+
+	/** @return Threads for asynchronous request handling (0 = turned off) */
+	public int getAsyncThreads()
+	{
+		return asyncThreads;
+	}
+
+	/** @return Maximum requests queued for an asynchronous request thread */
+	public int getAsyncQueue()
+	{
+		return asyncQueue;
+	}
+
+	/** @return Name of strategy for choosing a question engine (see SelectionStrategy) */
+	public String getOmStrategy()
+	{
+		return omStrategy;
+	}
+
+	/**
+	 * Reads an optional non-negative integer attribute.
+	 * @param e Element
+	 * @param sName Attribute name
+	 * @param iDefault Value if attribute is not present
+	 * @return Value
+	 * @throws IOException If the attribute isn't a valid number
+	 */
+	private static int getIntAttribute(Element e,String sName,int iDefault) throws IOException
+	{
+		if(!e.hasAttribute(sName)) return iDefault;
+		try
+		{
+			int i=Integer.parseInt(e.getAttribute(sName).trim());
+			if(i>=0) return i;
+		}
+		catch(NumberFormatException nfe)
+		{
+		}
+		throw new IOException("navigator.xml: <"+e.getTagName()+" "+sName+
+			"> must be a whole number, 0 or more");
+	}
+
 	/** @return URLs (ending in /) of each other test navigator */
 	public String[] getOtherNavigators()
 	{
@@ -20,14 +20,23 @@ package om.tnavigator;
 import java.io.*;
 import java.net.*;
 import java.rmi.RemoteException;
+import java.security.MessageDigest;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.text.*;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import javax.mail.MessagingException;
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.*;
@@ -47,6 +56,7 @@ import org.apache.axis.AxisFault;
 import org.w3c.dom.*;
 
 import util.misc.*;
+import util.servicebalancer.SelectionStrategy;
 import util.xml.*;
 
 /** Om test navigator; implementation of the test delivery engine. */
@@ -93,14 +103,12 @@ public class NavigatorServlet extends HttpServlet
 	/** Question bank folder */
 	private File questionBankFolder;
 
-	/** Map of cookie value (String) -> UserSession */
-	private Map<String,UserSession> sessions=new HashMap<String,UserSession>();
+	/** Versions of questions in the question bank */
+	private QuestionBankIndex questionBankIndex;
 
-	/** Map of OUCU-testID (String) -> UserSession */
-	private Map<String,UserSession> usernames=new HashMap<String,UserSession>();
-
-	/** Map of OUCU-testID (String) -> Long (date that prohibition expires) */
-	private Map<String,Long> tempForbid=new HashMap<String,Long>();
+	/** User sessions, with the OUCU-testID and temp-forbid bookkeeping */
+	private UserSessionRegistry sessions=
+		new UserSessionRegistry(SESSIONEXPIRY,SESSIONCHECKDELAY);
 
 	// UNED: 22-02-2012 - dballestin - Changed access modifier of this field to protected so
 	//                                 it would be possible to access it from subclasses
@@ -111,6 +119,50 @@ public class NavigatorServlet extends HttpServlet
 
 	/** Load balancer for Om question engines */
 	private OmServiceBalancer osb;
+
+	/** Question resources shared between sessions (null if turned off) */
+	private ResourceStore resourceStore;
+
+	/** Parsed deploy and test definition files shared between sessions */
+	private TestCache testCache=new TestCache();
+
+	/** @return Parsed deploy and test definition files shared between sessions */
+	TestCache getTestCache() { return testCache; }
+
+	/** Shared files and navigator stylesheets, held in memory */
+	private StaticAssetCache staticAssets;
+
+	/** Threads that handle requests asynchronously (null if turned off) */
+	private MeteredExecutor requestExecutor;
+
+	/** Threads for background question engine calls (null if turned off) */
+	private MeteredExecutor engineExecutor;
+
+	/**
+	 * Deploy file date, by test ID, for which questions have been sent to the
+	 * question engines to warm up (one entry per test, replaced when the file
+	 * changes)
+	 */
+	private Map<String,Long> prefetchedDeployments=new HashMap<String,Long>();
+
+	/**
+	 * Runs question prefetches, always off the request thread (separate from
+	 * engineExecutor, which exists only if async requests are turned on)
+	 */
+	private ThreadPoolExecutor tpePrefetch=new ThreadPoolExecutor(
+		1,1,60L,TimeUnit.SECONDS,
+		new LinkedBlockingQueue<Runnable>(PREFETCHQUEUE),new ThreadFactory()
+		{
+			public Thread newThread(Runnable r)
+			{
+				Thread t=new Thread(r,"Om question prefetch");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+	/** Maximum number of deployments waiting to be prefetched */
+	private final static int PREFETCHQUEUE=100;
 	int checkOmServiceAvailable() throws RemoteException { return osb.checkAvailable(); }
 
 	/** Reports-handling code */
@@ -168,7 +220,24 @@ public class NavigatorServlet extends HttpServlet
 
 		try
 		{
-			osb=new OmServiceBalancer(nc.getOmServices(),l,nc.hasDebugFlag("log-balancer"));
+			osb=new OmServiceBalancer(nc.getOmServices(),l,nc.hasDebugFlag("log-balancer"),
+				nc.getOmMaxRequests(),nc.getOmQueueWait());
+			osb.setStrategy(SelectionStrategy.create(nc.getOmStrategy()));
+			osb.setAffinity(nc.isOmAffinity());
+			if(nc.getOmProbeInterval()>0) osb.startProbing(nc.getOmProbeInterval());
+			if(nc.getResourceStoreMegabytes()>0)
+			{
+				resourceStore=new ResourceStore(nc.getResourceStoreMegabytes()*1024L*1024L);
+				osb.setResourceStore(resourceStore);
+			}
+			if(nc.getAsyncThreads()>0)
+			{
+				requestExecutor=new MeteredExecutor("Navigator request",
+					nc.getAsyncThreads(),nc.getAsyncQueue());
+				engineExecutor=new MeteredExecutor("Navigator engine call",
+					nc.getAsyncThreads(),nc.getAsyncQueue());
+				osb.setExecutor(engineExecutor);
+			}
 		}
 		catch(ServiceException e)
 		{
@@ -177,8 +246,12 @@ public class NavigatorServlet extends HttpServlet
 
 		questionBankFolder=new File(
 			sc.getRealPath("questionbank"));
+		questionBankIndex=new QuestionBankIndex(questionBankFolder);
+		sc.setAttribute(QuestionBankIndex.class.getName(),questionBankIndex);
 
-		lastSessionKillerError=new long[nc.getOtherNavigators().length];
+		staticAssets=new StaticAssetCache(sc);
+
+		forbids=new ForbidDispatcher(nc.getOtherNavigators(),sessions,l);
 
 		String dbClass=nc.getDBClass();
 		String dbPrefix=nc.getDBPrefix();
@@ -230,6 +303,7 @@ public class NavigatorServlet extends HttpServlet
 			template=XML.parse(new File(sc.getRealPath("WEB-INF/templates/template.xhtml")));
 			singlesPlainTemplate=XML.parse(new File(sc.getRealPath("WEB-INF/templates/singlesplaintemplate.xhtml")));
 			singlesTemplate=XML.parse(new File(sc.getRealPath("WEB-INF/templates/singlestemplate.xhtml")));
+			compileTemplates();
 		}
 		catch(IOException ioe)
 		{
@@ -268,30 +342,8 @@ public class NavigatorServlet extends HttpServlet
 		@Override
 		protected void tick()
 		{
-			synchronized(sessions)
-			{
-				// See if any sessions need expiring
-				long lNow=System.currentTimeMillis();
-				long lExpiry=lNow - SESSIONEXPIRY;
-
-				for(Iterator<UserSession> i=sessions.values().iterator();i.hasNext();)
-				{
-					UserSession us=i.next();
-					if(us.getLastActionTime() < lExpiry)
-					{
-						i.remove();
-						usernames.remove(us.sCheckedOUCUKey);
-					}
-				}
-
-				for(Iterator<Long> i=tempForbid.values().iterator();i.hasNext();)
-				{
-					if(lNow > i.next())
-					{
-						i.remove();
-					}
-				}
-			}
+			// See if any sessions need expiring
+			sessions.expire(System.currentTimeMillis());
 		}
 	}
 
@@ -301,6 +353,22 @@ public class NavigatorServlet extends HttpServlet
 		// Kill expiry thread
 		sessionExpirer.close();
 
+		// Stop sending forbids
+		forbids.close();
+
+		// Finish requests in progress and background engine calls
+		if(requestExecutor!=null)
+		{
+			shutdownExecutor(requestExecutor);
+			shutdownExecutor(engineExecutor);
+		}
+
+		// Stop prefetching
+		tpePrefetch.shutdownNow();
+
+		// Stop checking question engines
+		osb.close();
+
 		// Close SAMS and kill their threads
 		auth.close();
 
@@ -316,18 +384,78 @@ public class NavigatorServlet extends HttpServlet
 		ShutdownManager.shutdown();
 	}
 
+	/** Time (ms) to wait for requests in progress when shutting down */
+	private final static int SHUTDOWNWAIT=30*1000;
+
+	/**
+	 * Stops a thread pool, waiting a while for tasks in progress to finish.
+	 * @param me Pool
+	 */
+	private void shutdownExecutor(MeteredExecutor me)
+	{
+		me.shutdown();
+		try
+		{
+			if(!me.awaitTermination(SHUTDOWNWAIT,TimeUnit.MILLISECONDS))
+			{
+				l.logWarning("Shutdown","Abandoned "+me.getActiveCount()+
+					" requests still in progress");
+			}
+		}
+		catch(InterruptedException ie)
+		{
+		}
+	}
+
 	@Override
 	protected void doGet(HttpServletRequest request,HttpServletResponse response)
 		throws ServletException,IOException
 	{
-		handle(false,request,response);
+		dispatch(false,request,response);
 	}
 
 	@Override
 	protected void doPost(HttpServletRequest request,HttpServletResponse response)
 		throws ServletException,IOException
 	{
-		handle(true,request,response);
+		dispatch(true,request,response);
+	}
+
+	/**
+	 * Handles a request on a request thread if asynchronous requests are
+	 * turned on (and the container supports them), releasing the container's
+	 * thread; otherwise handles it directly.
+	 * @param bPost True if POST
+	 * @param request Request
+	 * @param response Response
+	 */
+	private void dispatch(final boolean bPost,
+		HttpServletRequest request,HttpServletResponse response)
+	{
+		if(requestExecutor==null || !request.isAsyncSupported())
+		{
+			handle(bPost,request,response);
+			return;
+		}
+
+		final AsyncContext ac=request.startAsync(request,response);
+		// handle() always finishes the response, however long the engines take
+		ac.setTimeout(0);
+		requestExecutor.execute(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					handle(bPost,(HttpServletRequest)ac.getRequest(),
+						(HttpServletResponse)ac.getResponse());
+				}
+				finally
+				{
+					ac.complete();
+				}
+			}
+		});
 	}
 
 	/**
@@ -366,6 +494,7 @@ public class NavigatorServlet extends HttpServlet
 		// Realise the test for this student.
 		// Initialise test settings
 		us.realiseTest(sTestID, bFinished, randomSeed, fixedVariant);
+		prefetchQuestionMetadata(rt,us.getTestLeavesInOrder());
 
 		// If the test is finished, we allow them through even after the forbid date
 		// so they can see their results.
@@ -412,65 +541,8 @@ public class NavigatorServlet extends HttpServlet
 		}
 	}
 
-	/** Tracks when last error occurred while sending forbids to each other nav */
-	private long[] lastSessionKillerError;
-	private Object sessionKillerErrorSynch=new Object();
-
-	/** Thread used to 'kill' a session on other servers by sending forbid calls */
-	private class RemoteSessionKiller extends Thread
-	{
-		private String sOUCUTest;
-
-		RemoteSessionKiller(String sOUCUTest)
-		{
-			this.sOUCUTest=sOUCUTest;
-			start();
-		}
-
-		@Override
-		public void run()
-		{
-			String[] asURL=nc.getOtherNavigators();
-			for(int i=0;i<asURL.length;i++)
-			{
-				try
-				{
-					URL u=new URL(asURL[i]+"!forbid/"+sOUCUTest);
-					HttpURLConnection huc=(HttpURLConnection)u.openConnection();
-					HTTPS.allowDifferentServerNames(huc);
-					HTTPS.considerCertificatesValid(huc);
-
-					huc.connect();
-					if(huc.getResponseCode()!=HttpServletResponse.SC_OK)
-						throw new IOException("Error with navigator "+huc.getResponseCode());
-					IO.eat(huc.getInputStream());
-					if(lastSessionKillerError[i]!=0)
-					{
-						synchronized(sessionKillerErrorSynch)
-						{
-							lastSessionKillerError[i]=0;
-						}
-						// Because we only display errors once per hour, better display the
-						// 'OK' state too if it was marked as error before
-						l.logNormal("Forbids",asURL[i]+": Forbid call OK now");
-					}
-				}
-				catch(IOException ioe)
-				{
-					// Display an error once per hour if it's still erroring
-					long lNow=System.currentTimeMillis();
-					synchronized(sessionKillerErrorSynch)
-					{
-						if(lastSessionKillerError[i]==0 || (lNow - lastSessionKillerError[i]) > 60*60*1000)
-						{
-							l.logWarning("Forbids",asURL[i]+": Forbid call failed",ioe);
-							lastSessionKillerError[i]=lNow;
-						}
-					}
-				}
-			}
-		}
-	}
+	/** Sends forbid calls to other navigators when a user logs in here */
+	private ForbidDispatcher forbids;
 
 	/**
 	 * Obtains cookie based on its name.
@@ -490,17 +562,6 @@ public class NavigatorServlet extends HttpServlet
 		return null;
 	}
 
-	/**
-	 * List of NewSession objects that are stored to check we don't start a new
-	 * session twice in a row to same address (= cookies off)
-	 */
-	private LinkedList<NewSession> cookiesOffCheck=new LinkedList<NewSession>();
-	private static class NewSession
-	{
-		long lTime;
-		String sAddr;
-	}
-
 	/**
 	 * File that is included to put up a maintenance message during problem
 	 * periods.
@@ -723,65 +784,40 @@ public class NavigatorServlet extends HttpServlet
 			// redirect.
 			boolean bNewCookie=false,bTempForbid=false;
 			String sKillOtherSessions=null;
-			synchronized(sessions)
+
+			// Check whether they already have a session or not
+			us=sessions.get(sCookie);
+			if(us==null)
 			{
-				// Remove entries from cookies-off list after 1 second
-				while(!cookiesOffCheck.isEmpty() &&
-						rt.lStart - (cookiesOffCheck.getFirst()).lTime > 1000)
-				{
-					cookiesOffCheck.removeFirst();
-				}
+				// No session, need a new one
+				bNewCookie=true;
+			}
+			else if(us.iAuthHash!=0 && us.iAuthHash!=iAuthHash)
+			{
+				// If credentials change, they need a new session
+				sessions.remove(us);
+				bNewCookie=true;
+			}
 
-				// Check whether they already have a session or not
-				if(sCookie==null || !sessions.containsKey(sCookie))
-				{
-					// No session, need a new one
-					bNewCookie=true;
-				}
-				else
+			// New sessions!
+			if(bNewCookie)
+			{
+				// Check if we've already been redirected, and record this redirect
+				// so that we notice if it happens twice
+				if(sessions.noteNewSession(request.getRemoteAddr(),rt.lStart)
+					&& !"?restart".equals(sCommand))
 				{
-					// Get session
-					us=sessions.get(sCookie);
-
-					// Check cookies in case they changed
-					if(us.iAuthHash!=0 && us.iAuthHash!=iAuthHash)
-					{
-						// If credentials change, they need a new session
-						sessions.remove(sCookie);
-						bNewCookie=true;
+					if (null != us ? !us.isSingle() : false) {
+						sendError(null,request,response,HttpServletResponse.SC_FORBIDDEN,
+								false,
+								false,null, "Unable to create session cookie", "In order to use this website you must enable cookies in your browser settings.", null);
 					}
 				}
 
-				// New sessions!
-				if(bNewCookie)
+				do
 				{
-					String sAddr=request.getRemoteAddr();
-
-					// Check if we've already been redirected
-					for(NewSession ns : cookiesOffCheck)
-					{
-						if(ns.sAddr.equals(sAddr) && (!"?restart".equals(sCommand)))
-						{
-							if (null != us ? !us.isSingle() : false) {
-								sendError(null,request,response,HttpServletResponse.SC_FORBIDDEN,
-										false,
-										false,null, "Unable to create session cookie", "In order to use this website you must enable cookies in your browser settings.", null);
-							}
-						}
-					}
-
-					// Record this redirect so that we notice if it happens twice
-					NewSession ns=new NewSession();
-					ns.lTime=rt.lStart;
-					ns.sAddr=sAddr;
-					cookiesOffCheck.addLast(ns);
-
-					do
-					{
-						// Make 7-letter random cookie
-						sCookie = Strings.randomAlNumString(7);
-					}
-					while(sessions.containsKey(sCookie)); // And what are the chances of that?
+					// Make 7-letter random cookie
+					sCookie = Strings.randomAlNumString(7);
 
 					// UNED: 26-11-2012 - dballestin - Now we instantiate user session from 
 					//                                 a protected method so it can be possible to do 
@@ -790,56 +826,42 @@ public class NavigatorServlet extends HttpServlet
 					//                                 respect old behaviour (commented line).
 					//us=new UserSession(this, sCookie);
 					us=createUserSession(sCookie);
-					
-					sessions.put(sCookie,us);
-					// We do the actual redirect later on outside this synch
-
-					// At same time as creating new session, if they're logged in supposedly,
-					// check it's for real. If their cookie doesn't authenticated, this will
-					// cause the cookie to be removed and avoid multiple redirects.
-					if(sOUCU!=null)
-					{
-						if(!auth.getUserDetails(request,response,false).isLoggedIn())
-						{
-							// And we need to set this to zero to reflect that we just wiped
-							// their cookie.
-							iAuthHash=0;
-						}
-					}
 				}
+				while(!sessions.add(us)); // And what are the chances of that?
+				// We do the actual redirect later on
 
-				// If this is the first time we've had an OUCU for this session, check
-				// it to make sure we don't need to ditch any other sessions
-				if(us.sCheckedOUCUKey==null && sOUCU!=null)
+				// At same time as creating new session, if they're logged in supposedly,
+				// check it's for real. If their cookie doesn't authenticated, this will
+				// cause the cookie to be removed and avoid multiple redirects.
+				if(sOUCU!=null)
 				{
-					us.sCheckedOUCUKey=sOUCU+"-"+sTestID;
-
-					// Check the temp-forbid list
-					Long lTimeout=tempForbid.get(us.sCheckedOUCUKey);
-					if(lTimeout!=null && lTimeout.longValue() > System.currentTimeMillis())
+					if(!auth.getUserDetails(request,response,false).isLoggedIn())
 					{
-						// Kill session from main list & mark it to send error message later
-						sessions.remove(us.sCookie);
-						bTempForbid=true;
+						// And we need to set this to zero to reflect that we just wiped
+						// their cookie.
+						iAuthHash=0;
 					}
-					else
-					{
-						// If it was a timed-out forbid, get rid of it
-						if(lTimeout!=null) tempForbid.remove(us.sCheckedOUCUKey);
+				}
+			}
 
-						// Put this in the OUCU->session map
-						UserSession usOld=usernames.put(us.sCheckedOUCUKey,us);
-						// If there was one already there, get rid of it
-						if(usOld!=null)
-						{
-							sessions.remove(usOld.sCookie);
-						}
-						sKillOtherSessions=us.sCheckedOUCUKey;
-					}
+			// If this is the first time we've had an OUCU for this session, check
+			// it to make sure we don't need to ditch any other sessions
+			if(us.sCheckedOUCUKey==null && sOUCU!=null)
+			{
+				switch(sessions.setUser(us,sOUCU+"-"+sTestID))
+				{
+				case UserSessionRegistry.USER_SET:
+					sKillOtherSessions=us.sCheckedOUCUKey;
+					break;
+				case UserSessionRegistry.USER_FORBIDDEN:
+					// Session was removed; send error message later
+					bTempForbid=true;
+					break;
 				}
 			}
+
 			// If they started a session, tell other servers to kill that session (in thread)
-			if(sKillOtherSessions!=null)	new RemoteSessionKiller(sKillOtherSessions);
+			if(sKillOtherSessions!=null)	forbids.forbid(sKillOtherSessions,us);
 			// Error if forbidden
 			if(bTempForbid)
 			{
@@ -888,6 +910,7 @@ public class NavigatorServlet extends HttpServlet
 						else
 							throw oe;
 					}
+					prefetchQuestions(sTestID,us.getTestDeployment());
 
 					us.ud=auth.getUserDetails(request,response,!us.getTestDeployment().isWorldAccess());
 					if(us.ud==null)
@@ -895,7 +918,7 @@ public class NavigatorServlet extends HttpServlet
 						// They've been redirected to SAMS. Chuck their session as soon
 						// as expirer next runs, they won't be needing it as we didn't give
 						// them a cookie yet
-						us.markForDiscard();
+						sessions.discard(us);
 						return;
 					}
 
@@ -1263,6 +1286,7 @@ public class NavigatorServlet extends HttpServlet
 			int dbTi = oq.getInsertedSequenceID(dat,"tests","ti");
 			l.logDebug("TI = " + dbTi);
 			us.setDbTi(dbTi);
+			us.sSnapshot=SessionSnapshot.create(us.getTestLeavesInOrder());
 
 			for(int i=0;i<us.getTestLeavesInOrder().length;i++)
 			{
@@ -1314,7 +1338,11 @@ public class NavigatorServlet extends HttpServlet
 		// Stop existing question session if present
 		if(us.oss!=null)
 		{
-			us.oss.stop(rt);
+			// The user doesn't need to wait for the engine to stop the session
+			if(engineExecutor!=null)
+				us.oss.stopAsync(null);
+			else
+				us.oss.stop(rt);
 			us.oss=null;
 			us.mResources.clear();
 		}
@@ -1813,37 +1841,8 @@ public class NavigatorServlet extends HttpServlet
 	public QuestionVersion getLatestVersion(String sQuestionID,int iRequiredVersion)
 		throws OmException
 	{
-		// This should use a proper question bank at some point
-		Pattern p=Pattern.compile(sQuestionID+".([0-9]+).([0-9]+).jar");
-		QuestionVersion qv=new QuestionVersion();
-		boolean bFound=false;
-		File[] af=IO.listFiles(questionBankFolder);
-		for(int i=0;i<af.length;i++)
-		{
-			// See if it's the question we're looking for
-			Matcher m=p.matcher(af[i].getName());
-			if(!m.matches()) continue;
-
-			// Compare version
-			int
-				iMajor=Integer.parseInt(m.group(1)),
-				iMinor=Integer.parseInt(m.group(2));
-
-			if(
-				// Major version is better than before and either matches version or unspec
-				(iMajor > qv.iMajor && (iRequiredVersion==iMajor || iRequiredVersion==TestQuestion.VERSION_UNSPECIFIED))
-				||
-				// Same major version as before, better minor version
-				(iMajor == qv.iMajor && iMinor > qv.iMinor)
-				)
-			{
-				qv.iMajor=iMajor;
-				qv.iMinor=iMinor;
-				bFound=true;
-			}
-		}
-
-		if(!bFound)
+		QuestionVersion qv=questionBankIndex.getLatestVersion(sQuestionID,iRequiredVersion);
+		if(qv==null)
 		{
 			throw new OmException("Question file missing: "+sQuestionID+
 					(iRequiredVersion!=TestQuestion.VERSION_UNSPECIFIED ? " "+iRequiredVersion : ""));
@@ -1883,12 +1882,27 @@ public class NavigatorServlet extends HttpServlet
 
 	private StartReturn startQuestion(RequestTimings rt,HttpServletRequest request,UserSession us,TestQuestion tq, int iAttempt,int iMajor,int iMinor)
 		throws Exception
+	{
+		return startQuestion(rt,request,us,tq,iAttempt,iMajor,iMinor,0,null,null);
+	}
+
+	/**
+	 * Starts a question, optionally replaying earlier actions within the
+	 * question engine so that only the final state comes back.
+	 * @param iReplayActions Number of actions to replay (0 for none)
+	 * @param asReplaySequence Action number of each replayed name/value pair
+	 * @param pReplay Names and values of replayed actions
+	 */
+	private StartReturn startQuestion(RequestTimings rt,HttpServletRequest request,UserSession us,TestQuestion tq, int iAttempt,int iMajor,int iMinor,
+		int iReplayActions,String[] asReplaySequence,NameValuePairs pReplay)
+		throws Exception
 	{
 		// Question URL
 		String sQuestionBase=getQuestionBase();
 
 		// Determine version if not specified
 		QuestionVersion qv;
+		boolean bRecordVersion=false;
 		if(iMajor==0)
 		{
 			// Major=0 in two case: first, this is a fresh start not a replay;
@@ -1899,15 +1913,7 @@ public class NavigatorServlet extends HttpServlet
 			{
 				if(us.iDBqi==0 || qv.iMajor==0) throw new OmUnexpectedException(
 						"Unexpected data setting question versions ("+us.iDBqi+"): "+qv.iMajor);
-				DatabaseAccess.Transaction dat=da.newTransaction();
-				try
-				{
-					oq.updateSetQuestionVersion(dat,us.iDBqi,qv.iMajor,qv.iMinor);
-				}
-				finally
-				{
-					rt.lDatabaseElapsed+=dat.finish();
-				}
+				bRecordVersion=true;
 			}
 		}
 		else
@@ -1953,8 +1959,47 @@ public class NavigatorServlet extends HttpServlet
 				" with random seed " + randomSeed + ".");
 
 		// Start question
-		us.oss=osb.start(rt,
-			tq.getID(),qv.toString(),sQuestionBase,p.getNames(),p.getValues(),new String[0]);
+		if(iReplayActions>0)
+		{
+			us.oss=osb.replay(rt,
+				tq.getID(),qv.toString(),sQuestionBase,p.getNames(),p.getValues(),
+				iReplayActions,asReplaySequence,pReplay.getNames(),pReplay.getValues());
+		}
+		else
+		{
+			// Record the version in the database while the engine starts the
+			// question
+			Future<OmServiceBalancer.OmServiceSession> fStart=osb.startAsync(rt,
+				tq.getID(),qv.toString(),sQuestionBase,p.getNames(),p.getValues());
+			if(bRecordVersion)
+			{
+				try
+				{
+					DatabaseAccess.Transaction dat=da.newTransaction();
+					try
+					{
+						oq.updateSetQuestionVersion(dat,us.iDBqi,qv.iMajor,qv.iMinor);
+					}
+					finally
+					{
+						rt.lDatabaseElapsed+=dat.finish();
+					}
+				}
+				catch(Exception e)
+				{
+					// Don't leave the engine session running
+					try
+					{
+						getResult(fStart).stopAsync(null);
+					}
+					catch(Exception eStart)
+					{
+					}
+					throw e;
+				}
+			}
+			us.oss=getResult(fStart);
+		}
 		StartReturn sr=us.oss.eatStartReturn();
 
 		// Set question session
@@ -1970,6 +2015,7 @@ public class NavigatorServlet extends HttpServlet
 		// Set style
 		us.sCSS=sr.getCSS();
 		us.iCSSIndex=Math.abs(p.hashCode()); // Start with a value that depends on the params
+		us.iCSSIndex+=iReplayActions; // Replayed actions may have changed it
 		if(sr.getProgressInfo()!=null)
 			us.sProgressInfo=sr.getProgressInfo();
 
@@ -1981,6 +2027,83 @@ public class NavigatorServlet extends HttpServlet
 		return nc.getThisTN()+"!question";
 	}
 
+	/**
+	 * The first time a deployment (or a new version of its file) is loaded,
+	 * asks the question engines to warm up all the questions it might use, so
+	 * that students starting the test don't have to wait for them to be
+	 * downloaded and loaded. Runs in the background.
+	 * @param sTestID Test ID
+	 * @param td Deployment
+	 */
+	private void prefetchQuestions(final String sTestID,final TestDeployment td)
+	{
+		if(td==null) return;
+		Long lModified=pathForTestDeployment(sTestID).lastModified();
+		synchronized(prefetchedDeployments)
+		{
+			if(lModified.equals(prefetchedDeployments.put(sTestID,lModified))) return;
+		}
+
+		Runnable rPrefetch=new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					List<String> lIDs=new ArrayList<String>(),lVersions=new ArrayList<String>();
+					if(td.isSingleQuestion())
+					{
+						lIDs.add(td.getQuestion());
+						lVersions.add(getLatestVersion(td.getQuestion(),
+							TestQuestion.VERSION_UNSPECIFIED).toString());
+					}
+					else
+					{
+						Set<String> sSeen=new HashSet<String>();
+						for(TestQuestion tq : td.getTestDefinition().getAllQuestions())
+						{
+							try
+							{
+								String sVersion=getLatestVersion(tq.getID(),tq.getVersion()).toString();
+								if(!sSeen.add(tq.getID()+"."+sVersion)) continue;
+								lIDs.add(tq.getID());
+								lVersions.add(sVersion);
+							}
+							catch(OmException oe)
+							{
+								// Missing question; that'll be reported when it's used
+							}
+						}
+					}
+
+					int iEngines=osb.prefetch(null,
+						lIDs.toArray(new String[lIDs.size()]),
+						lVersions.toArray(new String[lVersions.size()]),
+						getQuestionBase(),true);
+					l.logDebug("Prefetch","Test "+sTestID+": sent "+lIDs.size()+
+						" questions to "+iEngines+" question engines");
+				}
+				catch(Throwable t)
+				{
+					l.logWarning("Prefetch","Test "+sTestID+": failed to prefetch questions",t);
+				}
+			}
+		};
+		try
+		{
+			tpePrefetch.execute(rPrefetch);
+		}
+		catch(RejectedExecutionException ree)
+		{
+			// Too many waiting; try again on a later request
+			synchronized(prefetchedDeployments)
+			{
+				prefetchedDeployments.remove(sTestID);
+			}
+			l.logWarning("Prefetch","Test "+sTestID+": prefetch queue full");
+		}
+	}
+
 	/**
 	 * Serves the final page - either information about their results, or
 	 * telling them that they aren't allowed to see it yet! Also includes
@@ -2319,6 +2442,81 @@ public class NavigatorServlet extends HttpServlet
 		return e;
 	}
 
+	/**
+	 * Makes sure metadata for a set of questions is in the cache, obtaining
+	 * any that are missing from the question engine in a single call rather
+	 * than one call per question. Failures are logged and otherwise ignored;
+	 * {@link #getQuestionMetadata(RequestTimings, String, String)} will try
+	 * again for each question as it is needed.
+	 * @param rt Timings
+	 * @param mVersions Map from question ID to version
+	 */
+	void prefetchQuestionMetadata(RequestTimings rt,Map<String,QuestionVersion> mVersions)
+	{
+		List<String> lIDs=new LinkedList<String>(),lVersions=new LinkedList<String>();
+		synchronized(questionMetadata)
+		{
+			for(Map.Entry<String,QuestionVersion> me : mVersions.entrySet())
+			{
+				String sVersion=me.getValue().toString();
+				if(!questionMetadata.containsKey(me.getKey()+"\n"+sVersion))
+				{
+					lIDs.add(me.getKey());
+					lVersions.add(sVersion);
+				}
+			}
+		}
+		if(lIDs.size()<2) return;
+
+		try
+		{
+			Element[] ae=XML.getChildren(XML.parse(osb.getQuestionsMetadata(rt,
+				lIDs.toArray(new String[lIDs.size()]),
+				lVersions.toArray(new String[lVersions.size()]),
+				getQuestionBase())).getDocumentElement(),"questionmetadata");
+			synchronized(questionMetadata)
+			{
+				for(int i=0;i<ae.length;i++)
+				{
+					if(ae[i].hasAttribute("error")) continue;
+					questionMetadata.put(
+						ae[i].getAttribute("id")+"\n"+ae[i].getAttribute("version"),ae[i]);
+				}
+			}
+		}
+		catch(Exception e)
+		{
+			l.logWarning("Metadata","Error obtaining metadata for "+lIDs.size()+
+				" questions at once",e);
+		}
+	}
+
+	/**
+	 * Obtains metadata for every question in a test realisation in one call
+	 * (see {@link #prefetchQuestionMetadata(RequestTimings, Map)}), using the
+	 * latest version of each.
+	 * @param rt Timings
+	 * @param atl Leaves of the realised test
+	 */
+	private void prefetchQuestionMetadata(RequestTimings rt,TestLeaf[] atl)
+	{
+		Map<String,QuestionVersion> mVersions=new HashMap<String,QuestionVersion>();
+		for(int i=0;i<atl.length;i++)
+		{
+			if(!(atl[i] instanceof TestQuestion)) continue;
+			TestQuestion tq=(TestQuestion)atl[i];
+			try
+			{
+				mVersions.put(tq.getID(),getLatestVersion(tq.getID(),tq.getVersion()));
+			}
+			catch(OmException oe)
+			{
+				// Missing question; this will be reported when it's used
+			}
+		}
+		prefetchQuestionMetadata(rt,mVersions);
+	}
+
 	private boolean worksInPlainMode(
 		RequestTimings rt,TestQuestion tq,HttpServletRequest request)
 		throws RemoteException,IOException,OmException
@@ -2411,48 +2609,28 @@ public class NavigatorServlet extends HttpServlet
 								us.iDBqi=rs.getInt(1); // Required in startQuestion
 								int iMaxSeq=rs.getInt(2); // May be null, but that's ok 'cause it returns 0
 
-								StartReturn sr=startQuestion(rt,request,us,tq, rs.getInt(4),rs.getInt(5),rs.getInt(6));
-								sXHTML=sr.getXHTML();
+								int iAttempt=rs.getInt(4),iMajor=rs.getInt(5),iMinor=rs.getInt(6);
 
 								// Get list of parameters
 								rs=oq.queryQuestionActionParams(dat,us.iDBqi);
 
-								NameValuePairs[] ap=new NameValuePairs[iMaxSeq+1];
-								boolean bValid=rs.next();
-								for(int iSeq=1;iSeq<=iMaxSeq;iSeq++)
+								List<String> lReplaySequence=new LinkedList<String>();
+								NameValuePairs pReplay=new NameValuePairs();
+								while(rs.next())
 								{
-									// Build parameter list
-									ap[iSeq]=new NameValuePairs();
-									while(bValid && rs.getInt(1)==iSeq)
-									{
-										ap[iSeq].add(rs.getString(2),rs.getString(3));
-										bValid=rs.next();
-									}
+									int iSeq=rs.getInt(1);
+									if(iSeq<1 || iSeq>iMaxSeq) continue;
+									lReplaySequence.add(iSeq+"");
+									pReplay.add(rs.getString(2),rs.getString(3));
 								}
 								rt.lDatabaseElapsed+=dat.finish();
 
-								// Loop around each sequenced event
-								for(int iSeq=1;iSeq<=iMaxSeq;iSeq++)
-								{
-									// Do process
-									ProcessReturn pr=us.oss.process(rt,
-										ap[iSeq].getNames(),ap[iSeq].getValues());
-
-									if(pr.isQuestionEnd())
-										throw new OmException("Unepected end of question in replay attempt");
-
-									// Apply changes to session
-									applySessionChanges(us,pr);
-
-									// Note: Any results that are sent are ignored, as presumably
-									// we already stored them.
-
-									// Get XHTML from last one
-									if(iSeq==iMaxSeq)
-									{
-										sXHTML=pr.getXHTML();
-									}
-								}
+								// Start the question and replay every sequenced event in
+								// the question engine. Any results that are sent are
+								// ignored, as presumably we already stored them.
+								StartReturn sr=startQuestion(rt,request,us,tq, iAttempt,iMajor,iMinor,
+									iMaxSeq,lReplaySequence.toArray(new String[0]),pReplay);
+								sXHTML=sr.getXHTML();
 								us.iDBseq=iMaxSeq+1;
 							}
 						}
@@ -2599,6 +2777,7 @@ public class NavigatorServlet extends HttpServlet
 				try
 				{
 					oq.insertInfoPage(dat,us.getDbTi(),us.getTestPosition());
+					updateSnapshot(dat,us);
 				}
 				finally
 				{
@@ -3076,6 +3255,9 @@ public class NavigatorServlet extends HttpServlet
 		try
 		{
 			oq.updateTestVariant(dat,us.getDbTi(),us.getFixedVariant());
+			// Pages may differ in the new variant, so restore from the detail tables
+			oq.updateSnapshot(dat,us.getDbTi(),null);
+			us.sSnapshot=null;
 		}
 		finally
 		{
@@ -3242,7 +3424,8 @@ public class NavigatorServlet extends HttpServlet
 		HttpServletRequest request,HttpServletResponse response,NameValuePairs p)
 		throws Exception
 	{
-		ProcessReturn pr=us.oss.process(rt,p.getNames(),p.getValues());
+		Future<ProcessReturn> fProcess=us.oss.processAsync(rt,p.getNames(),p.getValues());
+		ProcessReturn pr=null;
 
 		// Store details in database
 		TestQuestion tq=((TestQuestion)us.getTestLeavesInOrder()[us.getTestPosition()]);
@@ -3251,12 +3434,14 @@ public class NavigatorServlet extends HttpServlet
 			DatabaseAccess.Transaction dat=da.newTransaction();
 			try
 			{
-				// Add action and params
+				// Add action and params while the engine processes them; they are
+				// rolled back if the engine fails
 				oq.insertAction(dat,us.iDBqi,us.iDBseq);
 				for(int i=0;i<p.getNames().length;i++)
 				{
 					oq.insertParam(dat,us.iDBqi,us.iDBseq,p.getNames()[i],p.getValues()[i]);
 				}
+				pr=getResult(fProcess);
 				us.iDBseq++;
 
 				// Add results if any
@@ -3298,14 +3483,34 @@ public class NavigatorServlet extends HttpServlet
 				// Add end if any
 				if(pr.isQuestionEnd())
 				{
+					tq.setDone(true);
 					oq.updateQuestionFinished(dat,us.iDBqi,2);
 				}
+
+				if(tq.isDone()) updateSnapshot(dat,us);
 			}
 			finally
 			{
+				if(pr==null)
+				{
+					dat.rollback();
+
+					// Don't leave the engine call running on the session
+					try
+					{
+						fProcess.get();
+					}
+					catch(ExecutionException ee)
+					{
+					}
+				}
 				rt.lDatabaseElapsed+=dat.finish();
 			}
 		}
+		else
+		{
+			pr=getResult(fProcess);
+		}
 
 		if(pr.isQuestionEnd())
 		{
@@ -3536,6 +3741,7 @@ public class NavigatorServlet extends HttpServlet
 			int iTestVariant=-1;
 			int iPosition=-1;
 			String navigatorversion = "";
+			String sSnapshot=null;
 			if(rs.next())
 			{
 				iDBti=rs.getInt(1);
@@ -3545,6 +3751,7 @@ public class NavigatorServlet extends HttpServlet
 				if(rs.wasNull()) iTestVariant=-1;
 				iPosition=rs.getInt(5);
 				navigatorversion=rs.getString(6);
+				sSnapshot=rs.getString(7);
 			}
 
 			// No match? OK, return false
@@ -3559,8 +3766,14 @@ public class NavigatorServlet extends HttpServlet
 			us.setTestPosition(iPosition);
 			us.navigatorVersion = navigatorversion;
 
-			// Find out which question they're on
-			if(!us.isFinished())
+			// Find out which question they're on, from the stored snapshot if
+			// there is one that matches the test
+			if(!us.isFinished() &&
+				SessionSnapshot.apply(sSnapshot,us.getTestLeavesInOrder()))
+			{
+				us.sSnapshot=sSnapshot;
+			}
+			else if(!us.isFinished())
 			{
 				// Find out which questions they've done (counting either 'getting
 				// results' or 'question end')
@@ -3589,6 +3802,9 @@ public class NavigatorServlet extends HttpServlet
 					TestInfo ti=(TestInfo)us.getTestLeavesInOrder()[iIndex];
 					ti.setDone(true);
 				}
+
+				// Keep this as the base for later snapshot updates
+				us.sSnapshot=SessionSnapshot.create(us.getTestLeavesInOrder());
 			}
 		}
 		finally
@@ -3605,6 +3821,45 @@ public class NavigatorServlet extends HttpServlet
 		return true;
 	}
 
+	/**
+	 * Waits for a background question engine call.
+	 * @param f Future for the call
+	 * @return Result
+	 * @throws Exception The exception thrown by the call, or any error waiting
+	 */
+	private static <T> T getResult(Future<T> f) throws Exception
+	{
+		try
+		{
+			return f.get();
+		}
+		catch(ExecutionException ee)
+		{
+			if(ee.getCause() instanceof Exception) throw (Exception)ee.getCause();
+			throw new OmUnexpectedException(ee.getCause());
+		}
+	}
+
+	/**
+	 * Stores the done flag of the current page in the session snapshot, if
+	 * it has changed. Other pages keep the state last stored, so that the
+	 * snapshot records only what is also in the questions and infopages tables.
+	 * @param dat Transaction that records the change
+	 * @param us Session
+	 * @throws SQLException Any database error
+	 */
+	private void updateSnapshot(DatabaseAccess.Transaction dat,UserSession us)
+		throws SQLException
+	{
+		if(us.sSnapshot==null) return;
+		String sNew=SessionSnapshot.markDone(us.sSnapshot,
+			us.getTestLeavesInOrder(),us.getTestPosition());
+		if(sNew==us.sSnapshot) return;
+		// A snapshot that no longer matches the test is cleared, not kept
+		oq.updateSnapshot(dat,us.getDbTi(),sNew);
+		us.sSnapshot=sNew;
+	}
+
 	/**
 	 * If necessary, redirects user to the system check page. This is done only
 	 * once the system is actually ready to serve test content, in order to
@@ -3652,6 +3907,10 @@ public class NavigatorServlet extends HttpServlet
 		byte[] abQuestion=IO.loadBytes(new FileInputStream(file));
 		if (what.equals("question")) {
 			response.setContentType("application/x-openmark");
+			// Lets the question engine verify its download (header name must match
+			// om.qengine.OmService.QUESTIONDIGESTHEADER)
+			response.setHeader("X-OpenMark-SHA1",
+				Strings.byteArrayToHexString(MessageDigest.getInstance("SHA-1").digest(abQuestion)));
 		} else {
 			response.setContentType("application/xml");
 			response.setCharacterEncoding("UTF-8");
@@ -3692,25 +3951,18 @@ public class NavigatorServlet extends HttpServlet
 				false,false,null, "Forbidden", "You are not authorised to access this URL.", null);
 		}
 
-		synchronized(sessions)
-		{
-			// Ditch existing session
-			UserSession us=usernames.remove(sOucuTest);
-			if(us!=null) sessions.remove(us.sCookie);
-
-			// Forbid that user for 1 minute [this is intended to prevent the
-			// possibility of timing issues allowing a user to get logged on to both
-			// servers at once; should that happen, chances are they'll instead be
-			// *dumped* from both servers at once (for 60 seconds).
-			tempForbid.put(sOucuTest,System.currentTimeMillis() + 60000L);
+		// Ditch existing session and forbid that user for 1 minute [this is
+		// intended to prevent the possibility of timing issues allowing a user
+		// to get logged on to both servers at once; should that happen, chances
+		// are they'll instead be *dumped* from both servers at once (for 60 seconds).
+		sessions.forbid(sOucuTest,System.currentTimeMillis() + 60000L);
 
-			// Send response
-			response.setContentType("text/plain");
-			response.setCharacterEncoding("UTF-8");
-			Writer w=response.getWriter();
-			w.write("OK");
-			w.close();
-		}
+		// Send response
+		response.setContentType("text/plain");
+		response.setCharacterEncoding("UTF-8");
+		Writer w=response.getWriter();
+		w.write("OK");
+		w.close();
 	}
 
 	private void handleTestCookie(String suffix,HttpServletRequest request,HttpServletResponse response)
@@ -3826,147 +4078,33 @@ public class NavigatorServlet extends HttpServlet
 	private void handleShared(String sFile,HttpServletRequest request,HttpServletResponse response)
 		throws Exception
 	{
-		// Look in both the 'shared' and 'WEB-INF/shared' folders (allows for
-		// standard files that are replaced in update, plus extra files)
-		File
-			fUser=new File(getServletContext().getRealPath("shared/"+sFile)),
-			fInternal=new File(getServletContext().getRealPath("WEB-INF/shared/"+sFile));
-
-		// Pick one to use
-		File fActual=
-			(fUser.exists() ? fUser : (fInternal.exists() ? fInternal : null));
-		if(fActual==null)
+		if(!staticAssets.serveShared(sFile,request,response))
 		{
 			sendError(null,request,response,
 				HttpServletResponse.SC_NOT_FOUND,true,false, null, "Not found", "The requested resource is not present.", null);
 		}
-
-		// Handle If-Modified-Since
-		long lIfModifiedSince=request.getDateHeader("If-Modified-Since");
-		if(lIfModifiedSince!=-1)
-		{
-			if(fActual.lastModified() <= lIfModifiedSince)
-			{
-				response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
-				return;
-			}
-		}
-
-		// Set type and length
-		response.setContentType(MimeTypes.getMimeType(sFile));
-		response.setContentLength((int)fActual.length());
-
-		// Set last-modified, and expiry for 4 hours
-		response.addDateHeader("Last-Modified",fActual.lastModified());
-		response.addDateHeader("Expires",System.currentTimeMillis() + 4L*60L*60L*1000L);
-
-		// Send actual data
-		OutputStream os=response.getOutputStream();
-		IO.copy(new FileInputStream(fActual),os,true);
-	}
-
-	/** Used to remove CSS lines that have the FIXED comment at beginning */
-	private final static Pattern FIXEDCOLOURCSSLINE=Pattern.compile(
-		"^/\\*FIXED\\*/.*?$",Pattern.MULTILINE);
-
-	private static String navigatorCSS=null;
-
-	/**
-	 * Annoyingly the String replaceAll method doesn't support multi-line replace.
-	 * This does.
-	 * @param p Pattern (must have MULTILINE flag)
-	 * @param sSource Source string
-	 * @param sReplace Replacement text
-	 * @return Replaced content
-	 */
-	private static String multiLineReplace(Pattern p,String sSource,String sReplace)
-	{
-		Matcher m=p.matcher(sSource);
-		StringBuffer sb = new StringBuffer();
-		while (m.find())
-		{
-			m.appendReplacement(sb, "");
-		}
-		m.appendTail(sb);
-		return sb.toString();
 	}
 
 	private void handleNavigatorCSS(String sAccessBit,HttpServletRequest request,HttpServletResponse response)
 		throws Exception
 	{
-		// Get CSS
-		if(navigatorCSS==null)
-		{
-			navigatorCSS=IO.loadString(	new FileInputStream(new File(
-				getServletContext().getRealPath("WEB-INF/templates/navigator.css"))));
-		}
-
-		// Do replace
-		Map<String,String> mReplace=new HashMap<String,String>();
-		if(sAccessBit==null) // No accessibility
-		{
-			mReplace.put("FG","black");
-			mReplace.put("BG","white");
-		}
-		else
-		{
-			try
-			{
-				mReplace.put("FG","#"+sAccessBit.substring(0,6));
-				mReplace.put("BG","#"+sAccessBit.substring(6,12));
-			}
-			catch(IndexOutOfBoundsException ioobe)
-			{
-				mReplace.put("FG","black");
-				mReplace.put("BG","white");
-			}
-		}
-		String sCSS=XML.replaceTokens(navigatorCSS,"%%",mReplace);
-
-		// Get rid of fixed bits if it isn't fixed
-		if(sAccessBit==null)
-		{
-			sCSS=multiLineReplace(FIXEDCOLOURCSSLINE,sCSS,"");
-		}
-
-		byte[] abBytes=sCSS.getBytes("UTF-8");
-
-		// Set type and length
-		response.setContentType("text/css");
-		response.setCharacterEncoding("UTF-8");
-		response.setContentLength(abBytes.length);
-
-		// Set expiry for 4 hours
-		response.addDateHeader("Expires",System.currentTimeMillis() + 4L*60L*60L*1000L);
-
-		// Send actual data
-		OutputStream os=response.getOutputStream();
-		os.write(abBytes);
-		os.close();
+		staticAssets.serveNavigatorCSS(sAccessBit,request,response);
 	}
 
-
-	private void addAccessibilityClasses(Document d,HttpServletRequest request,
-		 String sInitialClass)
+	/**
+	 * @param request HTTP request
+	 * @return Class for the root element based on the accessibility cookie
+	 *   (zoom) and browser, or null if none
+	 */
+	private String getAccessibilityRootClass(HttpServletRequest request)
 	{
 		// Fix up accessibility details from cookie
 		String sAccessibility=getAccessibilityCookie(request);
 		String sRootClass="";
-		if(sInitialClass!=null)
-		{
-			try
-			{
-				XML.getChild(d.getDocumentElement(),"body").setAttribute("class",sInitialClass);
-			}
-			catch(XMLException e)
-			{
-				throw new OmUnexpectedException(e);
-			}
-		}
 
 		// If in plain mode, no CSS so don't need no steenking classes
 		boolean bPlain=sAccessibility.indexOf("[plain]")!=-1;
-		if(bPlain) return;
+		if(bPlain) return null;
 
 		// Zoom
 		Matcher m=ZOOMPATTERN.matcher(sAccessibility);
@@ -3986,12 +4124,100 @@ public class NavigatorServlet extends HttpServlet
 		sRootClass+=UserAgent.getBrowserString(request)+" ";
 
 		if(sRootClass.trim().length()>0)
-			d.getDocumentElement().setAttribute("class",sRootClass.trim());
+			return sRootClass.trim();
+		else
+			return null;
 	}
 
 	/** Cached template documents */
 	private Document plainTemplate,template,singlesPlainTemplate,singlesTemplate;
 
+	/** Test content page templates, compiled for each combination of options */
+	private Map<String,CompiledTemplate> compiledTemplates=new HashMap<String,CompiledTemplate>();
+
+	/** Elements in compiled templates that receive content for each page */
+	private final static String[] TEMPLATESLOTS={
+		"head","body","question","progress","progressPlain","buttons"};
+
+	/** Elements in compiled templates that may be left out */
+	private final static String[] TEMPLATEOPTIONAL={"progressinfo"};
+
+	/**
+	 * @param plainMode whether we are in plain mode.
+	 * @param singleQuestionMode whether we are in single question mode.
+	 * @param removeQuestionCss whether to remove the question stylesheet link.
+	 * @param navLocation NAVLOCATION_xx constant from TestDefinition
+	 * @return Key in compiledTemplates; options that make no difference to
+	 *   the template are ignored
+	 */
+	private static String getCompiledTemplateKey(boolean plainMode,
+		boolean singleQuestionMode,boolean removeQuestionCss,int navLocation)
+	{
+		if(plainMode) removeQuestionCss=false;
+		if(plainMode || singleQuestionMode) navLocation=TestDefinition.NAVLOCATION_BOTTOM;
+		return plainMode+"/"+singleQuestionMode+"/"+removeQuestionCss+"/"+navLocation;
+	}
+
+	/**
+	 * Compiles the test content page templates for every combination of
+	 * options, applying the changes that depend only on those options (question
+	 * stylesheet, navigation position, body class) so that pages can be
+	 * streamed without cloning the template.
+	 * @throws IOException Any error
+	 */
+	private void compileTemplates() throws IOException
+	{
+		int[] aiNavLocations={TestDefinition.NAVLOCATION_BOTTOM,
+			TestDefinition.NAVLOCATION_LEFT,TestDefinition.NAVLOCATION_WIDE};
+		boolean[] abOptions={false,true};
+		for(boolean plainMode : abOptions)
+		{
+			for(boolean singleQuestionMode : abOptions)
+			{
+				for(boolean removeQuestionCss : abOptions)
+				{
+					for(int navLocation : aiNavLocations)
+					{
+						String sKey=getCompiledTemplateKey(
+							plainMode,singleQuestionMode,removeQuestionCss,navLocation);
+						if(compiledTemplates.containsKey(sKey)) continue;
+
+						Document d=getTemplate(plainMode,singleQuestionMode,removeQuestionCss);
+						Element eBody=XML.getChild(d.getDocumentElement(),"body");
+						if(singleQuestionMode)
+						{
+							eBody.setAttribute("class","progressbottom singles");
+						}
+						else if(!plainMode)
+						{
+							if(navLocation==TestDefinition.NAVLOCATION_LEFT)
+							{
+								XML.remove(XML.find(d,"id","progressBottom"));
+								XML.find(d,"id","progressLeft").setAttribute("id","progress");
+								eBody.setAttribute("class","progressleft");
+							}
+							else
+							{
+								XML.remove(XML.find(d,"id","progressLeft"));
+								XML.find(d,"id","progressBottom").setAttribute("id","progress");
+								eBody.setAttribute("class",
+									navLocation==TestDefinition.NAVLOCATION_WIDE
+									? "progresswide" : "progressbottom");
+							}
+						}
+						if(!plainMode)
+						{
+							d.getDocumentElement().setAttribute("class","%%ROOTCLASS%%");
+						}
+
+						compiledTemplates.put(sKey,new CompiledTemplate(
+							d,"en",TEMPLATESLOTS,TEMPLATEOPTIONAL));
+					}
+				}
+			}
+		}
+	}
+
 	/**
 	 * @param request the reqiest we are responding to.
 	 * @return a bit that goes inthe navigator(here).css name depending on access cookie.
@@ -4030,11 +4256,9 @@ public class NavigatorServlet extends HttpServlet
 			Runtime.getRuntime().totalMemory()-Runtime.getRuntime().freeMemory());
 		m.put("MEMORY",sMemoryUsed);
 
-		synchronized(sessions)
-		{
-			m.put("SESSIONS",sessions.size()+"");
-			m.put("TEMPFORBIDS",tempForbid.size()+"");
-		}
+		m.put("SESSIONS",sessions.size()+"");
+		m.put("TEMPFORBIDS",sessions.getTempForbidCount()+"");
+		m.put("FORBIDCALLS",forbids.getInfo());
 
 		m.put("VERSION",OmVersion.getVersion());
 		m.put("BUILDDATE",OmVersion.getBuildDate());
@@ -4043,6 +4267,12 @@ public class NavigatorServlet extends HttpServlet
 
 		m.put("DBCONNECTIONS",da.getConnectionCount()+"");
 
+		m.put("RESOURCESTORE",resourceStore==null ? "Turned off" : resourceStore.getInfo());
+		m.put("TESTCACHE",testCache.getInfo());
+		m.put("STATICCACHE",staticAssets.getInfo());
+		m.put("ASYNCREQUESTS",requestExecutor==null ? "Turned off" : requestExecutor.getInfo());
+		m.put("ENGINECALLS",engineExecutor==null ? "Turned off" : engineExecutor.getInfo());
+
 		URL uThis=nc.getThisTN();
 		m.put("MACHINE",uThis.getHost().replaceAll(".open.ac.uk","")+uThis.getPath());
 
@@ -4073,9 +4303,12 @@ public class NavigatorServlet extends HttpServlet
 		
 		if(us.getFixedVariant()>=0) sAuxTitle+=" [variant "+us.getFixedVariant()+"]";
 
-		// Create basic template
-		Document d = getTemplate(plainMode, us.isSingle(), bClearCSS);
-		Map<String,Object> mReplace=new HashMap<String,Object>();
+		// Get precompiled template and fill in its tokens
+		int iNavLocation=us.getTestDefinition().getNavLocation();
+		CompiledTemplate ct=compiledTemplates.get(getCompiledTemplateKey(
+			plainMode,us.isSingle(),bClearCSS,iNavLocation));
+		Map<String,String> mReplace=new HashMap<String,String>();
+		Set<String> sOmit=new HashSet<String>();
 		if(us.isSingle() || sTitle.equals(us.getTestDefinition().getName()))
 			mReplace.put("TITLEBAR",sTitle);
 		else
@@ -4083,94 +4316,71 @@ public class NavigatorServlet extends HttpServlet
 		mReplace.put("CSSINDEX", ""+us.iCSSIndex);
 		mReplace.put("RESOURCES","resources/"+us.getTestPosition());
 		mReplace.put("ACCESS",getAccessCSSAppend(request));
+		mReplace.put("ROOTCLASS",getAccessibilityRootClass(request));
 
 		if(!us.isSingle())
 		{
-			// Tooltip stuff is only there for non-plain, non-single mode
+			// Tooltip stuff is only there for non-plain, non-single mode (null
+			// removes the title attribute)
 			if(!plainMode)
-			{
-				if(sTip!=null)
-					mReplace.put("TOOLTIP",sTip);
-				else
-					XML.find(d,"title","%%TOOLTIP%%").removeAttribute("title");
-			}
+				mReplace.put("TOOLTIP",sTip);
 
 			mReplace.put("TESTTITLE",us.getTestDefinition().getName());
 			mReplace.put("TITLE",sTitle);
 			mReplace.put("AUXTITLE",sAuxTitle);
 			if( (sProgressInfo==null || sProgressInfo.equals("") ))
 			{
-				XML.remove(XML.find(d,"id","progressinfo"));
+				sOmit.add("progressinfo");
 			}
 			else
 			{
 				mReplace.put("PROGRESSINFO",sProgressInfo);
 			}
 		}
-		XML.replaceTokens(d,mReplace);
+
+		// Parse question; its document is also used to build the other content
+		Document d=XML.parse(sXHTML);
+		Element eQuestion=d.getDocumentElement();
+		Map<String,Node> mSlots=new HashMap<String,Node>();
+		mSlots.put("question",eQuestion);
 
 		// If debug hack is on, do that
 		if(nc.hasDebugFlag("allow-hacks"))
 		{
 			if((new File("c:/hack.css")).exists())
 			{
-				Element eHead=XML.getChild(d.getDocumentElement(),"head");
-				Element eLink=XML.createChild(eHead,"link");
+				Element eLink=d.createElement("link");
 				eLink.setAttribute("rel","stylesheet");
 				eLink.setAttribute("type","text/css");
 				eLink.setAttribute("href","file:///c:/hack.css");
+				mSlots.put("head",eLink);
 			}
 			if((new File("c:/hack.js")).exists())
 			{
-				Element eBody=XML.getChild(d.getDocumentElement(),"body");
-				Element eLink=XML.createChild(eBody,"script");
+				Element eLink=d.createElement("script");
 				eLink.setAttribute("type","text/javascript");
 				eLink.setAttribute("src","file:///c:/hack.js");
+				mSlots.put("body",eLink);
 			}
 		}
 
-		// Get question top-level element and clone it into new document
-		Element eQuestion=(Element)d.importNode(XML.parse(sXHTML).getDocumentElement(),true);
-		Element questionDiv=XML.find(d,"id","question");
-		questionDiv.appendChild(eQuestion);
-
 		if(!us.isSingle())
 		{
 			// Build progress indicator
-			Element eProgress;
-			if(plainMode)
-			{
-				eProgress=XML.find(d,"id","progressPlain");
-			}
-			else if(us.getTestDefinition().getNavLocation()==TestDefinition.NAVLOCATION_LEFT)
-			{
-				XML.remove(XML.find(d,"id","progressBottom"));
-				eProgress=XML.find(d,"id","progressLeft");
-				eProgress.setAttribute("id","progress");
-				addAccessibilityClasses(d,request,"progressleft");
-			}
-			else
-			{
-				XML.remove(XML.find(d,"id","progressLeft"));
-				eProgress=XML.find(d,"id","progressBottom");
-				eProgress.setAttribute("id","progress");
-				if (us.getTestDefinition().getNavLocation()==TestDefinition.NAVLOCATION_WIDE) {
-					addAccessibilityClasses(d,request,"progresswide");
-				} else {
-					addAccessibilityClasses(d,request,"progressbottom");
-				}
-			}
+			DocumentFragment eProgress=d.createDocumentFragment();
+			mSlots.put(plainMode ? "progressPlain" : "progress",eProgress);
 
 			Element eCurrentSection=null;
 			String sCurrentSection=null;
 
-			// Div for the buttons section
-			Element eButtons=XML.find(d,"id","buttons");
+			// Content for the buttons section
+			DocumentFragment eButtons=d.createDocumentFragment();
+			mSlots.put("buttons",eButtons);
 			if(plainMode)
 			{
-				Element eH2=eButtons.getOwnerDocument().createElement("h2");
-				XML.createText(eH2,"Options");
-				eButtons.insertBefore(eH2,eButtons.getFirstChild());
+				DocumentFragment eButtonsStart=d.createDocumentFragment();
+				XML.createText(eButtonsStart,"h2","Options");
+				mSlots.put("buttons"+CompiledTemplate.SLOTSTART,eButtonsStart);
 			}
 
 			// Div for the main numbers section
@@ -4314,21 +4524,17 @@ public class NavigatorServlet extends HttpServlet
 				}
 			}
 		}
-		else
-		{
-			addAccessibilityClasses(d,request,"progressbottom singles");
-		}
 
 		// Fix up the replacement variables
-		mReplace=new HashMap<String,Object>(getLabelReplaceMap(us));
-		mReplace.put("RESOURCES","resources/"+us.getTestPosition());
-		mReplace.put("IDPREFIX","");
+		Map<String,String> mQuestionReplace=new HashMap<String,String>(getLabelReplaceMap(us));
+		mQuestionReplace.put("RESOURCES","resources/"+us.getTestPosition());
+		mQuestionReplace.put("IDPREFIX","");
 
-		XML.replaceTokens(eQuestion,mReplace);
+		XML.replaceTokens(eQuestion,mQuestionReplace);
 
 		// Whew! Now send to user
 		breakBack(request, response);
-		XHTML.output(d,request,response,"en");
+		ct.output(request,response,mReplace,mSlots,sOmit);
 	}
 
 	/**
@@ -4549,7 +4755,7 @@ public class NavigatorServlet extends HttpServlet
 					sessions.values().remove(us);
 				}
 				*/
-				throwAwaySession(request,response,sessions,us);
+				throwAwaySession(request,response,sessions.getSessions(),us);
 			}
 			if(sTestID==null) sTestID=us.getTestId();
 		}
@@ -4914,7 +5120,7 @@ public class NavigatorServlet extends HttpServlet
 	 */
 	protected Map<String,UserSession> getSessions()
 	{
-		return sessions;
+		return sessions.getSessions();
 	}
 	
 	// UNED: 28-09-2012 - dballestin
@@ -5065,9 +5271,8 @@ public class NavigatorServlet extends HttpServlet
 		Map<String,UserSession> sessions,UserSession us)
 	{
 		l.logDebug("Throwing away session.");
-		synchronized(sessions)
-		{
-			sessions.values().remove(us);
-		}
+		// Cookies are unique, so this only removes the session with this cookie
+		// if it is still this one
+		if(sessions.get(us.sCookie)==us) sessions.remove(us.sCookie);
 	}
 }
\ No newline at end of file
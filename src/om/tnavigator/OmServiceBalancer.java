@@ -19,13 +19,18 @@ package om.tnavigator;
 
 import java.net.URL;
 import java.rmi.RemoteException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 import javax.xml.rpc.ServiceException;
 
 import om.axis.qengine.*;
 import om.tnavigator.NavigatorServlet.RequestTimings;
 
+import org.apache.axis.EngineConfiguration;
+import org.apache.axis.SimpleTargetedChain;
 import org.apache.axis.client.Stub;
+import org.apache.axis.configuration.SimpleProvider;
 
 import util.servicebalancer.ServiceBalancer;
 
@@ -34,16 +39,47 @@ import util.servicebalancer.ServiceBalancer;
  * access.
  */
 class OmServiceBalancer extends ServiceBalancer<OmService> {
+	/** Axis client configuration that sends SOAP calls over kept-alive connections */
+	private final static EngineConfiguration KEEPALIVECONFIG;
+	static {
+		SimpleProvider sp = new SimpleProvider();
+		sp.deployTransport("http", new SimpleTargetedChain(new KeepAliveHTTPSender()));
+		KEEPALIVECONFIG = sp;
+	}
+
+	/** Shared resource store (null if not used) */
+	private ResourceStore rs;
+
 	/**
 	 * @param serviceUrls Array of available services
+	 * @param maxRequests Maximum requests in progress to each engine (0 = no limit)
+	 * @param queueWait Maximum time (ms) a request waits for a busy engine
+	 */
+	OmServiceBalancer(URL[] serviceUrls, Log l, boolean logExtraDebug,
+			int maxRequests, int queueWait) throws ServiceException {
+		super(serviceUrls, l, logExtraDebug, maxRequests, queueWait);
+	}
+
+	/**
+	 * Sets the store used to share question resources between sessions, and
+	 * to avoid engines resending resources the navigator already holds.
+	 * @param rs Store, or null for none
 	 */
-	OmServiceBalancer(URL[] serviceUrls, Log l, boolean logExtraDebug) throws ServiceException {
-		super(serviceUrls, l, logExtraDebug);
+	void setResourceStore(ResourceStore rs) {
+		this.rs = rs;
 	}
 
+	/**
+	 * Creates the client for an engine. URLs ending in
+	 * {@link BinaryOmService#PATH} use the binary protocol; others use SOAP.
+	 * Both reuse connections between calls.
+	 */
 	@Override
 	protected OmService createService(URL url) throws ServiceException {
-		OmServiceServiceLocator ossl = new OmServiceServiceLocator();
+		if (url.getPath().endsWith(BinaryOmService.PATH)) {
+			return new BinaryOmService(url, SOAPTIMEOUT);
+		}
+		OmServiceServiceLocator ossl = new OmServiceServiceLocator(KEEPALIVECONFIG);
 		OmService service = ossl.getOm(url);
 		((Stub)service).setTimeout(SOAPTIMEOUT);
 		return service;
@@ -65,12 +101,53 @@ class OmServiceBalancer extends ServiceBalancer<OmService> {
 		private String questionID;
 		private String questionVersion;
 
-		private OmServiceSession(OmService service, String questionID, String questionVersion, om.axis.qengine.StartReturn sr) {
+		/** Resources held by the navigator for this session (null if no store) */
+		private ResourceStore.Held held;
+
+		private OmServiceSession(OmService service, String questionID, String questionVersion,
+				om.axis.qengine.StartReturn sr, ResourceStore.Held held) throws RemoteException {
 			super(service);
-			srTemp = sr;
-			sQuestionSession = sr.getQuestionSession();
 			this.questionID = questionID;
 			this.questionVersion = questionVersion;
+			this.held = held;
+			srTemp = sr;
+			sQuestionSession = sr.getQuestionSession();
+		}
+
+		/**
+		 * Resolves the start resources once the balanced task has returned, so
+		 * that a missing resource isn't taken for an engine failure. If it
+		 * fails, the engine session is stopped rather than left running.
+		 * @param rt Timings
+		 * @return This session
+		 * @throws RemoteException If the engine left out a resource that isn't held
+		 */
+		private OmServiceSession resolveStart(RequestTimings rt) throws RemoteException {
+			try {
+				srTemp.setResources(resolveResources(srTemp.getResources()));
+			} catch (RemoteException re) {
+				try {
+					stop(rt);
+				} catch (RemoteException reStop) {
+					// Already failed; report the original error
+				}
+				throw re;
+			}
+			return this;
+		}
+
+		/**
+		 * Fills in resources left out by the engine, and swaps others for the
+		 * shared copies in the store.
+		 * @param ar Resources from engine
+		 * @return Resources to use
+		 * @throws RemoteException If the engine left out a resource that isn't held
+		 */
+		private Resource[] resolveResources(Resource[] ar) throws RemoteException {
+			if (held == null) {
+				return ar;
+			}
+			return rs.resolve(questionID, questionVersion, held, ar);
 		}
 
 		/**
@@ -99,6 +176,22 @@ class OmServiceBalancer extends ServiceBalancer<OmService> {
 			});
 		}
 
+		/**
+		 * Stops the question session in the background, so the caller needn't
+		 * wait for the engine. Failures are logged.
+		 * @param rt Timings, which the caller should not use until the
+		 *   future completes (may be null)
+		 * @return Future that completes when the engine has stopped the session
+		 */
+		Future<Object> stopAsync(final RequestTimings rt) {
+			return submit(new Callable<Object>() {
+				public Object call() throws RemoteException {
+					stop(rt);
+					return null;
+				}
+			});
+		}
+
 		/**
 		 * Processes another step of the question session.
 		 * @param rt Timings
@@ -109,12 +202,31 @@ class OmServiceBalancer extends ServiceBalancer<OmService> {
 		 */
 		ProcessReturn process(RequestTimings rt, final String[] names, final String[] values)
 				throws RemoteException {
-			return doServiceTask(rt, new ServiceTask<ProcessReturn>() {
+			ProcessReturn pr = doServiceTask(rt, new ServiceTask<ProcessReturn>() {
 				@Override
 				protected ProcessReturn run(OmService service) throws RemoteException {
 					return service.process(sQuestionSession,names,values);
 				}
 			});
+			pr.setResources(resolveResources(pr.getResources()));
+			return pr;
+		}
+
+		/**
+		 * Processes another step of the question session in the background.
+		 * @param rt Timings, which the caller should not use until the
+		 *   future completes
+		 * @param names Input parameters (names)
+		 * @param values Matching values
+		 * @return Future for information about new state of session
+		 */
+		Future<ProcessReturn> processAsync(final RequestTimings rt,
+				final String[] names, final String[] values) {
+			return submit(new Callable<ProcessReturn>() {
+				public ProcessReturn call() throws RemoteException {
+					return process(rt, names, values);
+				}
+			});
 		}
 
 		/**
@@ -134,7 +246,8 @@ class OmServiceBalancer extends ServiceBalancer<OmService> {
 
 	/**
 	 * Calls an OmService start method on an appropriate question engine (picked
-	 * from the load-balanced set based on performance). If the first question
+	 * from the load-balanced set based on performance, or based on the question
+	 * ID if affinity is turned on). If the first question
 	 * engine fails, others will be tried. If all fail, the last exception will
 	 * be thrown.
 	 * @param rt Timings for this request
@@ -143,25 +256,104 @@ class OmServiceBalancer extends ServiceBalancer<OmService> {
 	 * @param questionBaseURL Base URL to obtain question if needed
 	 * @param initialParamNames Parameters (names)
 	 * @param initialParamValues Parameters (values)
-	 * @param cachedResources List of cached resources (probably ignored)
 	 * @return Session that can be used to carry out further requests
 	 * @throws RemoteException If all question engines fail
 	 */
 	OmServiceSession start(
 			RequestTimings rt,
 			final String questionID, final String questionVersion, final String questionBaseURL,
-			final String[] initialParamNames, final String[] initialParamValues,
-			final String[] cachedResources) throws RemoteException {
-		return balanceServiceTask(rt, new ServiceTask<OmServiceSession>() {
+			final String[] initialParamNames, final String[] initialParamValues)
+			throws RemoteException {
+		final ResourceStore.Held held = getHeld(questionID, questionVersion);
+		return balanceServiceTask(rt, questionID, new ServiceTask<OmServiceSession>() {
 			@Override
 			public OmServiceSession run(OmService service) throws RemoteException {
 				return new OmServiceSession(service, questionID, questionVersion, 
 						service.start(questionID, questionVersion, questionBaseURL,
-								initialParamNames, initialParamValues, cachedResources));
+								initialParamNames, initialParamValues, getEntries(held)), held);
+			}
+		}).resolveStart(rt);
+	}
+
+	/**
+	 * Calls {@link #start(RequestTimings, String, String, String, String[], String[])}
+	 * in the background, so the caller can get on with other work (such as
+	 * database access) while the engine starts the question.
+	 * @param rt Timings, which the caller should not use until the future
+	 *   completes
+	 * @param questionID ID of question
+	 * @param questionVersion Version string for question
+	 * @param questionBaseURL Base URL to obtain question if needed
+	 * @param initialParamNames Parameters (names)
+	 * @param initialParamValues Parameters (values)
+	 * @return Future for the session
+	 */
+	Future<OmServiceSession> startAsync(
+			final RequestTimings rt,
+			final String questionID, final String questionVersion, final String questionBaseURL,
+			final String[] initialParamNames, final String[] initialParamValues) {
+		return submit(new Callable<OmServiceSession>() {
+			public OmServiceSession call() throws RemoteException {
+				return start(rt, questionID, questionVersion, questionBaseURL,
+						initialParamNames, initialParamValues);
 			}
 		});
 	}
 
+	/**
+	 * @param questionID ID of question
+	 * @param questionVersion Version string for question
+	 * @return Resources the navigator holds for the question (null if no store)
+	 */
+	private ResourceStore.Held getHeld(String questionID, String questionVersion) {
+		return rs == null ? null : rs.getHeld(questionID, questionVersion);
+	}
+
+	/**
+	 * @param held Held resources (may be null)
+	 * @return Value for the cachedResources parameter
+	 */
+	private static String[] getEntries(ResourceStore.Held held) {
+		return held == null ? new String[0] : held.getEntries();
+	}
+
+	/**
+	 * Calls OmService.replay on an appropriate question engine, which starts
+	 * a question and applies earlier actions to it in one call. Engines are
+	 * tried in the same way as for {@link #start(RequestTimings, String, String, String, String[], String[])}.
+	 * @param rt Timings for this request
+	 * @param questionID ID of question
+	 * @param questionVersion Version string for question
+	 * @param questionBaseURL Base URL to obtain question if needed
+	 * @param initialParamNames Parameters (names)
+	 * @param initialParamValues Parameters (values)
+	 * @param actionCount Number of actions
+	 * @param actionSequence Action number (1 to actionCount) of each name/value pair
+	 * @param names Action parameters (names)
+	 * @param values Action parameters (values)
+	 * @return Session that can be used to carry out further requests; its
+	 *   StartReturn describes the state after the last action
+	 * @throws RemoteException If all question engines fail
+	 */
+	OmServiceSession replay(
+			RequestTimings rt,
+			final String questionID, final String questionVersion, final String questionBaseURL,
+			final String[] initialParamNames, final String[] initialParamValues,
+			final int actionCount,
+			final String[] actionSequence, final String[] names, final String[] values)
+			throws RemoteException {
+		final ResourceStore.Held held = getHeld(questionID, questionVersion);
+		return balanceServiceTask(rt, questionID, new ServiceTask<OmServiceSession>() {
+			@Override
+			public OmServiceSession run(OmService service) throws RemoteException {
+				return new OmServiceSession(service, questionID, questionVersion,
+						service.replay(questionID, questionVersion, questionBaseURL,
+								initialParamNames, initialParamValues, getEntries(held),
+								actionCount, actionSequence, names, values), held);
+			}
+		}).resolveStart(rt);
+	}
+
 	/**
 	 * Calls the OmService.getQuestionMetadata method on a load-balanced service.
 	 * @param rt Timings
@@ -174,7 +366,7 @@ class OmServiceBalancer extends ServiceBalancer<OmService> {
 	public String getQuestionMetadata(RequestTimings rt,
 			final String questionID, final String questionVersion, final String questionBaseURL)
 			throws RemoteException {
-		return balanceServiceTask(rt,new ServiceTask<String>()
+		return balanceServiceTask(rt, questionID, new ServiceTask<String>()
 		{
 			@Override
 			public String run(OmService service) throws RemoteException {
@@ -183,6 +375,50 @@ class OmServiceBalancer extends ServiceBalancer<OmService> {
 		});
 	}
 
+	/**
+	 * Calls the OmService.getQuestionsMetadata method on a load-balanced
+	 * service, to obtain metadata for several questions in one round trip.
+	 * @param rt Timings
+	 * @param questionIDs IDs of questions
+	 * @param questionVersions Version strings for questions
+	 * @param questionBaseURL Base URL to obtain questions if needed
+	 * @return XML containing a questionmetadata element for each question
+	 * @throws RemoteException If all services fail
+	 */
+	String getQuestionsMetadata(RequestTimings rt,
+			final String[] questionIDs, final String[] questionVersions,
+			final String questionBaseURL) throws RemoteException {
+		return balanceServiceTask(rt, new ServiceTask<String>() {
+			@Override
+			public String run(OmService service) throws RemoteException {
+				return service.getQuestionsMetadata(questionIDs, questionVersions, questionBaseURL);
+			}
+		});
+	}
+
+	/**
+	 * Asks every question engine to warm up a set of questions (see
+	 * OmService.prefetch). The engines do the work in the background, so this
+	 * returns quickly.
+	 * @param rt Timings
+	 * @param questionIDs IDs of questions
+	 * @param questionVersions Version strings for questions
+	 * @param questionBaseURL Base URL to obtain questions if needed
+	 * @param instantiate If true, engines also initialise and discard an
+	 *   instance of each question
+	 * @return Number of engines that accepted the request
+	 */
+	int prefetch(RequestTimings rt,
+			final String[] questionIDs, final String[] questionVersions,
+			final String questionBaseURL, final boolean instantiate) {
+		return broadcastServiceTask(rt, new ServiceTask<Integer>() {
+			@Override
+			public Integer run(OmService service) throws RemoteException {
+				return service.prefetch(questionIDs, questionVersions, questionBaseURL, instantiate);
+			}
+		});
+	}
+
 	@Override
 	protected ServiceTask<String> getCheckTask() {
 		return new ServiceTask<String>() {
@@ -0,0 +1,172 @@
+/* OpenMark online assessment system
+   Copyright (C) 2007 The Open University
+
+   This program is free software; you can redistribute it and/or
+   modify it under the terms of the GNU General Public License
+   as published by the Free Software Foundation; either version 2
+   of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software
+   Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package om.tnavigator;
+
+import java.io.File;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.ServletContext;
+
+import om.tnavigator.NavigatorServlet.QuestionVersion;
+
+import util.misc.IO;
+
+/**
+ * Index of the question bank folder: for each question ID, the highest minor
+ * version of each major version available, so that finding the version to
+ * use doesn't mean listing the folder.
+ * <p>
+ * The index notices changes by checking the folder's modification time at
+ * most every {@link #CHECKDELAY} ms, and rebuilds itself when that changes.
+ * Code that changes the question bank can call {@link #refresh()} (or
+ * {@link #refresh(ServletContext)}) to make the change visible at once.
+ */
+public class QuestionBankIndex
+{
+	/** Minimum time (ms) between checks of the folder's modification time */
+	private final static int CHECKDELAY=2000;
+
+	/** Name of question jar files: ID, major version, minor version */
+	private final static Pattern JARNAME=Pattern.compile("(.+)\\.([0-9]+)\\.([0-9]+)\\.jar");
+
+	/** Question bank folder */
+	private File fFolder;
+
+	/** Map from question ID to (major version -> highest minor version); replaced, never changed */
+	private volatile Map<String,NavigableMap<Integer,Integer>> mVersions=
+		new HashMap<String,NavigableMap<Integer,Integer>>();
+
+	/** Folder modification time when the index was built */
+	private long lFolderModified;
+
+	/** Time of next check of the folder */
+	private volatile long lNextCheck;
+
+	/** True if the folder changed so recently that another change might not show */
+	private boolean bRecheck;
+
+	/**
+	 * Builds the index.
+	 * @param fFolder Question bank folder
+	 */
+	public QuestionBankIndex(File fFolder)
+	{
+		this.fFolder=fFolder;
+		refresh();
+	}
+
+	/**
+	 * Refreshes the index for a web application's navigator, if it has one.
+	 * @param sc Servlet context
+	 */
+	public static void refresh(ServletContext sc)
+	{
+		QuestionBankIndex qbi=(QuestionBankIndex)sc.getAttribute(QuestionBankIndex.class.getName());
+		if(qbi!=null) qbi.refresh();
+	}
+
+	/**
+	 * Rebuilds the index from the folder.
+	 */
+	public synchronized void refresh()
+	{
+		long lNow=System.currentTimeMillis();
+		long lModified=fFolder.lastModified();
+
+		Map<String,NavigableMap<Integer,Integer>> mNew=
+			new HashMap<String,NavigableMap<Integer,Integer>>();
+		File[] af=IO.listFiles(fFolder);
+		for(int i=0;i<af.length;i++)
+		{
+			Matcher m=JARNAME.matcher(af[i].getName());
+			if(!m.matches()) continue;
+			int
+				iMajor=Integer.parseInt(m.group(2)),
+				iMinor=Integer.parseInt(m.group(3));
+
+			NavigableMap<Integer,Integer> mMajors=mNew.get(m.group(1));
+			if(mMajors==null)
+			{
+				mMajors=new TreeMap<Integer,Integer>();
+				mNew.put(m.group(1),mMajors);
+			}
+			Integer iExisting=mMajors.get(iMajor);
+			if(iExisting==null || iExisting<iMinor) mMajors.put(iMajor,iMinor);
+		}
+
+		mVersions=mNew;
+		lFolderModified=lModified;
+		// Modification times can be as coarse as a second or two, so a change
+		// made just after this one might not alter the time; check again later
+		bRecheck=lNow-lModified < 2*CHECKDELAY;
+		lNextCheck=lNow+CHECKDELAY;
+	}
+
+	/**
+	 * Rebuilds the index if the folder has changed since it was built.
+	 */
+	private void check()
+	{
+		long lNow=System.currentTimeMillis();
+		if(lNow<lNextCheck) return;
+		synchronized(this)
+		{
+			if(lNow<lNextCheck) return;
+			if(bRecheck || fFolder.lastModified()!=lFolderModified)
+			{
+				refresh();
+			}
+			else
+			{
+				lNextCheck=lNow+CHECKDELAY;
+			}
+		}
+	}
+
+	/**
+	 * Returns appropriate version of question to use.
+	 * @param sQuestionID Question ID
+	 * @param iRequiredVersion Desired major version or
+	 *   TestQuestion.VERSION_UNSPECIFIED for the highest
+	 * @return Highest available version matching the requirement, or null if none
+	 */
+	public QuestionVersion getLatestVersion(String sQuestionID,int iRequiredVersion)
+	{
+		check();
+		NavigableMap<Integer,Integer> mMajors=mVersions.get(sQuestionID);
+		if(mMajors==null) return null;
+
+		QuestionVersion qv=new QuestionVersion();
+		if(iRequiredVersion==TestQuestion.VERSION_UNSPECIFIED)
+		{
+			Map.Entry<Integer,Integer> me=mMajors.lastEntry();
+			qv.iMajor=me.getKey();
+			qv.iMinor=me.getValue();
+		}
+		else
+		{
+			Integer iMinor=mMajors.get(iRequiredVersion);
+			if(iMinor==null) return null;
+			qv.iMajor=iRequiredVersion;
+			qv.iMinor=iMinor;
+		}
+		return qv;
+	}
+}
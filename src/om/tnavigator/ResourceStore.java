@@ -0,0 +1,242 @@
+/* OpenMark online assessment system
+   Copyright (C) 2007 The Open University
+
+   This program is free software; you can redistribute it and/or
+   modify it under the terms of the GNU General Public License
+   as published by the Free Software Foundation; either version 2
+   of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software
+   Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package om.tnavigator;
+
+import java.rmi.RemoteException;
+import java.util.*;
+
+import om.axis.qengine.Resource;
+import util.misc.ContentDigest;
+import util.misc.Strings;
+
+/**
+ * Store of question resources shared between all user sessions, keyed by a
+ * hash of their content. Sessions on the same question share one copy of
+ * each resource, and when a question is started the navigator tells the
+ * question engine which of that question's resources it already holds so
+ * that they aren't sent again (see {@link ContentDigest}).
+ * <p>
+ * The store is limited in size; when it is full, the least recently used
+ * resources are dropped from it (sessions still using them keep them).
+ */
+class ResourceStore
+{
+	/** Maximum total content size (bytes) */
+	private long lMaxBytes;
+
+	/** Current total content size (bytes) */
+	private long lBytes;
+
+	/** Map from digest to resource, least recently used first */
+	private LinkedHashMap<String,Entry> mEntries=new LinkedHashMap<String,Entry>(16,0.75f,true);
+
+	/** Map from question ID and version to (map from filename to latest digest) */
+	private Map<String,Map<String,String>> mQuestions=new HashMap<String,Map<String,String>>();
+
+	/** Statistics: resources (and bytes) received in full, and not resent */
+	private long lReceived,lReceivedBytes,lSaved,lSavedBytes;
+
+	/** A stored resource */
+	private static class Entry
+	{
+		Resource r;
+		String sDigest;
+	}
+
+	/**
+	 * Resources held for one question session. The session keeps this so
+	 * that the resources are available for all its calls even if they are
+	 * dropped from the store in the meantime.
+	 */
+	static class Held
+	{
+		/** Map from filename to resource */
+		private Map<String,Resource> mResources=new HashMap<String,Resource>();
+
+		/** Entries for the cachedResources parameter */
+		private String[] asEntries;
+
+		/** @return Entries for the cachedResources parameter of start */
+		String[] getEntries()
+		{
+			return asEntries;
+		}
+	}
+
+	/**
+	 * @param lMaxBytes Maximum total size of resource content (bytes)
+	 */
+	ResourceStore(long lMaxBytes)
+	{
+		this.lMaxBytes=lMaxBytes;
+	}
+
+	/**
+	 * @param sQuestionID Question ID
+	 * @param sVersion Question version
+	 * @return Key for question maps
+	 */
+	private static String getQuestionKey(String sQuestionID,String sVersion)
+	{
+		return sQuestionID+"\n"+sVersion;
+	}
+
+	/**
+	 * Finds resources held for a question, for starting a new session on it.
+	 * @param sQuestionID Question ID
+	 * @param sVersion Question version
+	 * @return Held resources (possibly none)
+	 */
+	synchronized Held getHeld(String sQuestionID,String sVersion)
+	{
+		Held h=new Held();
+		Map<String,String> mFiles=mQuestions.get(getQuestionKey(sQuestionID,sVersion));
+		List<String> lEntries=new ArrayList<String>();
+		if(mFiles!=null)
+		{
+			for(Iterator<Map.Entry<String,String>> i=mFiles.entrySet().iterator();i.hasNext();)
+			{
+				Map.Entry<String,String> me=i.next();
+				Entry e=mEntries.get(me.getValue());
+				if(e==null)
+				{
+					// Dropped from store
+					i.remove();
+					continue;
+				}
+				h.mResources.put(me.getKey(),withFilename(e.r,me.getKey()));
+				lEntries.add(ContentDigest.getEntry(e.sDigest,me.getKey()));
+			}
+		}
+		h.asEntries=lEntries.toArray(new String[lEntries.size()]);
+		return h;
+	}
+
+	/**
+	 * Processes resources returned by a question engine. Resources sent with
+	 * null content are filled in from the session's held resources; others
+	 * are added to the store, or replaced with the store's copy if it already
+	 * has the same content.
+	 * @param sQuestionID Question ID
+	 * @param sVersion Question version
+	 * @param h Resources held for the session
+	 * @param ar Resources from question engine (may be null)
+	 * @return Resources to use
+	 * @throws RemoteException If the engine left out a resource that isn't held
+	 */
+	Resource[] resolve(String sQuestionID,String sVersion,Held h,Resource[] ar)
+		throws RemoteException
+	{
+		if(ar==null) return null;
+
+		// Work out digests before locking, as this is the slow part
+		String[] asDigest=new String[ar.length];
+		for(int i=0;i<ar.length;i++)
+		{
+			if(ar[i].getContent()!=null)
+				asDigest[i]=ContentDigest.get(ar[i].getContent());
+			else if(!h.mResources.containsKey(ar[i].getFilename()))
+				throw new RemoteException(
+					"Question engine did not send resource: "+ar[i].getFilename());
+		}
+
+		Resource[] arResult=new Resource[ar.length];
+		synchronized(this)
+		{
+			Map<String,String> mFiles=null;
+			for(int i=0;i<ar.length;i++)
+			{
+				if(ar[i].getContent()==null)
+				{
+					arResult[i]=h.mResources.get(ar[i].getFilename());
+					lSaved++;
+					lSavedBytes+=arResult[i].getContent().length;
+					continue;
+				}
+
+				lReceived++;
+				lReceivedBytes+=ar[i].getContent().length;
+				String sDigest=asDigest[i];
+				Entry e=mEntries.get(sDigest);
+				if(e==null)
+				{
+					if(ar[i].getContent().length>lMaxBytes/10)
+					{
+						// Too big to be worth storing
+						arResult[i]=ar[i];
+						continue;
+					}
+					e=new Entry();
+					e.r=ar[i];
+					e.sDigest=sDigest;
+					mEntries.put(sDigest,e);
+					lBytes+=ar[i].getContent().length;
+					trim();
+				}
+				arResult[i]=withFilename(e.r,ar[i].getFilename());
+
+				if(mFiles==null)
+				{
+					String sKey=getQuestionKey(sQuestionID,sVersion);
+					mFiles=mQuestions.get(sKey);
+					if(mFiles==null)
+					{
+						mFiles=new HashMap<String,String>();
+						mQuestions.put(sKey,mFiles);
+					}
+				}
+				mFiles.put(ar[i].getFilename(),sDigest);
+			}
+		}
+		return arResult;
+	}
+
+	/**
+	 * @param r Stored resource
+	 * @param sFilename Filename needed
+	 * @return The stored resource, or if it has a different filename (the
+	 *   same content appears under two names), a copy that shares its content
+	 */
+	private static Resource withFilename(Resource r,String sFilename)
+	{
+		if(r.getFilename().equals(sFilename)) return r;
+		return new Resource(r.getContent(),r.getEncoding(),sFilename,r.getMimeType());
+	}
+
+	/** Drops least recently used resources until the store is within its size. */
+	private void trim()
+	{
+		for(Iterator<Entry> i=mEntries.values().iterator();lBytes>lMaxBytes && i.hasNext();)
+		{
+			lBytes-=i.next().r.getContent().length;
+			i.remove();
+		}
+	}
+
+	/** @return Description of store contents and savings for the status page */
+	synchronized String getInfo()
+	{
+		long lTotal=lReceived+lSaved;
+		return mEntries.size()+" resources, "+Strings.formatBytes(lBytes)+" of "+
+			Strings.formatBytes(lMaxBytes)+"; "+
+			(lTotal==0 ? "none requested yet" :
+				Strings.formatOneDecimal(lSaved*100.0/lTotal)+"% of resources ("+
+				Strings.formatBytes(lSavedBytes)+" of "+
+				Strings.formatBytes(lSavedBytes+lReceivedBytes)+") not resent");
+	}
+}
@@ -0,0 +1,144 @@
+/* OpenMark online assessment system
+   Copyright (C) 2007 The Open University
+
+   This program is free software; you can redistribute it and/or
+   modify it under the terms of the GNU General Public License
+   as published by the Free Software Foundation; either version 2
+   of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software
+   Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package om.tnavigator;
+
+import java.io.UnsupportedEncodingException;
+
+import om.OmUnexpectedException;
+import util.misc.ContentDigest;
+
+/**
+ * Compact record of which pages of a test attempt have been done, stored with
+ * the attempt so that a restarted or failover navigator can rebuild a session
+ * from the single tests-table lookup instead of querying the questions and
+ * infopages tables.
+ * <p>
+ * The snapshot starts with a short digest of the test's pages in order
+ * (question IDs, and a marker for each info page), followed by one character
+ * per page: 'q' or 'Q' for a question that is not done or done, 'i' or 'I'
+ * likewise for an info page. A snapshot whose digest no longer matches the
+ * realised test (for example because the test file was edited) is ignored
+ * rather than applied to the wrong pages.
+ */
+class SessionSnapshot
+{
+	/** Maximum length that fits in the database column */
+	final static int MAXLENGTH=4000;
+
+	/** Number of hex characters of the page digest kept */
+	private final static int DIGESTLENGTH=12;
+
+	/**
+	 * Builds a snapshot from the current done flags.
+	 * @param atl Test leaves in order
+	 * @return Snapshot, or null if the test is too long to store
+	 */
+	static String create(TestLeaf[] atl)
+	{
+		if(DIGESTLENGTH+atl.length>MAXLENGTH) return null;
+		StringBuffer sb=new StringBuffer(getDigest(atl));
+		for(int i=0;i<atl.length;i++)
+		{
+			sb.append(getChar(atl[i],atl[i].isDone()));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Returns a copy of a snapshot with one leaf marked done.
+	 * @param sSnapshot Existing snapshot
+	 * @param atl Test leaves in order
+	 * @param iIndex Index of leaf that is now done
+	 * @return New snapshot (the same string if already marked), or null if the
+	 *   existing snapshot does not match the test
+	 */
+	static String markDone(String sSnapshot,TestLeaf[] atl,int iIndex)
+	{
+		if(!matches(sSnapshot,atl)) return null;
+		char c=getChar(atl[iIndex],true);
+		int iPos=DIGESTLENGTH+iIndex;
+		if(sSnapshot.charAt(iPos)==c) return sSnapshot;
+		char[] ac=sSnapshot.toCharArray();
+		ac[iPos]=c;
+		return new String(ac);
+	}
+
+	/**
+	 * Marks leaves done according to a snapshot.
+	 * @param sSnapshot Snapshot from database (may be null)
+	 * @param atl Test leaves in order
+	 * @return True if the snapshot was applied, false if it was missing or
+	 *   does not match the test (in which case nothing is changed)
+	 */
+	static boolean apply(String sSnapshot,TestLeaf[] atl)
+	{
+		if(!matches(sSnapshot,atl)) return false;
+		for(int i=0;i<atl.length;i++)
+		{
+			if(!Character.isUpperCase(sSnapshot.charAt(DIGESTLENGTH+i))) continue;
+			if(atl[i] instanceof TestQuestion)
+				((TestQuestion)atl[i]).setDone(true);
+			else
+				((TestInfo)atl[i]).setDone(true);
+		}
+		return true;
+	}
+
+	private static boolean matches(String sSnapshot,TestLeaf[] atl)
+	{
+		if(sSnapshot==null || sSnapshot.length()!=DIGESTLENGTH+atl.length) return false;
+		if(!sSnapshot.startsWith(getDigest(atl))) return false;
+		for(int i=0;i<atl.length;i++)
+		{
+			if(Character.toLowerCase(sSnapshot.charAt(DIGESTLENGTH+i))!=getChar(atl[i],false))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @param atl Test leaves in order
+	 * @return Short digest of the question IDs and info pages, in order
+	 */
+	private static String getDigest(TestLeaf[] atl)
+	{
+		StringBuffer sb=new StringBuffer();
+		for(int i=0;i<atl.length;i++)
+		{
+			if(atl[i] instanceof TestQuestion)
+				sb.append("q:").append(((TestQuestion)atl[i]).getID());
+			else
+				sb.append("i");
+			sb.append('\n');
+		}
+		try
+		{
+			return ContentDigest.get(sb.toString().getBytes("UTF-8")).substring(0,DIGESTLENGTH);
+		}
+		catch(UnsupportedEncodingException e)
+		{
+			throw new OmUnexpectedException(e);
+		}
+	}
+
+	private static char getChar(TestLeaf tl,boolean bDone)
+	{
+		char c=(tl instanceof TestQuestion) ? 'q' : 'i';
+		return bDone ? Character.toUpperCase(c) : c;
+	}
+}
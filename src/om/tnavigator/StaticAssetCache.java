@@ -0,0 +1,382 @@
+/* OpenMark online assessment system
+   Copyright (C) 2007 The Open University
+
+   This program is free software; you can redistribute it and/or
+   modify it under the terms of the GNU General Public License
+   as published by the Free Software Foundation; either version 2
+   of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software
+   Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package om.tnavigator;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import util.misc.ContentDigest;
+import util.misc.IO;
+import util.misc.MimeTypes;
+import util.xml.XML;
+
+/**
+ * Cache of the navigator's static files (the !shared folders and each colour
+ * variant of navigator.css). Each file is kept in memory along with a
+ * gzipped copy (for text types) and strong ETags, so requests are answered
+ * without reading the disk, and requests with a matching If-None-Match get
+ * a 304 response.
+ * <p>
+ * Entries notice changes by checking their file's modification time and
+ * length at most every {@link #CHECKDELAY} ms. Large files are not cached
+ * and are sent from disk as before.
+ */
+class StaticAssetCache
+{
+	/** Minimum time (ms) between checks of a file's modification time */
+	private final static int CHECKDELAY=2000;
+
+	/** Largest file that is kept in memory (bytes) */
+	private final static int MAXCACHEDSIZE=512*1024;
+
+	/** Maximum number of navigator.css colour variants kept in memory */
+	private final static int MAXCSSVARIANTS=64;
+
+	/** Time (ms) that browsers may keep files without checking back */
+	private final static long EXPIRY=4L*60L*60L*1000L;
+
+	/** Used to remove CSS lines that have the FIXED comment at beginning */
+	private final static Pattern FIXEDCOLOURCSSLINE=Pattern.compile(
+		"^/\\*FIXED\\*/.*?$",Pattern.MULTILINE);
+
+	/** A cached file; never changed once in the cache, apart from the next check time */
+	private static class Asset
+	{
+		/** Source file */
+		File f;
+		/** Source file modification time and length when loaded */
+		long lModified,lLength;
+		/** Time of next check of the source file */
+		volatile long lNextCheck;
+
+		/** Content type and character set (null if none) */
+		String sContentType,sCharset;
+		/** Content and gzipped content (null if not worth compressing) */
+		byte[] abContent,abGzip;
+		/** ETags for content and gzipped content */
+		String sETag,sETagGzip;
+		/** True if responses should include Last-Modified */
+		boolean bLastModified;
+	}
+
+	/** Servlet context for finding files */
+	private ServletContext sc;
+
+	/** Map from path within !shared to file */
+	private ConcurrentMap<String,Asset> mShared=new ConcurrentHashMap<String,Asset>();
+
+	/** Map from colour pair (empty for no colours) to navigator.css variant */
+	private ConcurrentMap<String,Asset> mCSS=new ConcurrentHashMap<String,Asset>();
+
+	/** Statistics: responses from cache, 304 responses, and files loaded */
+	private AtomicLong alHits=new AtomicLong(),alNotModified=new AtomicLong(),
+		alLoads=new AtomicLong();
+
+	/**
+	 * @param sc Servlet context
+	 */
+	StaticAssetCache(ServletContext sc)
+	{
+		this.sc=sc;
+	}
+
+	/**
+	 * Finds a shared file. Looks in both the 'shared' and 'WEB-INF/shared'
+	 * folders (allows for standard files that are replaced in update, plus
+	 * extra files).
+	 * @param sFile Path within !shared
+	 * @return File, or null if it doesn't exist
+	 */
+	private File getSharedFile(String sFile)
+	{
+		File
+			fUser=new File(sc.getRealPath("shared/"+sFile)),
+			fInternal=new File(sc.getRealPath("WEB-INF/shared/"+sFile));
+		return fUser.exists() ? fUser : (fInternal.exists() ? fInternal : null);
+	}
+
+	/**
+	 * Serves a file from !shared.
+	 * @param sFile Path within !shared
+	 * @param request HTTP request
+	 * @param response HTTP response
+	 * @return False if the file doesn't exist (nothing is sent)
+	 * @throws IOException Any error
+	 */
+	boolean serveShared(String sFile,HttpServletRequest request,HttpServletResponse response)
+		throws IOException
+	{
+		Asset a=mShared.get(sFile);
+		if(a==null || (isDue(a) && !isUnchanged(a,getSharedFile(sFile))))
+		{
+			File f=getSharedFile(sFile);
+			if(f==null)
+			{
+				mShared.remove(sFile);
+				return false;
+			}
+			if(f.length()>MAXCACHEDSIZE)
+			{
+				mShared.remove(sFile);
+				sendFile(f,MimeTypes.getMimeType(sFile),request,response);
+				return true;
+			}
+
+			a=new Asset();
+			a.f=f;
+			a.lModified=f.lastModified();
+			a.lLength=f.length();
+			a.sContentType=MimeTypes.getMimeType(sFile);
+			a.bLastModified=true;
+			setContent(a,IO.loadBytes(new FileInputStream(f)));
+			mShared.put(sFile,a);
+		}
+		send(a,request,response);
+		return true;
+	}
+
+	/**
+	 * Serves navigator.css, with colours filled in.
+	 * @param sAccessBit Colour pair from the filename (12 hex digits), or null
+	 *   for the default colours
+	 * @param request HTTP request
+	 * @param response HTTP response
+	 * @throws IOException Any error
+	 */
+	void serveNavigatorCSS(String sAccessBit,HttpServletRequest request,HttpServletResponse response)
+		throws IOException
+	{
+		Map<String,String> mReplace=new HashMap<String,String>();
+		mReplace.put("FG","black");
+		mReplace.put("BG","white");
+		if(sAccessBit!=null && sAccessBit.length()>=12)
+		{
+			mReplace.put("FG","#"+sAccessBit.substring(0,6));
+			mReplace.put("BG","#"+sAccessBit.substring(6,12));
+		}
+		String sKey=sAccessBit==null ? "" : mReplace.get("FG")+mReplace.get("BG");
+
+		File f=new File(sc.getRealPath("WEB-INF/templates/navigator.css"));
+		Asset a=mCSS.get(sKey);
+		if(a==null || (isDue(a) && !isUnchanged(a,f)))
+		{
+			a=new Asset();
+			a.f=f;
+			a.lModified=f.lastModified();
+			a.lLength=f.length();
+			a.sContentType="text/css";
+			a.sCharset="UTF-8";
+
+			String sCSS=XML.replaceTokens(IO.loadString(new FileInputStream(f)),"%%",mReplace);
+
+			// Get rid of fixed bits if it isn't fixed
+			if(sAccessBit==null)
+			{
+				Matcher m=FIXEDCOLOURCSSLINE.matcher(sCSS);
+				sCSS=m.replaceAll("");
+			}
+			setContent(a,sCSS.getBytes("UTF-8"));
+
+			// Colours come from the URL, so don't let odd requests fill memory
+			if(mCSS.containsKey(sKey) || mCSS.size()<MAXCSSVARIANTS)
+				mCSS.put(sKey,a);
+		}
+		send(a,request,response);
+	}
+
+	/**
+	 * Sets content, compressed content and ETags.
+	 * @param a Asset
+	 * @param abContent Content
+	 * @throws IOException Any error
+	 */
+	private void setContent(Asset a,byte[] abContent) throws IOException
+	{
+		alLoads.incrementAndGet();
+		a.abContent=abContent;
+		a.sETag="\""+ContentDigest.get(abContent)+"\"";
+		a.sETagGzip="\""+ContentDigest.get(abContent)+"-gz\"";
+
+		if(a.sContentType.startsWith("text/") || a.sContentType.indexOf("javascript")!=-1
+			|| a.sContentType.indexOf("xml")!=-1)
+		{
+			ByteArrayOutputStream baos=new ByteArrayOutputStream();
+			GZIPOutputStream gos=new GZIPOutputStream(baos);
+			gos.write(abContent);
+			gos.close();
+			if(baos.size()<abContent.length) a.abGzip=baos.toByteArray();
+		}
+		a.lNextCheck=System.currentTimeMillis()+CHECKDELAY;
+	}
+
+	/**
+	 * @param a Asset
+	 * @return True if it's time to check the asset's file
+	 */
+	private static boolean isDue(Asset a)
+	{
+		return System.currentTimeMillis()>=a.lNextCheck;
+	}
+
+	/**
+	 * Checks whether an asset's file has changed, and if not, sets the time of
+	 * the next check.
+	 * @param a Asset
+	 * @param f File that would be used now (null if none)
+	 * @return True if the asset is still current
+	 */
+	private static boolean isUnchanged(Asset a,File f)
+	{
+		if(f==null || !f.equals(a.f) || f.lastModified()!=a.lModified || f.length()!=a.lLength)
+			return false;
+
+		// Modification times can be as coarse as a second or two, so a change
+		// made just after loading might not alter the time; reload until it's older
+		long lNow=System.currentTimeMillis();
+		if(lNow-a.lModified < 2*CHECKDELAY) return false;
+
+		a.lNextCheck=lNow+CHECKDELAY;
+		return true;
+	}
+
+	/**
+	 * Sends an asset, or a 304 response if the browser already has it.
+	 * @param a Asset
+	 * @param request HTTP request
+	 * @param response HTTP response
+	 * @throws IOException Any error
+	 */
+	private void send(Asset a,HttpServletRequest request,HttpServletResponse response)
+		throws IOException
+	{
+		alHits.incrementAndGet();
+		boolean bGzip=a.abGzip!=null && acceptsGzip(request);
+		String sETag=bGzip ? a.sETagGzip : a.sETag;
+
+		if(a.abGzip!=null) response.setHeader("Vary","Accept-Encoding");
+		response.setHeader("ETag",sETag);
+		if(a.bLastModified) response.addDateHeader("Last-Modified",a.lModified);
+		response.addDateHeader("Expires",System.currentTimeMillis() + EXPIRY);
+
+		// If-None-Match takes precedence over If-Modified-Since
+		String sIfNoneMatch=request.getHeader("If-None-Match");
+		long lIfModifiedSince=request.getDateHeader("If-Modified-Since");
+		if(sIfNoneMatch!=null ? matchesETag(sIfNoneMatch,sETag)
+			: (a.bLastModified && lIfModifiedSince!=-1 && a.lModified<=lIfModifiedSince))
+		{
+			alNotModified.incrementAndGet();
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+
+		// Set type and length
+		response.setContentType(a.sContentType);
+		if(a.sCharset!=null) response.setCharacterEncoding(a.sCharset);
+		byte[] abData=bGzip ? a.abGzip : a.abContent;
+		if(bGzip) response.setHeader("Content-Encoding","gzip");
+		response.setContentLength(abData.length);
+
+		// Send actual data
+		OutputStream os=response.getOutputStream();
+		os.write(abData);
+		os.close();
+	}
+
+	/**
+	 * Sends a file that is too big to cache straight from disk.
+	 * @param f File
+	 * @param sContentType Content type
+	 * @param request HTTP request
+	 * @param response HTTP response
+	 * @throws IOException Any error
+	 */
+	private static void sendFile(File f,String sContentType,
+		HttpServletRequest request,HttpServletResponse response) throws IOException
+	{
+		// Handle If-Modified-Since
+		long lIfModifiedSince=request.getDateHeader("If-Modified-Since");
+		if(lIfModifiedSince!=-1 && f.lastModified() <= lIfModifiedSince)
+		{
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+
+		// Set type and length
+		response.setContentType(sContentType);
+		response.setContentLength((int)f.length());
+
+		// Set last-modified, and expiry for 4 hours
+		response.addDateHeader("Last-Modified",f.lastModified());
+		response.addDateHeader("Expires",System.currentTimeMillis() + EXPIRY);
+
+		// Send actual data
+		IO.copy(new FileInputStream(f),response.getOutputStream(),true);
+	}
+
+	/**
+	 * @param sIfNoneMatch If-None-Match header
+	 * @param sETag Current ETag
+	 * @return True if the header lists the ETag (or *)
+	 */
+	private static boolean matchesETag(String sIfNoneMatch,String sETag)
+	{
+		String[] asTags=sIfNoneMatch.split(",");
+		for(int i=0;i<asTags.length;i++)
+		{
+			String sTag=asTags[i].trim();
+			if(sTag.equals(sETag) || sTag.equals("*")) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @param request HTTP request
+	 * @return True if the Accept-Encoding header allows gzip
+	 */
+	private static boolean acceptsGzip(HttpServletRequest request)
+	{
+		String sAccept=request.getHeader("Accept-Encoding");
+		if(sAccept==null) return false;
+		String[] asCodings=sAccept.split(",");
+		for(int i=0;i<asCodings.length;i++)
+		{
+			String[] asParts=asCodings[i].split(";");
+			if(!asParts[0].trim().equalsIgnoreCase("gzip")) continue;
+			return !(asParts.length>1 && asParts[1].trim().matches("q=0(\\.0*)?"));
+		}
+		return false;
+	}
+
+	/** @return Summary for status page */
+	String getInfo()
+	{
+		return mShared.size()+" shared files, "+mCSS.size()+" stylesheets; "+
+			alHits.get()+" sent from cache ("+alNotModified.get()+" not modified), "+
+			alLoads.get()+" loaded";
+	}
+}
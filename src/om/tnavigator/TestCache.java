@@ -0,0 +1,193 @@
+/* OpenMark online assessment system
+   Copyright (C) 2007 The Open University
+
+   This program is free software; you can redistribute it and/or
+   modify it under the terms of the GNU General Public License
+   as published by the Free Software Foundation; either version 2
+   of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software
+   Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package om.tnavigator;
+
+import java.io.File;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import om.OmException;
+import om.OmUnexpectedException;
+
+import org.w3c.dom.*;
+
+/**
+ * Navigator-wide cache of parsed deploy and test definition files, so that
+ * sessions on the same test share one copy instead of each parsing the files.
+ * Entries are keyed by path and checked against the file's modification time
+ * and length on each request, so edited files are parsed again. If several
+ * requests want the same file at once, only one parses it.
+ * <p>
+ * Cached {@link TestDeployment} and {@link TestDefinition} objects don't
+ * change after construction, so they may be used from any number of threads.
+ */
+class TestCache
+{
+	/** Deploy files by path */
+	private ConcurrentMap<String,Entry<TestDeployment>> mDeployments=
+		new ConcurrentHashMap<String,Entry<TestDeployment>>();
+
+	/** Test definition files by path */
+	private ConcurrentMap<String,Entry<TestDefinition>> mDefinitions=
+		new ConcurrentHashMap<String,Entry<TestDefinition>>();
+
+	/** Number of requests that used a cached copy, and that parsed the file */
+	private AtomicLong alHits=new AtomicLong(),alParses=new AtomicLong();
+
+	/** A parsed file (or one being parsed) */
+	private static class Entry<T>
+	{
+		long lModified,lLength;
+		FutureTask<T> ft;
+
+		Entry(File f,Callable<T> c)
+		{
+			lModified=f.lastModified();
+			lLength=f.length();
+			ft=new FutureTask<T>(c);
+		}
+
+		boolean isCurrent(File f)
+		{
+			return f.lastModified()==lModified && f.length()==lLength;
+		}
+	}
+
+	/**
+	 * @param f Deploy file
+	 * @return Parsed deployment (shared)
+	 * @throws OmException If the file can't be loaded or is invalid
+	 */
+	TestDeployment getDeployment(final File f) throws OmException
+	{
+		return get(mDeployments,f,new Callable<TestDeployment>()
+		{
+			public TestDeployment call() throws OmException
+			{
+				TestDeployment td=new TestDeployment(f,TestCache.this);
+				expand(td.getDeploy());
+				return td;
+			}
+		});
+	}
+
+	/**
+	 * @param f Test definition file
+	 * @return Parsed definition (shared)
+	 * @throws OmException If the file can't be loaded or is invalid
+	 */
+	TestDefinition getDefinition(final File f) throws OmException
+	{
+		return get(mDefinitions,f,new Callable<TestDefinition>()
+		{
+			public TestDefinition call() throws OmException
+			{
+				TestDefinition td=new TestDefinition(f);
+				expand(td.getDocument());
+				return td;
+			}
+		});
+	}
+
+	/**
+	 * Obtains a file from the cache, parsing it if it isn't there or has changed.
+	 * @param m Map for this kind of file
+	 * @param f File
+	 * @param cParse Parses the file
+	 * @return Parsed file
+	 * @throws OmException If parsing fails
+	 */
+	private <T> T get(ConcurrentMap<String,Entry<T>> m,File f,Callable<T> cParse)
+		throws OmException
+	{
+		String sKey=f.getAbsolutePath();
+		while(true)
+		{
+			Entry<T> e=m.get(sKey);
+			if(e!=null && e.isCurrent(f))
+			{
+				alHits.incrementAndGet();
+				return getResult(m,sKey,e,f);
+			}
+
+			Entry<T> eNew=new Entry<T>(f,cParse);
+			if(e==null ? m.putIfAbsent(sKey,eNew)==null : m.replace(sKey,e,eNew))
+			{
+				alParses.incrementAndGet();
+				eNew.ft.run();
+				return getResult(m,sKey,eNew,f);
+			}
+			// Another thread changed the entry first; look again
+		}
+	}
+
+	/**
+	 * Waits for an entry to be parsed.
+	 * @param m Map containing entry
+	 * @param sKey Key of entry
+	 * @param e Entry
+	 * @param f File
+	 * @return Parsed file
+	 * @throws OmException If parsing failed
+	 */
+	private <T> T getResult(ConcurrentMap<String,Entry<T>> m,String sKey,Entry<T> e,File f)
+		throws OmException
+	{
+		try
+		{
+			return e.ft.get();
+		}
+		catch(ExecutionException ee)
+		{
+			// Don't keep failures; the file may be fixed
+			m.remove(sKey,e);
+			if(ee.getCause() instanceof OmException) throw (OmException)ee.getCause();
+			throw new OmUnexpectedException(ee.getCause());
+		}
+		catch(InterruptedException ie)
+		{
+			throw new OmException("Interrupted while loading "+f.getName(),ie);
+		}
+	}
+
+	/**
+	 * Visits every node so that a lazily-built DOM is fully built before it is
+	 * shared between threads; after that, reading it doesn't change it.
+	 * @param n Node
+	 */
+	private static void expand(Node n)
+	{
+		n.getNodeValue();
+		NamedNodeMap nnm=n.getAttributes();
+		if(nnm!=null)
+		{
+			for(int i=0;i<nnm.getLength();i++) nnm.item(i).getNodeValue();
+		}
+		for(Node nChild=n.getFirstChild();nChild!=null;nChild=nChild.getNextSibling())
+		{
+			expand(nChild);
+		}
+	}
+
+	/** @return Description of cache for the status page */
+	String getInfo()
+	{
+		return mDeployments.size()+" deploy files, "+mDefinitions.size()+
+			" test definitions; "+alHits.get()+" loads from cache, "+alParses.get()+" parsed";
+	}
+}
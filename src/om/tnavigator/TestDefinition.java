@@ -29,7 +29,11 @@ import org.w3c.dom.*;
 import util.xml.XML;
 import util.xml.XMLException;
 
-/** Represents the test definition XML file */
+/**
+ * Represents the test definition XML file. Nothing changes after
+ * construction, so one instance can be shared by all sessions on a test
+ * (see {@link TestCache}).
+ */
 public class TestDefinition
 {
 	private Document dTest;
@@ -184,6 +188,12 @@ public class TestDefinition
 		return XML.hasChildWithAttribute(eContent, "rescore", "marks", "100");
 	}
 
+	/** @return Parsed file (must not be changed) */
+	Document getDocument()
+	{
+		return dTest;
+	}
+
 	/** @return Name of test */
 	public String getName()
 	{
@@ -292,6 +302,23 @@ public class TestDefinition
 		return ids;
 	}
 
+	/**
+	 * Get every question in the test file, regardless of which ones a given
+	 * user will be asked (i.e. ignoring random choices).
+	 * @return List of questions
+	 * @throws OmFormatException If a question tag is invalid
+	 */
+	List<TestQuestion> getAllQuestions() throws OmFormatException
+	{
+		Element[] eQuestions=XML.getElementArray(dTest.getElementsByTagName("question"));
+		List<TestQuestion> questions=new ArrayList<TestQuestion>(eQuestions.length);
+		for(Element eQuestion : eQuestions)
+		{
+			questions.add(new TestQuestion(null,eQuestion));
+		}
+		return questions;
+	}
+
 	boolean isNavigationAllowed()
 	{
 		return bNavigation;
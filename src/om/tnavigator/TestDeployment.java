@@ -38,12 +38,19 @@ import org.w3c.dom.Element;
 import util.xml.XML;
 import util.xml.XMLException;
 
-/** Represents information from the .deploy.xml file */
+/**
+ * Represents information from the .deploy.xml file. Nothing changes after
+ * construction, so one instance can be shared by all sessions on a test
+ * (see {@link TestCache}).
+ */
 public class TestDeployment
 {
 	// The folder the deploy file came from.
 	private File testBank;
 
+	/** Cache used for the test definition (null if none) */
+	private TestCache tc;
+
 	private String sDefinition,sQuestion;
 	private Document dDeploy;
 	private Element eDates,eAccess;
@@ -126,6 +133,20 @@ public class TestDeployment
 	 */
 	public TestDeployment(File f) throws OmException
 	{
+		this(f,null);
+	}
+
+	/**
+	 * Constructs test definition and checks format.
+	 * @param f File to use
+	 * @param tc Cache for loading the test definition, or null to load it
+	 *   each time
+	 * @throws OmException Failure loading file or parsing XML
+	 * @throws OmFormatException Anything wrong with the specific format
+	 */
+	TestDeployment(File f,TestCache tc) throws OmException
+	{
+		this.tc=tc;
 		String sErrorIdentifier=f.getName();
 
 		try
@@ -729,7 +750,7 @@ public class TestDeployment
 	public TestDefinition getTestDefinition() throws OmException
 	{
 		File fDefinition=new File(testBank, getDefinition()+".test.xml");
-		return new TestDefinition(fDefinition);
+		return tc==null ? new TestDefinition(fDefinition) : tc.getDefinition(fDefinition);
 	}
 
 	/**
@@ -835,9 +856,9 @@ public class TestDeployment
 	/** @return OU course code */
 	public String getCourseCode() { return sCourseCode; }
 	/** @return Array of 2-digit assignment numbers */
-	public String[] getAssignmentNumbers() { return asAssignmentNum; }
+	public String[] getAssignmentNumbers() { return asAssignmentNum==null ? null : asAssignmentNum.clone(); }
 	/** @return Array of counts of questions in each numbered assignment */
-	public int[] getAssignmentCounts() { return aiAssignmentCount; }
+	public int[] getAssignmentCounts() { return aiAssignmentCount==null ? null : aiAssignmentCount.clone(); }
 	
 	// UNED: 26-11-2012 - dballestin
 	/**
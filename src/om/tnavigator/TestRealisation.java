@@ -262,6 +262,9 @@ public class TestRealisation {
 			rt.lDatabaseElapsed += dat.finish();
 		}
 
+		// Get metadata for all the questions at once, rather than one at a time below
+		ns.prefetchQuestionMetadata(rt, questionVersions);
+
 		// Loop around all questions, setting up the score in each one.
 		for(Map.Entry<String, QuestionVersion> me : questionVersions.entrySet())
 		{
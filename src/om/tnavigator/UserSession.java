@@ -43,8 +43,8 @@ public class UserSession
 	/** Time of session start */
 	long lSessionStart=System.currentTimeMillis();
 
-	/** Time of last action in session */
-	private long lastActionTime = System.currentTimeMillis();
+	/** Time of last action in session (read without the session lock by expiry) */
+	private volatile long lastActionTime = System.currentTimeMillis();
 
 	// Current test deployment.
 	private TestDeployment tdDeployment = null;
@@ -98,6 +98,12 @@ public class UserSession
 	/** The version of the test navigator software that started this attempt. */
 	String navigatorVersion;
 
+	/**
+	 * Snapshot of done pages as last stored in the database (see
+	 * {@link SessionSnapshot}), or null if not known for this attempt.
+	 */
+	String sSnapshot;
+
 	/**
 	 * Set true only for specific requests that are permitted after the forbid
 	 * date (up to the forbid-extension date)
@@ -168,7 +174,7 @@ public class UserSession
 		if(tdDeployment==null)
 		{
 			File deployFile = ns.pathForTestDeployment(testId);
-			tdDeployment = new TestDeployment(deployFile);
+			tdDeployment = ns.getTestCache().getDeployment(deployFile);
 		}
 	}
 
@@ -0,0 +1,342 @@
+/* OpenMark online assessment system
+   Copyright (C) 2007 The Open University
+
+   This program is free software; you can redistribute it and/or
+   modify it under the terms of the GNU General Public License
+   as published by the Free Software Foundation; either version 2
+   of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software
+   Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package om.tnavigator;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the navigator's current user sessions, and the per-user bookkeeping
+ * that goes with them (which session each user has on each test, and users
+ * who are temporarily forbidden).
+ * <p>
+ * Sessions are kept in a concurrent map, so finding or creating a session
+ * doesn't need a navigator-wide lock. Changes for one user (OUCU and test)
+ * lock only one of a fixed set of stripes. Expiry uses a timing wheel as in
+ * the question engine's session registry: each session's cookie is placed in
+ * the slot for when it would expire if not used again, and a session that
+ * has been used since is moved on when its slot comes round. So the cost of a
+ * check depends on the sessions due at that time, not on the total number.
+ */
+class UserSessionRegistry
+{
+	/** Number of locks for per-user changes */
+	private final static int LOCKSTRIPES=64;
+
+	/** Time within which a second new session from an address means cookies are off (ms) */
+	final static long NEWSESSIONWINDOW=1000L;
+
+	/** Number of addresses tracked for new sessions before old ones are cleared out */
+	private final static int MAXNEWSESSIONADDRESSES=10000;
+
+	/** Results of {@link #setUser(UserSession, String)} */
+	final static int USER_SET=0,USER_ALREADYSET=1,USER_FORBIDDEN=2;
+
+	/** Map of cookie value (String) -> UserSession */
+	private final ConcurrentHashMap<String,UserSession> mSessions;
+
+	/** Map of OUCU-testID (String) -> UserSession */
+	private final ConcurrentHashMap<String,UserSession> mUsernames;
+
+	/** Map of OUCU-testID (String) -> Long (date that prohibition expires) */
+	private final ConcurrentHashMap<String,Long> mTempForbid=new ConcurrentHashMap<String,Long>();
+
+	/** Map of address -> time a new session was last created for it */
+	private final ConcurrentHashMap<String,Long> mNewSessions=new ConcurrentHashMap<String,Long>();
+
+	/** Time of next clear-out of mNewSessions if it gets too big */
+	private volatile long lNextNewSessionsPurge;
+
+	/** Locks for per-user changes */
+	private final Object[] aoLocks=new Object[LOCKSTRIPES];
+
+	/** How long an unused session lasts (ms) */
+	private final long lExpiry;
+
+	/** Time covered by each slot of the wheel (ms) */
+	private final long lTick;
+
+	/** Slot i holds cookies of sessions that are due in tick numbers = i mod length */
+	private final ConcurrentLinkedQueue<String>[] aqSlots;
+
+	/** Last tick number that has been checked (only used by expiry thread) */
+	private long lLastTick;
+
+	/** Number of sessions that have been expired */
+	private final AtomicLong alExpired=new AtomicLong();
+
+	/**
+	 * @param lExpiry How long an unused session lasts (ms)
+	 * @param lTick How often {@link #expire(long)} will be called (ms);
+	 *   sessions expire up to this long after they become due
+	 */
+	@SuppressWarnings({"rawtypes","unchecked"})
+	UserSessionRegistry(long lExpiry,long lTick)
+	{
+		this.lExpiry=lExpiry;
+		this.lTick=Math.max(1L,lTick);
+		mSessions=new ConcurrentHashMap<String,UserSession>(256,0.75f,LOCKSTRIPES);
+		mUsernames=new ConcurrentHashMap<String,UserSession>(256,0.75f,LOCKSTRIPES);
+		for(int i=0;i<aoLocks.length;i++)
+		{
+			aoLocks[i]=new Object();
+		}
+
+		// A session is never due more than lExpiry ahead, so this many slots
+		// means a slot never holds sessions from different turns of the wheel
+		int iSlots=(int)(lExpiry/this.lTick)+2;
+		aqSlots=new ConcurrentLinkedQueue[iSlots];
+		for(int i=0;i<iSlots;i++)
+		{
+			aqSlots[i]=new ConcurrentLinkedQueue<String>();
+		}
+		lLastTick=System.currentTimeMillis()/this.lTick;
+	}
+
+	/**
+	 * @return Map of cookie value to session; sessions may be removed through
+	 *   it, but must be added with {@link #add(UserSession)}
+	 */
+	ConcurrentMap<String,UserSession> getSessions()
+	{
+		return mSessions;
+	}
+
+	/**
+	 * @param sCookie Cookie value (may be null)
+	 * @return Session or null if there isn't one with that cookie
+	 */
+	UserSession get(String sCookie)
+	{
+		return sCookie==null ? null : mSessions.get(sCookie);
+	}
+
+	/**
+	 * Adds a new session, marking it as just used.
+	 * @param us Session
+	 * @return False if there is already a session with its cookie (nothing is
+	 *   added)
+	 */
+	boolean add(UserSession us)
+	{
+		us.touch();
+		if(mSessions.putIfAbsent(us.sCookie,us)!=null) return false;
+		schedule(us.sCookie,us.getLastActionTime(),us.getLastActionTime());
+		return true;
+	}
+
+	/**
+	 * Removes a session.
+	 * @param us Session
+	 * @return True if it was removed by this call, false if it was already gone
+	 */
+	boolean remove(UserSession us)
+	{
+		return mSessions.remove(us.sCookie,us);
+	}
+
+	/**
+	 * Marks a session so that it expires the next time expiry runs.
+	 * @param us Session
+	 */
+	void discard(UserSession us)
+	{
+		us.markForDiscard();
+		schedule(us.sCookie,us.getLastActionTime(),System.currentTimeMillis());
+	}
+
+	/**
+	 * Records that a new session is being created for an address.
+	 * @param sAddr Remote address
+	 * @param lNow Current time
+	 * @return True if another new session was created for the same address
+	 *   within {@link #NEWSESSIONWINDOW}
+	 */
+	boolean noteNewSession(String sAddr,long lNow)
+	{
+		Long lPrevious=mNewSessions.put(sAddr,lNow);
+
+		// Only recent entries matter, so clear out old ones if there are a lot
+		if(mNewSessions.size()>MAXNEWSESSIONADDRESSES && lNow>=lNextNewSessionsPurge)
+		{
+			lNextNewSessionsPurge=lNow+NEWSESSIONWINDOW;
+			for(Iterator<Long> i=mNewSessions.values().iterator();i.hasNext();)
+			{
+				if(lNow-i.next() > NEWSESSIONWINDOW) i.remove();
+			}
+		}
+
+		return lPrevious!=null && lNow-lPrevious <= NEWSESSIONWINDOW;
+	}
+
+	/**
+	 * @param sKey OUCU-testID
+	 * @return Lock to hold while changing that user's sessions
+	 */
+	private Object getLock(String sKey)
+	{
+		return aoLocks[(sKey.hashCode() & 0x7fffffff) % aoLocks.length];
+	}
+
+	/**
+	 * Records the user for a session the first time it is known. Any other
+	 * session the user has on this navigator for the same test is removed.
+	 * @param us Session
+	 * @param sKey OUCU-testID
+	 * @return USER_SET if the user was recorded (other navigators should be
+	 *   told), USER_ALREADYSET if the session already had a user, or
+	 *   USER_FORBIDDEN if the user is temporarily forbidden (the session is
+	 *   removed)
+	 */
+	int setUser(UserSession us,String sKey)
+	{
+		synchronized(getLock(sKey))
+		{
+			if(us.sCheckedOUCUKey!=null) return USER_ALREADYSET;
+			us.sCheckedOUCUKey=sKey;
+
+			// Check the temp-forbid list
+			Long lTimeout=mTempForbid.get(sKey);
+			if(lTimeout!=null && lTimeout.longValue() > System.currentTimeMillis())
+			{
+				remove(us);
+				return USER_FORBIDDEN;
+			}
+
+			// If it was a timed-out forbid, get rid of it
+			if(lTimeout!=null) mTempForbid.remove(sKey,lTimeout);
+
+			// Put this in the OUCU->session map; if there was one already there,
+			// get rid of it
+			UserSession usOld=mUsernames.put(sKey,us);
+			if(usOld!=null && usOld!=us) remove(usOld);
+			return USER_SET;
+		}
+	}
+
+	/**
+	 * @param sKey OUCU-testID
+	 * @param us Session
+	 * @return True if the session is still current here and is the one
+	 *   recorded for that user and test
+	 */
+	boolean isCurrentUser(String sKey,UserSession us)
+	{
+		return mUsernames.get(sKey)==us && mSessions.get(us.sCookie)==us;
+	}
+
+	/**
+	 * Removes a user's session and forbids them from starting another for a
+	 * while.
+	 * @param sKey OUCU-testID
+	 * @param lUntil Time the prohibition expires
+	 */
+	void forbid(String sKey,long lUntil)
+	{
+		synchronized(getLock(sKey))
+		{
+			UserSession us=mUsernames.remove(sKey);
+			if(us!=null) remove(us);
+			mTempForbid.put(sKey,lUntil);
+		}
+	}
+
+	/** @return Number of current sessions */
+	int size()
+	{
+		return mSessions.size();
+	}
+
+	/** @return Number of users currently forbidden */
+	int getTempForbidCount()
+	{
+		return mTempForbid.size();
+	}
+
+	/** @return Number of sessions that have been expired */
+	long getExpiredCount()
+	{
+		return alExpired.get();
+	}
+
+	/**
+	 * Removes sessions that have not been used for the expiry time, and
+	 * prohibitions that have run out. Sessions that have been used since they
+	 * were scheduled are moved to their new slot. Must only be called from one
+	 * thread.
+	 * @param lNow Current time
+	 */
+	void expire(long lNow)
+	{
+		long lNowTick=lNow/lTick;
+		long lFirst=Math.max(lLastTick+1,lNowTick-aqSlots.length+1);
+		for(long lSlotTick=lFirst;lSlotTick<=lNowTick;lSlotTick++)
+		{
+			// Take the current contents; anything rescheduled into this same
+			// slot belongs to the next turn of the wheel
+			ConcurrentLinkedQueue<String> q=aqSlots[(int)(lSlotTick%aqSlots.length)];
+			List<String> lDue=new LinkedList<String>();
+			for(String sCookie=q.poll();sCookie!=null;sCookie=q.poll())
+			{
+				lDue.add(sCookie);
+			}
+
+			for(String sCookie : lDue)
+			{
+				UserSession us=mSessions.get(sCookie);
+				if(us==null) continue; // Already gone
+				if(us.getLastActionTime()+lExpiry > lNow)
+				{
+					// Used since
+					schedule(sCookie,us.getLastActionTime(),lNow);
+				}
+				else if(remove(us))
+				{
+					if(us.sCheckedOUCUKey!=null) mUsernames.remove(us.sCheckedOUCUKey,us);
+					alExpired.incrementAndGet();
+				}
+			}
+		}
+		lLastTick=lNowTick;
+
+		for(Iterator<Long> i=mTempForbid.values().iterator();i.hasNext();)
+		{
+			if(lNow > i.next())
+			{
+				i.remove();
+			}
+		}
+	}
+
+	/**
+	 * Puts a session's cookie into the slot for when it is due, making sure it
+	 * goes to a slot after the current one. (Cookies rather than sessions are
+	 * held so that sessions removed in other ways can be freed at once.)
+	 * @param sCookie Cookie
+	 * @param lLastAction Session's last action time
+	 * @param lNow Current time
+	 */
+	private void schedule(String sCookie,long lLastAction,long lNow)
+	{
+		long lDueTick=Math.max((lLastAction+lExpiry)/lTick,lNow/lTick+1);
+		aqSlots[(int)(lDueTick%aqSlots.length)].add(sCookie);
+	}
+}
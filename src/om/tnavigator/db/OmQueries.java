@@ -91,7 +91,7 @@ public abstract class OmQueries
 	public ResultSet queryUnfinishedSessions(DatabaseAccess.Transaction dat,String oucu,String testID) throws SQLException
 	{
 		return dat.query(
-			"SELECT ti,rseed,finished,variant,testposition,navigatorversion " +
+			"SELECT ti,rseed,finished,variant,testposition,navigatorversion,snapshot " +
 			"FROM " + getPrefix() + "tests " +
 			"WHERE oucu="+Strings.sqlQuote(oucu)+" AND deploy="+Strings.sqlQuote(testID)+" " +
 			"ORDER BY attempt DESC LIMIT 1");
@@ -698,6 +698,20 @@ public abstract class OmQueries
 		dat.update("UPDATE " + getPrefix() + "navconfig SET value="+version+" WHERE name=\'dbversion\'");
 	}
 	
+	/**
+	 * Update the stored snapshot of which pages of a test attempt are done.
+	 * @param dat the transaction within which the query should be executed.
+	 * @param ti test instance id.
+	 * @param snapshot the new snapshot, or null to clear it.
+	 * @throws SQLException
+	 */
+	public void updateSnapshot(DatabaseAccess.Transaction dat,int ti,String snapshot)
+	  throws SQLException
+	{
+		dat.update("UPDATE " + getPrefix() + "tests SET snapshot="+
+			(snapshot==null ? "NULL" : Strings.sqlQuote(snapshot))+" WHERE ti="+ti);
+	}
+
 	/**
 	 * Update the testpostition in the tests table.
 	 * @param dat the transaction within which the query should be executed.
@@ -810,6 +824,12 @@ public abstract class OmQueries
 		{
 			upgradeDatabaseTo131(dat);
 		}
+		/* add the session snapshot column; checked directly rather than by
+		 * version because it was added without a version change */
+		if (!columnExistsInTable(dat, "tests", "snapshot"))
+		{
+			upgradeDatabaseToAddSnapshot(dat,l);
+		}
 		/* add the navconfig table if it does not exxist */
 		upgradeDatabaseToAddNavConfig(dat,l);
 		/* now use the parameter in the navigator config table to perform and DB upgrades */
@@ -863,6 +883,12 @@ public abstract class OmQueries
 		}
 	}
 	
+	protected void upgradeDatabaseToAddSnapshot(DatabaseAccess.Transaction dat,Log l) throws SQLException
+	{
+		l.logDebug("DatabaseUpgrade","Running upgradeDatabaseToAddSnapshot - adding column tests.snapshot");
+		dat.update("ALTER TABLE " + getPrefix() + "tests ADD snapshot VARCHAR(4000)");
+	}
+
 	protected void upgradeDatabaseToAddNavConfig(DatabaseAccess.Transaction dat,Log l) throws SQLException
 	{
 		// check for the existance of the navconfig table and create it if it doesnt exist
@@ -18,7 +18,8 @@ CREATE TABLE prefix_tests (
   testposition SMALLINT NOT NULL,
   finishedclock TIMESTAMP WITH TIME ZONE,
   navigatorversion CHAR(16) NOT NULL,
-  dateWarningEmailSent DATETIME
+  dateWarningEmailSent DATETIME,
+  snapshot VARCHAR(4000)
 ); 
 
 CREATE INDEX prefix_tests_deploy ON prefix_tests (deploy);
@@ -18,7 +18,8 @@ CREATE TABLE prefix_tests (
   testposition SMALLINT NOT NULL,
   finishedclock TIMESTAMP WITH TIME ZONE,
   navigatorversion CHAR(16) NOT NULL,
-  dateWarningEmailSent TIMESTAMP WITHOUT TIME ZONE DEFAULT ('now'::text)::timestamp(6) with time zone
+  dateWarningEmailSent TIMESTAMP WITHOUT TIME ZONE DEFAULT ('now'::text)::timestamp(6) with time zone,
+  snapshot VARCHAR(4000)
 ); 
 
 CREATE INDEX prefix_tests_deploy ON prefix_tests (deploy);
@@ -18,7 +18,8 @@ CREATE TABLE dbo.prefix_tests (
   testposition SMALLINT NOT NULL,
   finishedclock DATETIME,
   navigatorversion CHAR(16) NOT NULL,
-  dateWarningEmailSent DATETIME
+  dateWarningEmailSent DATETIME,
+  snapshot VARCHAR(4000)
 ); 
 
 CREATE NONCLUSTERED INDEX i1 ON prefix_tests (deploy);
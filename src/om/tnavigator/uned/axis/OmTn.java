@@ -25,6 +25,7 @@ import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpServletResponseWrapper;
 
 import om.OmUnexpectedException;
+import om.tnavigator.QuestionBankIndex;
 import om.tnavigator.uned.UnedUserFilter;
 
 import org.apache.axis.MessageContext;
@@ -455,7 +456,12 @@ public class OmTn implements IOmTn
 				}
 			}
 		}
-		return questionJarFile==null?false:writeFileFromBase64Array(questionJarFile,base64QuestionJar);
+		boolean ok=questionJarFile==null?false:writeFileFromBase64Array(questionJarFile,base64QuestionJar);
+		if (ok)
+		{
+			QuestionBankIndex.refresh(getServletContext());
+		}
+		return ok;
 	}
 	
 	@Override
@@ -501,6 +507,7 @@ public class OmTn implements IOmTn
 			if (questionJar.exists())
 			{
 				questionJar.delete();
+				QuestionBankIndex.refresh(getServletContext());
 			}
 		}
 	}
@@ -0,0 +1,215 @@
+/* OpenMark online assessment system
+   Copyright (C) 2007 The Open University
+
+   This program is free software; you can redistribute it and/or
+   modify it under the terms of the GNU General Public License
+   as published by the Free Software Foundation; either version 2
+   of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software
+   Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package util.misc;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Low-level encoding for the binary question engine protocol, shared by the
+ * test navigator and question engine. Messages are written with
+ * DataOutputStream; on top of that, strings are a 4-byte length (-1 for null)
+ * followed by UTF-8 bytes, byte arrays are a 4-byte length (-1 for null)
+ * followed by the raw bytes, and string arrays are a 4-byte count (-1 for
+ * null) followed by each string.
+ * <p>
+ * A request is {@link #MAGIC}, the method name as a string, then the method's
+ * parameters in order. A response is {@link #MAGIC}, a status byte, then
+ * either the return value ({@link #STATUS_OK}) or an error message
+ * ({@link #STATUS_ERROR}).
+ */
+public class BinaryMessage
+{
+	/** Start of every request and response ("OmB1") */
+	public final static int MAGIC=0x4f6d4231;
+
+	/** Content type for requests and responses */
+	public final static String CONTENTTYPE="application/x-om-binary";
+
+	/** Status: the call worked and the return value follows */
+	public final static byte STATUS_OK=0;
+
+	/** Status: the call threw an exception and its message follows */
+	public final static byte STATUS_ERROR=1;
+
+	/**
+	 * Largest message, and so largest length or count, that will be read.
+	 * Lengths come from the other end of the connection, so they are checked
+	 * before anything is allocated.
+	 */
+	public final static int MAXLENGTH=64*1024*1024;
+
+	/** Byte arrays and string arrays above this size grow as data arrives */
+	private final static int CHUNK=64*1024;
+
+	/**
+	 * @param dos Output
+	 * @param s String (may be null)
+	 * @throws IOException Any error
+	 */
+	public static void writeString(DataOutputStream dos,String s) throws IOException
+	{
+		writeBytes(dos,s==null ? null : s.getBytes("UTF-8"));
+	}
+
+	/**
+	 * @param dis Input
+	 * @return String (may be null)
+	 * @throws IOException Any error
+	 */
+	public static String readString(DataInputStream dis) throws IOException
+	{
+		byte[] ab=readBytes(dis);
+		return ab==null ? null : new String(ab,"UTF-8");
+	}
+
+	/**
+	 * @param dos Output
+	 * @param as Strings (array may be null)
+	 * @throws IOException Any error
+	 */
+	public static void writeStrings(DataOutputStream dos,String[] as) throws IOException
+	{
+		if(as==null)
+		{
+			dos.writeInt(-1);
+			return;
+		}
+		dos.writeInt(as.length);
+		for(int i=0;i<as.length;i++)
+		{
+			writeString(dos,as[i]);
+		}
+	}
+
+	/**
+	 * @param dis Input
+	 * @return Strings (may be null)
+	 * @throws IOException Any error
+	 */
+	public static String[] readStrings(DataInputStream dis) throws IOException
+	{
+		int iCount=readCount(dis);
+		if(iCount==-1) return null;
+		// Don't trust the count for allocation; each string needs at least its
+		// length to be present, so the list only grows with real data
+		List<String> l=new ArrayList<String>(Math.min(iCount,CHUNK/4));
+		for(int i=0;i<iCount;i++)
+		{
+			l.add(readString(dis));
+		}
+		return l.toArray(new String[l.size()]);
+	}
+
+	/**
+	 * @param dos Output
+	 * @param ab Bytes (may be null)
+	 * @throws IOException Any error
+	 */
+	public static void writeBytes(DataOutputStream dos,byte[] ab) throws IOException
+	{
+		if(ab==null)
+		{
+			dos.writeInt(-1);
+			return;
+		}
+		dos.writeInt(ab.length);
+		dos.write(ab);
+	}
+
+	/**
+	 * @param dis Input
+	 * @return Bytes (may be null)
+	 * @throws IOException Any error
+	 */
+	public static byte[] readBytes(DataInputStream dis) throws IOException
+	{
+		int iLength=readCount(dis);
+		if(iLength==-1) return null;
+		if(iLength<=CHUNK)
+		{
+			byte[] ab=new byte[iLength];
+			dis.readFully(ab);
+			return ab;
+		}
+
+		// Large lengths are read in chunks, so a false length fails at end of
+		// input instead of allocating the whole amount first
+		ByteArrayOutputStream baos=new ByteArrayOutputStream(CHUNK);
+		byte[] abBuffer=new byte[CHUNK];
+		for(int iLeft=iLength;iLeft>0;)
+		{
+			int iRead=Math.min(iLeft,CHUNK);
+			dis.readFully(abBuffer,0,iRead);
+			baos.write(abBuffer,0,iRead);
+			iLeft-=iRead;
+		}
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Reads a length or count.
+	 * @param dis Input
+	 * @return Value (-1 for null)
+	 * @throws IOException If the value isn't valid
+	 */
+	public static int readCount(DataInputStream dis) throws IOException
+	{
+		int i=dis.readInt();
+		if(i<-1 || i>MAXLENGTH) throw new IOException("Invalid length in binary message: "+i);
+		return i;
+	}
+
+	/**
+	 * Reads a whole message into memory, refusing any longer than
+	 * {@link #MAXLENGTH}. Lengths inside the message then can't claim more
+	 * data than was actually sent.
+	 * @param is Input
+	 * @param iContentLength Length of message if known, or -1
+	 * @return Message bytes
+	 * @throws IOException If the message is too long, or any error
+	 */
+	public static byte[] readMessage(InputStream is,int iContentLength) throws IOException
+	{
+		if(iContentLength>MAXLENGTH)
+			throw new IOException("Binary message too long: "+iContentLength);
+		ByteArrayOutputStream baos=new ByteArrayOutputStream(CHUNK);
+		byte[] abBuffer=new byte[CHUNK];
+		while(true)
+		{
+			int iRead=is.read(abBuffer);
+			if(iRead==-1) break;
+			baos.write(abBuffer,0,iRead);
+			if(baos.size()>MAXLENGTH)
+				throw new IOException("Binary message too long");
+		}
+		is.close();
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Checks the start of a message.
+	 * @param dis Input
+	 * @throws IOException If the message doesn't start with {@link #MAGIC}
+	 */
+	public static void readMagic(DataInputStream dis) throws IOException
+	{
+		if(dis.readInt()!=MAGIC) throw new IOException("Not a binary Om message");
+	}
+}
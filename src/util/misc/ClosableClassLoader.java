@@ -18,33 +18,122 @@
 package util.misc;
 
 import java.io.*;
+import java.lang.reflect.Method;
 import java.net.URL;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 
 /**
  * Classloader for jar files that doesn't leave them open infinitely if you
  * read a resource.
+ * <p>
+ * The jar is read once when the classloader is constructed: the content of
+ * every entry is decompressed into a single buffer, with an index from entry
+ * name to its position, and the file is closed again. Classes are defined and
+ * resources served straight from that buffer without further copying, and
+ * no lock is held while doing so, so classes can be loaded concurrently.
  */
 public class ClosableClassLoader extends ClassLoader
 {
-	/** Jar file */
-	private JarFile jf;
+	static
+	{
+		// Allow parallel class loading where the runtime supports it (Java 7+).
+		// Called by reflection so that we still run on Java 6.
+		try
+		{
+			Method m=ClassLoader.class.getDeclaredMethod("registerAsParallelCapable");
+			m.setAccessible(true);
+			m.invoke(null);
+		}
+		catch(Throwable t)
+		{
+		}
+	}
+
+	/** Content of all entries in the jar file; null once closed */
+	private volatile byte[] abContent;
+
+	/** Index of entry name -> position within abContent */
+	private Map<String, Entry> mEntries;
+
+	/** Position of an entry's content within the buffer */
+	private static class Entry
+	{
+		int iOffset,iLength;
+	}
 
 	/**
 	 * Constructs classloader.
 	 * @param fJar Jar file to use
 	 * @param clParent Parent classloader
-	 * @throws IOException Any error opening the jar file
+	 * @throws IOException Any error opening or reading the jar file
 	 */
 	public ClosableClassLoader(File fJar,ClassLoader clParent) throws IOException
 	{
 		super(clParent);
-		jf=new JarFile(fJar);
+
+		JarFile jf=new JarFile(fJar);
+		try
+		{
+			// Size buffer from the (uncompressed) entry sizes
+			long lTotal=0;
+			for(Enumeration<JarEntry> e=jf.entries();e.hasMoreElements();)
+			{
+				JarEntry je=e.nextElement();
+				if(!je.isDirectory() && je.getSize()>0) lTotal+=je.getSize();
+			}
+			if(lTotal>Integer.MAX_VALUE) throw new IOException(
+				"Jar file content too large: "+fJar);
+			byte[] abBuffer=new byte[(int)lTotal];
+
+			Map<String, Entry> mIndex=new HashMap<String, Entry>();
+			int iPos=0;
+			for(Enumeration<JarEntry> e=jf.entries();e.hasMoreElements();)
+			{
+				JarEntry je=e.nextElement();
+				if(je.isDirectory()) continue;
+
+				InputStream is=jf.getInputStream(je);
+				Entry en=new Entry();
+				en.iOffset=iPos;
+				try
+				{
+					while(true)
+					{
+						if(iPos==abBuffer.length)
+						{
+							// Size wasn't known in advance (or was wrong); grow
+							byte[] abNew=new byte[Math.max(abBuffer.length*2,abBuffer.length+8192)];
+							System.arraycopy(abBuffer,0,abNew,0,iPos);
+							abBuffer=abNew;
+						}
+						int iRead=is.read(abBuffer,iPos,abBuffer.length-iPos);
+						if(iRead<0) break;
+						iPos+=iRead;
+					}
+				}
+				finally
+				{
+					is.close();
+				}
+				en.iLength=iPos-en.iOffset;
+				mIndex.put(je.getName(),en);
+			}
+
+			mEntries=mIndex;
+			abContent=abBuffer;
+		}
+		finally
+		{
+			jf.close();
+		}
 	}
 
 	/**
-	 * Close classloader and its jar file connection.
+	 * Close classloader and release the jar file content.
 	 * <p>
 	 * Be sure to null all references to the classloader and to classes loaded by
 	 * it before (or shortly after) calling this method.
@@ -52,71 +141,59 @@ public class ClosableClassLoader extends ClassLoader
 	 * You shouldn't need to use this method if you close it and do System.gc
 	 * a bit, but it's probably safer if you do.
 	 */
-	public synchronized void close()
+	public void close()
 	{
-		try
-		{
-			if(jf!=null) jf.close();
-		}
-		catch(IOException e)
-		{
-		}
-		jf=null;
+		abContent=null;
 	}
 
+	/**
+	 * @return Total size in bytes of the (uncompressed) jar content held by
+	 *   this classloader, or 0 if it has been closed
+	 */
+	public int getContentSize()
+	{
+		byte[] abBuffer=abContent;
+		return abBuffer==null ? 0 : abBuffer.length;
+	}
 
 	@Override
-	protected synchronized Class<?> findClass(String sName) throws ClassNotFoundException
+	protected Class<?> findClass(String sName) throws ClassNotFoundException
 	{
-		if(jf==null) throw new Error("Cannot load: "+sName+", classloader closed");
-		try
-		{
-			JarEntry je=jf.getJarEntry(sName.replace('.','/')+".class");
-			if(je==null) throw new ClassNotFoundException("Not found: "+sName);
+		byte[] abBuffer=abContent;
+		if(abBuffer==null) throw new Error("Cannot load: "+sName+", classloader closed");
+		Entry en=mEntries.get(sName.replace('.','/')+".class");
+		if(en==null) throw new ClassNotFoundException("Not found: "+sName);
 
-			byte[] abData=new byte[(int)je.getSize()];
-			InputStream is=jf.getInputStream(je);
-			for(int iRead=0;iRead<abData.length;)
-			{
-				int iThisTime=is.read(abData,iRead,abData.length-iRead);
-				if(iThisTime==0) throw new ClassNotFoundException(
-					"Unexpected error reading class: "+sName);
-				iRead+=iThisTime;
-			}
+		return defineClass(sName,abBuffer,en.iOffset,en.iLength);
+	}
 
-			return defineClass(sName,abData,0,abData.length);
-		}
-		catch(IOException ioe)
-		{
-			throw new ClassNotFoundException("Error finding: "+sName,ioe);
-		}
+	@Override
+	public URL findResource(String sName)
+	{
+		byte[] abBuffer=abContent;
+		if(abBuffer==null) throw new Error("Cannot load: "+sName+", classloader closed");
+		Entry en=mEntries.get(sName);
+		if(en==null) return null;
+
+		return DataURL.create(abBuffer,en.iOffset,en.iLength);
 	}
 
 	@Override
-	public synchronized URL findResource(String sName)
+	public InputStream getResourceAsStream(String sName)
 	{
-		if(jf==null) throw new Error("Cannot load: "+sName+", classloader closed");
-		try
-		{
-			JarEntry je=jf.getJarEntry(sName);
-			if(je==null) return null;
+		// Parent first, as for getResource, but then go straight to the buffer
+		// rather than through a URL
+		ClassLoader clParent=getParent();
+		if(clParent==null) return super.getResourceAsStream(sName);
+		InputStream is=clParent.getResourceAsStream(sName);
+		if(is!=null) return is;
 
-			byte[] abData=new byte[(int)je.getSize()];
-			InputStream is=jf.getInputStream(je);
-			for(int iRead=0;iRead<abData.length;)
-			{
-				int iThisTime=is.read(abData,iRead,abData.length-iRead);
-				if(iThisTime==0) throw new Error(
-					"Unexpected error reading resource: "+sName);
-				iRead+=iThisTime;
-			}
+		byte[] abBuffer=abContent;
+		if(abBuffer==null) throw new Error("Cannot load: "+sName+", classloader closed");
+		Entry en=mEntries.get(sName);
+		if(en==null) return null;
 
-			return DataURL.create(abData);
-		}
-		catch(IOException ioe)
-		{
-			throw new Error("Error reading resource: "+sName,ioe);
-		}
+		return new ByteArrayInputStream(abBuffer,en.iOffset,en.iLength);
 	}
 
 }
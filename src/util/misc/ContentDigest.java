@@ -0,0 +1,62 @@
+/* OpenMark online assessment system
+   Copyright (C) 2007 The Open University
+
+   This program is free software; you can redistribute it and/or
+   modify it under the terms of the GNU General Public License
+   as published by the Free Software Foundation; either version 2
+   of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software
+   Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package util.misc;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import om.OmUnexpectedException;
+
+/**
+ * Content hashes used to identify question resources that the test navigator
+ * already holds, so that question engines need not send them again. Shared
+ * by the test navigator and question engine.
+ * <p>
+ * The navigator lists resources it holds (in the cachedResources parameter
+ * of OmService.start) as entries made by {@link #getEntry(String, String)}:
+ * the hex SHA-1 of the content, a colon, then the filename.
+ */
+public class ContentDigest
+{
+	/**
+	 * @param abContent Content
+	 * @return Hex SHA-1 of content
+	 */
+	public static String get(byte[] abContent)
+	{
+		try
+		{
+			return Strings.byteArrayToHexString(
+				MessageDigest.getInstance("SHA-1").digest(abContent));
+		}
+		catch(NoSuchAlgorithmException e)
+		{
+			throw new OmUnexpectedException(e);
+		}
+	}
+
+	/**
+	 * @param sDigest Digest from {@link #get(byte[])}
+	 * @param sFilename Resource filename
+	 * @return Entry for the cachedResources list
+	 */
+	public static String getEntry(String sDigest,String sFilename)
+	{
+		return sDigest+":"+sFilename;
+	}
+}
@@ -29,11 +29,24 @@ public abstract class DataURL
 	 * @return URL object
 	 */
 	public static URL create(byte[] abData)
+	{
+		return create(abData,0,abData.length);
+	}
+
+	/**
+	 * Creates a URL referring to part of a byte array. The array is not
+	 * copied, so it must not be changed afterwards.
+	 * @param abData Data bytes
+	 * @param iOffset Start of data within array
+	 * @param iLength Length of data
+	 * @return URL object
+	 */
+	public static URL create(byte[] abData,int iOffset,int iLength)
 	{
 		try
 		{
-			return new URL("data","bytes",-1,""+abData.length,
-				new MyStreamHandler(abData));
+			return new URL("data","bytes",-1,""+iLength,
+				new MyStreamHandler(abData,iOffset,iLength));
 		}
 		catch(MalformedURLException mue)
 		{
@@ -44,36 +57,51 @@ public abstract class DataURL
 	private static class MyStreamHandler extends URLStreamHandler
 	{
 		private byte[] abData;
+		private int iOffset,iLength;
 
 		/**
-		 * Construct, based on a byte[].
+		 * Construct, based on part of a byte[].
 		 * @param abData
+		 * @param iOffset
+		 * @param iLength
 		 */
-		public MyStreamHandler(byte[] abData)
+		public MyStreamHandler(byte[] abData,int iOffset,int iLength)
 		{
 			this.abData=abData;
+			this.iOffset=iOffset;
+			this.iLength=iLength;
 		}
 
 		@Override
 		protected URLConnection openConnection(URL u) throws IOException
 		{
-			return new MyConnection(u,abData);
+			return new MyConnection(u,abData,iOffset,iLength);
 		}
 	}
 
 	private static class MyConnection extends URLConnection
 	{
 		private ByteArrayInputStream bais;
+		private int iLength;
 
 		/**
-		 * Construct, based on a URL and abyte[].
+		 * Construct, based on a URL and part of a byte[].
 		 * @param u
 		 * @param abData
+		 * @param iOffset
+		 * @param iLength
 		 */
-		public MyConnection(URL u,byte[] abData)
+		public MyConnection(URL u,byte[] abData,int iOffset,int iLength)
 		{
 			super(u);
-			bais=new ByteArrayInputStream(abData);
+			bais=new ByteArrayInputStream(abData,iOffset,iLength);
+			this.iLength=iLength;
+		}
+
+		@Override
+		public int getContentLength()
+		{
+			return iLength;
 		}
 
 		@Override
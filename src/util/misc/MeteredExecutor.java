@@ -0,0 +1,161 @@
+/* OpenMark online assessment system
+   Copyright (C) 2007 The Open University
+
+   This program is free software; you can redistribute it and/or
+   modify it under the terms of the GNU General Public License
+   as published by the Free Software Foundation; either version 2
+   of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software
+   Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package util.misc;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed-size thread pool with a bounded queue that keeps figures for the
+ * status page: how many tasks are waiting, how long they waited, and how many
+ * were turned away. When the queue is full, a task runs on the thread that
+ * submitted it instead, so nothing is lost, it just isn't handed off.
+ */
+public class MeteredExecutor extends ThreadPoolExecutor
+{
+	/** Total and maximum time (ms) tasks spent queued, and number of tasks started */
+	private AtomicLong alTotalWait=new AtomicLong(),alMaxWait=new AtomicLong(),
+		alStarted=new AtomicLong();
+
+	/** Largest number of tasks queued at once */
+	private AtomicInteger aiMaxQueued=new AtomicInteger();
+
+	/**
+	 * @param sName Name used for threads
+	 * @param iThreads Number of threads
+	 * @param iQueue Maximum number of tasks waiting for a thread
+	 */
+	public MeteredExecutor(final String sName,int iThreads,int iQueue)
+	{
+		super(iThreads,iThreads,60,TimeUnit.SECONDS,
+			new ArrayBlockingQueue<Runnable>(Math.max(1,iQueue)),
+			new ThreadFactory()
+			{
+				private AtomicInteger aiCount=new AtomicInteger();
+				public Thread newThread(Runnable r)
+				{
+					Thread t=new Thread(r,sName+"-"+aiCount.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			},
+			new Overflow());
+	}
+
+	/**
+	 * Runs tasks there's no room for on the submitting thread, and counts them.
+	 * (Unlike CallerRunsPolicy, this runs them even after shutdown, so callers
+	 * can rely on every task running.)
+	 */
+	private static class Overflow implements RejectedExecutionHandler
+	{
+		private AtomicLong alCount=new AtomicLong();
+
+		public void rejectedExecution(Runnable r,ThreadPoolExecutor tpe)
+		{
+			alCount.incrementAndGet();
+			r.run();
+		}
+	}
+
+	/** Task wrapper that records how long it queued */
+	private class Timed implements Runnable
+	{
+		private Runnable r;
+		private long lQueued=System.currentTimeMillis();
+
+		Timed(Runnable r)
+		{
+			this.r=r;
+		}
+
+		public void run()
+		{
+			long lWait=System.currentTimeMillis()-lQueued;
+			alStarted.incrementAndGet();
+			alTotalWait.addAndGet(lWait);
+			while(true)
+			{
+				long lMax=alMaxWait.get();
+				if(lWait<=lMax || alMaxWait.compareAndSet(lMax,lWait)) break;
+			}
+			r.run();
+		}
+	}
+
+	@Override
+	public void execute(Runnable r)
+	{
+		Timed t=new Timed(r);
+		super.execute(t);
+		int iQueued=getQueue().size();
+		while(true)
+		{
+			int iMax=aiMaxQueued.get();
+			if(iQueued<=iMax || aiMaxQueued.compareAndSet(iMax,iQueued)) break;
+		}
+	}
+
+	@Override
+	public void setRejectedExecutionHandler(RejectedExecutionHandler reh)
+	{
+		throw new UnsupportedOperationException("Rejection policy is fixed");
+	}
+
+	/** @return Number of tasks waiting for a thread */
+	public int getQueued()
+	{
+		return getQueue().size();
+	}
+
+	/** @return Largest number of tasks waiting at once */
+	public int getMaxQueued()
+	{
+		return aiMaxQueued.get();
+	}
+
+	/** @return Number of tasks that ran on the submitting thread because the queue was full */
+	public long getOverflows()
+	{
+		return ((Overflow)getRejectedExecutionHandler()).alCount.get();
+	}
+
+	/** @return Mean time (ms) tasks waited for a thread */
+	public double getMeanWait()
+	{
+		long lStarted=alStarted.get();
+		return lStarted==0 ? 0.0 : (double)alTotalWait.get()/lStarted;
+	}
+
+	/** @return Longest time (ms) a task waited for a thread */
+	public long getMaxWait()
+	{
+		return alMaxWait.get();
+	}
+
+	/** @return Description of pool use for the status page */
+	public String getInfo()
+	{
+		return getActiveCount()+" of "+getMaximumPoolSize()+" threads busy, "+
+			getQueued()+" queued (most "+getMaxQueued()+"); "+
+			getCompletedTaskCount()+" done, waited "+
+			Strings.formatOneDecimal(getMeanWait())+" ms on average ("+
+			getMaxWait()+" ms most); "+getOverflows()+" ran without queueing";
+	}
+}
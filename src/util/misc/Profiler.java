@@ -0,0 +1,387 @@
+/* OpenMark online assessment system
+   Copyright (C) 2007 The Open University
+
+   This program is free software; you can redistribute it and/or
+   modify it under the terms of the GNU General Public License
+   as published by the Free Software Foundation; either version 2
+   of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software
+   Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package util.misc;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import util.xml.XML;
+
+/**
+ * Low-overhead latency histograms for phases of work (for example, question
+ * init or rendering), kept separately for each context (for example, each
+ * question). The context is set per thread by whoever starts the work, so
+ * code deep inside can time a phase without knowing what it belongs to:
+ * <pre>
+ * Profiler.Timer t=Profiler.start("render");
+ * try { ... } finally { t.stop(); }
+ * </pre>
+ * Nothing is recorded on threads that have no context. Where the JVM
+ * supports it, bytes allocated by the thread during each phase are counted
+ * too. Timings of nested phases overlap; each phase includes any phases
+ * called within it.
+ */
+public class Profiler
+{
+	/** Upper bounds of histogram buckets (ms); there is a final unbounded one */
+	private final static long[] BUCKETMS={1,2,5,10,20,50,100,200,500,1000,2000,5000,10000};
+
+	/** True if profiling is on */
+	private static volatile boolean bEnabled=true;
+
+	/** Context for the current thread */
+	private static ThreadLocal<String> tlContext=new ThreadLocal<String>();
+
+	/** Statistics (maps context -> phase name -> stats) */
+	private static ConcurrentHashMap<String, ConcurrentHashMap<String, Phase>> mContexts=
+		new ConcurrentHashMap<String, ConcurrentHashMap<String, Phase>>();
+
+	/** Thread MX bean and its getThreadAllocatedBytes(long) method, if supported */
+	private static Object oThreadBean;
+	private static Method mAllocatedBytes;
+
+	static
+	{
+		try
+		{
+			Class<?> c=Class.forName("com.sun.management.ThreadMXBean");
+			Object o=ManagementFactory.getThreadMXBean();
+			if(c.isInstance(o))
+			{
+				Method m=c.getMethod("getThreadAllocatedBytes",long.class);
+				if(((Long)m.invoke(o,Thread.currentThread().getId())).longValue()>=0)
+				{
+					oThreadBean=o;
+					mAllocatedBytes=m;
+				}
+			}
+		}
+		catch(Throwable t)
+		{
+			// Allocation counts aren't available on this JVM
+		}
+	}
+
+	/** Timer that does nothing, used when not profiling */
+	private final static Timer NOTIMER=new Timer(null,0L,-1L);
+
+	/**
+	 * @param bEnabled True to record statistics (default), false to stop
+	 */
+	public static void setEnabled(boolean bEnabled)
+	{
+		Profiler.bEnabled=bEnabled;
+	}
+
+	/**
+	 * Sets the context that phases timed on this thread are recorded against.
+	 * @param sContext Context name, or null for none
+	 * @return Previous context (so it can be restored), or null if none
+	 */
+	public static String setContext(String sContext)
+	{
+		String sPrevious=tlContext.get();
+		if(sContext==null)
+			tlContext.remove();
+		else
+			tlContext.set(sContext);
+		return sPrevious;
+	}
+
+	/**
+	 * Starts timing a phase. The returned timer must be stopped (in a finally
+	 * block) for the phase to be recorded.
+	 * @param sPhase Phase name
+	 * @return Timer
+	 */
+	public static Timer start(String sPhase)
+	{
+		if(!bEnabled) return NOTIMER;
+		String sContext=tlContext.get();
+		if(sContext==null) return NOTIMER;
+
+		Phase p=getPhase(sContext,sPhase);
+		return new Timer(p,System.nanoTime(),getAllocatedBytes());
+	}
+
+	/** @return Bytes allocated by the current thread, or -1 if unknown */
+	private static long getAllocatedBytes()
+	{
+		if(mAllocatedBytes==null) return -1L;
+		try
+		{
+			return ((Long)mAllocatedBytes.invoke(oThreadBean,Thread.currentThread().getId())).longValue();
+		}
+		catch(Throwable t)
+		{
+			return -1L;
+		}
+	}
+
+	/**
+	 * @param sContext Context
+	 * @param sPhase Phase name
+	 * @return Statistics for that phase in that context, created if needed
+	 */
+	private static Phase getPhase(String sContext,String sPhase)
+	{
+		ConcurrentHashMap<String, Phase> mPhases=mContexts.get(sContext);
+		if(mPhases==null)
+		{
+			mPhases=new ConcurrentHashMap<String, Phase>();
+			ConcurrentHashMap<String, Phase> mExisting=mContexts.putIfAbsent(sContext,mPhases);
+			if(mExisting!=null) mPhases=mExisting;
+		}
+		Phase p=mPhases.get(sPhase);
+		if(p==null)
+		{
+			p=new Phase();
+			Phase pExisting=mPhases.putIfAbsent(sPhase,p);
+			if(pExisting!=null) p=pExisting;
+		}
+		return p;
+	}
+
+	/** Clears all statistics. */
+	public static void reset()
+	{
+		mContexts.clear();
+	}
+
+	/** Running timer for one phase */
+	public static class Timer
+	{
+		private Phase p;
+		private long lStartNanos,lStartAllocated;
+
+		private Timer(Phase p,long lStartNanos,long lStartAllocated)
+		{
+			this.p=p;
+			this.lStartNanos=lStartNanos;
+			this.lStartAllocated=lStartAllocated;
+		}
+
+		/** Records the time (and allocation) since the timer was started. */
+		public void stop()
+		{
+			if(p==null) return;
+			long lAllocated=-1L;
+			if(lStartAllocated>=0)
+			{
+				long lNow=getAllocatedBytes();
+				if(lNow>=0) lAllocated=lNow-lStartAllocated;
+			}
+			p.record(System.nanoTime()-lStartNanos,lAllocated);
+			p=null;
+		}
+	}
+
+	/** Statistics for one phase in one context */
+	private static class Phase
+	{
+		private AtomicLong alCount=new AtomicLong(),alTotalNanos=new AtomicLong(),
+			alMaxNanos=new AtomicLong(),alAllocated=new AtomicLong();
+		private AtomicLongArray aalBuckets=new AtomicLongArray(BUCKETMS.length+1);
+
+		void record(long lNanos,long lAllocated)
+		{
+			alCount.incrementAndGet();
+			alTotalNanos.addAndGet(lNanos);
+			if(lAllocated>0) alAllocated.addAndGet(lAllocated);
+			while(true)
+			{
+				long lMax=alMaxNanos.get();
+				if(lNanos<=lMax || alMaxNanos.compareAndSet(lMax,lNanos)) break;
+			}
+			long lMillis=lNanos/1000000L;
+			int iBucket=0;
+			while(iBucket<BUCKETMS.length && lMillis>=BUCKETMS[iBucket]) iBucket++;
+			aalBuckets.incrementAndGet(iBucket);
+		}
+
+		/** Adds this phase's statistics into another (used for totals) */
+		void addTo(Phase p)
+		{
+			p.alCount.addAndGet(alCount.get());
+			p.alTotalNanos.addAndGet(alTotalNanos.get());
+			p.alAllocated.addAndGet(alAllocated.get());
+			if(alMaxNanos.get()>p.alMaxNanos.get()) p.alMaxNanos.set(alMaxNanos.get());
+			for(int i=0;i<aalBuckets.length();i++)
+			{
+				p.aalBuckets.addAndGet(i,aalBuckets.get(i));
+			}
+		}
+
+		/** @param sb Buffer to receive &lt;phase> element */
+		void appendXML(StringBuffer sb,String sName)
+		{
+			long lCount=alCount.get();
+			sb.append("<phase name=\""+XML.escape(sName)+"\" count=\""+lCount+"\"");
+			sb.append(" meanms=\""+(lCount==0 ? 0 : alTotalNanos.get()/lCount/1000)/1000.0+"\"");
+			sb.append(" maxms=\""+alMaxNanos.get()/1000/1000.0+"\"");
+			if(mAllocatedBytes!=null)
+				sb.append(" allocated=\""+Strings.formatBytes(alAllocated.get())+"\"");
+			sb.append(" histogram=\"");
+			for(int i=0;i<aalBuckets.length();i++)
+			{
+				if(i>0) sb.append(',');
+				sb.append(aalBuckets.get(i));
+			}
+			sb.append("\"/>\n");
+		}
+
+		/** @param sb Buffer to receive histogram lines */
+		void appendHistogram(StringBuffer sb,String sLabels)
+		{
+			long lCumulative=0;
+			for(int i=0;i<aalBuckets.length();i++)
+			{
+				lCumulative+=aalBuckets.get(i);
+				String sLimit=i<BUCKETMS.length ? (BUCKETMS[i]/1000.0)+"" : "+Inf";
+				sb.append("om_phase_seconds_bucket{"+sLabels+",le=\""+sLimit+"\"} "+lCumulative+"\n");
+			}
+			sb.append("om_phase_seconds_sum{"+sLabels+"} "+alTotalNanos.get()/1.0e9+"\n");
+			sb.append("om_phase_seconds_count{"+sLabels+"} "+alCount.get()+"\n");
+		}
+
+		/** @param sb Buffer to receive max gauge line */
+		void appendMax(StringBuffer sb,String sLabels)
+		{
+			sb.append("om_phase_seconds_max{"+sLabels+"} "+alMaxNanos.get()/1.0e9+"\n");
+		}
+
+		/** @param sb Buffer to receive allocated bytes counter line */
+		void appendAllocated(StringBuffer sb,String sLabels)
+		{
+			sb.append("om_phase_allocated_bytes_total{"+sLabels+"} "+alAllocated.get()+"\n");
+		}
+	}
+
+	/**
+	 * Gets statistics as XML. Histogram counts are for times up to 1, 2, 5, 10,
+	 * 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000ms and above.
+	 * @param sContextTag Tag name for each context's element (it gets a name
+	 *   attribute), or null to give only totals for each phase across all
+	 *   contexts
+	 * @return &lt;profile> element as string
+	 */
+	public static String getXML(String sContextTag)
+	{
+		StringBuffer sb=new StringBuffer("<profile>\n");
+		if(sContextTag==null)
+		{
+			for(Map.Entry<String, Phase> me : getTotals().entrySet())
+			{
+				me.getValue().appendXML(sb,me.getKey());
+			}
+		}
+		else
+		{
+			for(Map.Entry<String, ConcurrentHashMap<String, Phase>> meContext :
+				new TreeMap<String, ConcurrentHashMap<String, Phase>>(mContexts).entrySet())
+			{
+				sb.append("<"+sContextTag+" name=\""+XML.escape(meContext.getKey())+"\">\n");
+				for(Map.Entry<String, Phase> me :
+					new TreeMap<String, Phase>(meContext.getValue()).entrySet())
+				{
+					me.getValue().appendXML(sb,me.getKey());
+				}
+				sb.append("</"+sContextTag+">\n");
+			}
+		}
+		sb.append("</profile>\n");
+		return sb.toString();
+	}
+
+	/**
+	 * Gets statistics in the plain-text exposition format used by common
+	 * metrics collectors (cumulative histogram buckets in seconds).
+	 * @param sContextLabel Label name used for the context
+	 * @return Metrics text
+	 */
+	public static String getText(String sContextLabel)
+	{
+		// Take one sorted snapshot so each family lists the same series
+		Map<String, Phase> mSeries=new LinkedHashMap<String, Phase>();
+		for(Map.Entry<String, ConcurrentHashMap<String, Phase>> meContext :
+			new TreeMap<String, ConcurrentHashMap<String, Phase>>(mContexts).entrySet())
+		{
+			for(Map.Entry<String, Phase> me :
+				new TreeMap<String, Phase>(meContext.getValue()).entrySet())
+			{
+				mSeries.put(sContextLabel+"=\""+escapeLabel(meContext.getKey())+
+					"\",phase=\""+escapeLabel(me.getKey())+"\"",me.getValue());
+			}
+		}
+
+		// Each family is written as one contiguous block with its own type
+		StringBuffer sb=new StringBuffer();
+		sb.append("# TYPE om_phase_seconds histogram\n");
+		for(Map.Entry<String, Phase> me : mSeries.entrySet())
+		{
+			me.getValue().appendHistogram(sb,me.getKey());
+		}
+		sb.append("# TYPE om_phase_seconds_max gauge\n");
+		for(Map.Entry<String, Phase> me : mSeries.entrySet())
+		{
+			me.getValue().appendMax(sb,me.getKey());
+		}
+		if(mAllocatedBytes!=null)
+		{
+			sb.append("# TYPE om_phase_allocated_bytes_total counter\n");
+			for(Map.Entry<String, Phase> me : mSeries.entrySet())
+			{
+				me.getValue().appendAllocated(sb,me.getKey());
+			}
+		}
+		return sb.toString();
+	}
+
+	/** @return Totals for each phase across all contexts */
+	private static Map<String, Phase> getTotals()
+	{
+		Map<String, Phase> mTotals=new TreeMap<String, Phase>();
+		for(ConcurrentHashMap<String, Phase> mPhases : mContexts.values())
+		{
+			for(Map.Entry<String, Phase> me : mPhases.entrySet())
+			{
+				Phase p=mTotals.get(me.getKey());
+				if(p==null)
+				{
+					p=new Phase();
+					mTotals.put(me.getKey(),p);
+				}
+				me.getValue().addTo(p);
+			}
+		}
+		return mTotals;
+	}
+
+	/**
+	 * @param s Label value
+	 * @return Value with backslashes, quotes and newlines escaped
+	 */
+	private static String escapeLabel(String s)
+	{
+		return s.replace("\\","\\\\").replace("\"","\\\"").replace("\n","\\n");
+	}
+}
@@ -0,0 +1,186 @@
+/* OpenMark online assessment system
+   Copyright (C) 2007 The Open University
+
+   This program is free software; you can redistribute it and/or
+   modify it under the terms of the GNU General Public License
+   as published by the Free Software Foundation; either version 2
+   of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software
+   Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package util.servicebalancer;
+
+/**
+ * Tracks whether a service is working, so that requests can avoid one that
+ * isn't. The breaker is closed (service in use) until a number of
+ * consecutive failures opens it. While open, the service gets no new
+ * requests. After a delay the breaker is half-open: one trial request may go
+ * to the service (see {@link #tryRequest(long)}), and its result either
+ * closes the breaker or opens it again for twice as long (up to a maximum).
+ * Other requests keep avoiding the service until then.
+ */
+public class CircuitBreaker
+{
+	/** Breaker state */
+	public static enum State
+	{
+		/** Working normally */
+		CLOSED,
+		/** Failed; not in use */
+		OPEN,
+		/** Failed, but may be tried again with one request */
+		HALF_OPEN
+	}
+
+	/** Consecutive failures that open the breaker */
+	private final int iThreshold;
+
+	/** Initial and maximum time (ms) the breaker stays open */
+	private final long lOpenTime,lMaxOpenTime;
+
+	/** Consecutive failures so far */
+	private int iFailures;
+
+	/** True if open (or half-open) */
+	private boolean bOpen;
+
+	/** Time at which the breaker becomes half-open */
+	private long lRetryTime;
+
+	/** Time for which the breaker will next stay open */
+	private long lNextOpenTime;
+
+	/** Number of times the breaker has opened */
+	private int iTrips;
+
+	/** True if a trial request has been let through while half-open */
+	private boolean bTrial;
+
+	/**
+	 * Time at which an unfinished trial is given up, so that a trial whose
+	 * result is never recorded doesn't keep the service out of use
+	 */
+	private long lTrialExpiry;
+
+	/**
+	 * @param iThreshold Consecutive failures that open the breaker
+	 * @param lOpenTime Time (ms) the breaker first stays open
+	 * @param lMaxOpenTime Maximum time (ms) the breaker stays open
+	 */
+	public CircuitBreaker(int iThreshold,long lOpenTime,long lMaxOpenTime)
+	{
+		this.iThreshold=iThreshold;
+		this.lOpenTime=lOpenTime;
+		this.lMaxOpenTime=lMaxOpenTime;
+		lNextOpenTime=lOpenTime;
+	}
+
+	/**
+	 * @param lNow Current time (ms)
+	 * @return Current state
+	 */
+	public synchronized State getState(long lNow)
+	{
+		if(!bOpen) return State.CLOSED;
+		return lNow>=lRetryTime ? State.HALF_OPEN : State.OPEN;
+	}
+
+	/**
+	 * @param lNow Current time (ms)
+	 * @return True if the breaker is closed, or half-open with no trial
+	 *   request in progress
+	 */
+	public synchronized boolean isAvailable(long lNow)
+	{
+		State s=getState(lNow);
+		return s==State.CLOSED || (s==State.HALF_OPEN && !isTrialRunning(lNow));
+	}
+
+	/**
+	 * Asks to send a request to the service. When half-open, only the first
+	 * caller gets to make the trial request; others are refused until its
+	 * result is recorded.
+	 * @param lNow Current time (ms)
+	 * @return True if the request may go ahead
+	 */
+	public synchronized boolean tryRequest(long lNow)
+	{
+		State s=getState(lNow);
+		if(s==State.CLOSED) return true;
+		if(s==State.OPEN || isTrialRunning(lNow)) return false;
+		bTrial=true;
+		lTrialExpiry=lNow+lOpenTime;
+		return true;
+	}
+
+	private boolean isTrialRunning(long lNow)
+	{
+		return bTrial && lNow<lTrialExpiry;
+	}
+
+	/**
+	 * Records that a call ended without showing whether the service works
+	 * (for example, it reported an error in the request). A trial request
+	 * that ends this way lets another request be tried.
+	 */
+	public synchronized void recordNoResult()
+	{
+		bTrial=false;
+	}
+
+	/** Records a successful call, which closes the breaker. */
+	public synchronized void recordSuccess()
+	{
+		iFailures=0;
+		bOpen=false;
+		bTrial=false;
+		lNextOpenTime=lOpenTime;
+	}
+
+	/**
+	 * Records a failed call.
+	 * @param lNow Current time (ms)
+	 * @return True if this failure opened the breaker
+	 */
+	public synchronized boolean recordFailure(long lNow)
+	{
+		iFailures++;
+		if(bOpen)
+		{
+			// A failed retry opens it again, for longer
+			if(lNow>=lRetryTime)
+			{
+				bTrial=false;
+				lRetryTime=lNow+lNextOpenTime;
+				lNextOpenTime=Math.min(lNextOpenTime*2,lMaxOpenTime);
+			}
+			return false;
+		}
+		if(iFailures<iThreshold) return false;
+
+		bOpen=true;
+		iTrips++;
+		lRetryTime=lNow+lNextOpenTime;
+		lNextOpenTime=Math.min(lNextOpenTime*2,lMaxOpenTime);
+		return true;
+	}
+
+	/** @return Consecutive failures so far */
+	public synchronized int getFailures()
+	{
+		return iFailures;
+	}
+
+	/** @return Number of times the breaker has opened */
+	public synchronized int getTrips()
+	{
+		return iTrips;
+	}
+}
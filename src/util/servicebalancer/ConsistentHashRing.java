@@ -0,0 +1,119 @@
+/* OpenMark online assessment system
+   Copyright (C) 2007 The Open University
+
+   This program is free software; you can redistribute it and/or
+   modify it under the terms of the GNU General Public License
+   as published by the Free Software Foundation; either version 2
+   of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software
+   Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package util.servicebalancer;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import om.OmUnexpectedException;
+
+/**
+ * Consistent hash ring that maps keys to an order of preference among a
+ * fixed set of services. Each service is placed at many points on the ring;
+ * a key's preferred services are those found walking round the ring from the
+ * key's own point. Adding or removing a service only moves the keys nearest
+ * to its points, and since hashing depends only on the service names, all
+ * navigators with the same list of services agree on the order.
+ */
+public class ConsistentHashRing
+{
+	/** Number of points on the ring for each service */
+	private final static int POINTSPERSERVICE=100;
+
+	/** Sorted positions of points */
+	private int[] aiPoints;
+
+	/** Service at each point */
+	private int[] aiOwners;
+
+	/** Number of services */
+	private int iServices;
+
+	/**
+	 * @param asNames Service names (index in this array is the service index)
+	 */
+	public ConsistentHashRing(String[] asNames)
+	{
+		iServices=asNames.length;
+		long[] alSorted=new long[iServices*POINTSPERSERVICE];
+		for(int iService=0;iService<iServices;iService++)
+		{
+			for(int iPoint=0;iPoint<POINTSPERSERVICE;iPoint++)
+			{
+				// Pack position and owner together so one sort orders both
+				long lHash=hash(asNames[iService]+"#"+iPoint);
+				alSorted[iService*POINTSPERSERVICE+iPoint]=(lHash<<32) | iService;
+			}
+		}
+		Arrays.sort(alSorted);
+		aiPoints=new int[alSorted.length];
+		aiOwners=new int[alSorted.length];
+		for(int i=0;i<alSorted.length;i++)
+		{
+			aiPoints[i]=(int)(alSorted[i]>>32);
+			aiOwners[i]=(int)alSorted[i];
+		}
+	}
+
+	/**
+	 * @param sKey Key
+	 * @return All service indexes, most preferred for the key first
+	 */
+	public int[] getPreference(String sKey)
+	{
+		int iPos=Arrays.binarySearch(aiPoints,(int)hash(sKey));
+		if(iPos<0) iPos=-iPos-1;
+
+		int[] aiResult=new int[iServices];
+		boolean[] abDone=new boolean[iServices];
+		int iFound=0;
+		for(int i=0;iFound<iServices && i<aiPoints.length;i++)
+		{
+			int iOwner=aiOwners[(iPos+i)%aiPoints.length];
+			if(!abDone[iOwner])
+			{
+				abDone[iOwner]=true;
+				aiResult[iFound++]=iOwner;
+			}
+		}
+		return aiResult;
+	}
+
+	/**
+	 * @param s String
+	 * @return Signed 32-bit hash (first four bytes of the MD5 digest)
+	 */
+	private static long hash(String s)
+	{
+		try
+		{
+			byte[] ab=MessageDigest.getInstance("MD5").digest(s.getBytes("UTF-8"));
+			return (ab[0]<<24) | ((ab[1]&0xff)<<16) | ((ab[2]&0xff)<<8) | (ab[3]&0xff);
+		}
+		catch(NoSuchAlgorithmException e)
+		{
+			throw new OmUnexpectedException(e);
+		}
+		catch(UnsupportedEncodingException e)
+		{
+			throw new OmUnexpectedException(e);
+		}
+	}
+}
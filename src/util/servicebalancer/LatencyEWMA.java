@@ -0,0 +1,113 @@
+/* OpenMark online assessment system
+   Copyright (C) 2007 The Open University
+
+   This program is free software; you can redistribute it and/or
+   modify it under the terms of the GNU General Public License
+   as published by the Free Software Foundation; either version 2
+   of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software
+   Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package util.servicebalancer;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Exponentially-weighted moving average of call times, updated without
+ * locking. Each new time moves the average a fixed fraction of the way
+ * towards it. Between updates, the average decays towards zero (with a set
+ * half-life), so that a service which looked slow, and therefore stopped
+ * being used, will eventually be tried again.
+ */
+public class LatencyEWMA
+{
+	/** Average and the time at which it was calculated */
+	private static class Value
+	{
+		final double dAverage;
+		final long lTime;
+
+		Value(double dAverage,long lTime)
+		{
+			this.dAverage=dAverage;
+			this.lTime=lTime;
+		}
+	}
+
+	/** Weight of each new time */
+	private final double dWeight;
+
+	/** Half-life (ms) of decay towards zero */
+	private final long lHalfLife;
+
+	/** Current value (null before the first time is added) */
+	private final AtomicReference<Value> arValue=new AtomicReference<Value>();
+
+	/**
+	 * @param dWeight Weight of each new time, between 0 and 1
+	 * @param lHalfLife Half-life (ms) of decay towards zero while the average
+	 *   isn't updated
+	 */
+	public LatencyEWMA(double dWeight,long lHalfLife)
+	{
+		this.dWeight=dWeight;
+		this.lHalfLife=lHalfLife;
+	}
+
+	/**
+	 * Adds a call time.
+	 * @param lTime Time taken (ms)
+	 * @param lNow Current time (ms)
+	 */
+	public void add(long lTime,long lNow)
+	{
+		while(true)
+		{
+			Value v=arValue.get();
+			double dNew=v==null ? lTime : decay(v,lNow)*(1.0-dWeight)+lTime*dWeight;
+			if(arValue.compareAndSet(v,new Value(dNew,Math.max(lNow,v==null ? 0 : v.lTime))))
+			{
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Replaces the average with a single call time, forgetting earlier ones.
+	 * @param lTime Time taken (ms)
+	 * @param lNow Current time (ms)
+	 */
+	public void reset(long lTime,long lNow)
+	{
+		arValue.set(new Value(lTime,lNow));
+	}
+
+	/**
+	 * @param lNow Current time (ms)
+	 * @return Average (ms), or 0 if no times have been added
+	 */
+	public double get(long lNow)
+	{
+		Value v=arValue.get();
+		return v==null ? 0.0 : decay(v,lNow);
+	}
+
+	/**
+	 * @param v Value
+	 * @param lNow Current time
+	 * @return Average decayed to the current time
+	 */
+	private double decay(Value v,long lNow)
+	{
+		long lElapsed=lNow-v.lTime;
+		if(lElapsed<=0) return v.dAverage;
+		return v.dAverage*Math.pow(0.5,(double)lElapsed/lHalfLife);
+	}
+}
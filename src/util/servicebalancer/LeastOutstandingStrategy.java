@@ -0,0 +1,60 @@
+/* OpenMark online assessment system
+   Copyright (C) 2007 The Open University
+
+   This program is free software; you can redistribute it and/or
+   modify it under the terms of the GNU General Public License
+   as published by the Free Software Foundation; either version 2
+   of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software
+   Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package util.servicebalancer;
+
+/**
+ * Picks the service with the fewest requests in progress. Ties are broken by
+ * the decaying average call time, then at random, so that idle services
+ * share the load.
+ */
+public class LeastOutstandingStrategy extends SelectionStrategy
+{
+	/** Name in configuration */
+	public final static String NAME="least-outstanding";
+
+	@Override
+	public String getName()
+	{
+		return NAME;
+	}
+
+	@Override
+	public int pick(MovingAverage[] averages,LatencyEWMA[] latencies,
+		RequestLimiter[] limiters,long lNow)
+	{
+		// Start at a random point so ties don't always go to the same service
+		int iStart=RANDOM.nextInt(limiters.length);
+		int iBest=iStart;
+		int iBestCount=limiters[iStart].getInProgress();
+		double dBestLatency=latencies[iStart].get(lNow);
+		for(int i=1;i<limiters.length;i++)
+		{
+			int iService=(iStart+i)%limiters.length;
+			int iCount=limiters[iService].getInProgress();
+			if(iCount>iBestCount) continue;
+			double dLatency=latencies[iService].get(lNow);
+			if(iCount<iBestCount || dLatency<dBestLatency)
+			{
+				iBest=iService;
+				iBestCount=iCount;
+				dBestLatency=dLatency;
+			}
+		}
+		return iBest;
+	}
+}
@@ -55,6 +55,13 @@ public class MovingAverage
 		add((int)lValue);
 	}
 
+	/** Discards all values, as if newly created. */
+	public synchronized void clear()
+	{
+		iCursor=0;
+		iEntries=0;
+	}
+
 	/**
 	 * Obtains average value of entries so far. If there are no entries, returns
 	 * 0.0.
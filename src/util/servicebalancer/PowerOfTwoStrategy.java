@@ -0,0 +1,63 @@
+/* OpenMark online assessment system
+   Copyright (C) 2007 The Open University
+
+   This program is free software; you can redistribute it and/or
+   modify it under the terms of the GNU General Public License
+   as published by the Free Software Foundation; either version 2
+   of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software
+   Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package util.servicebalancer;
+
+/**
+ * Power-of-two-choices: picks two different services at random and uses the
+ * one with the lower cost, where cost is the decaying average call time
+ * multiplied by one more than the number of requests in progress. This
+ * follows load quickly without sending every request to the same 'best'
+ * service.
+ */
+public class PowerOfTwoStrategy extends SelectionStrategy
+{
+	/** Name in configuration */
+	public final static String NAME="p2c-ewma";
+
+	@Override
+	public String getName()
+	{
+		return NAME;
+	}
+
+	@Override
+	public int pick(MovingAverage[] averages,LatencyEWMA[] latencies,
+		RequestLimiter[] limiters,long lNow)
+	{
+		if(limiters.length==1) return 0;
+		int iA=RANDOM.nextInt(limiters.length);
+		int iB=RANDOM.nextInt(limiters.length-1);
+		if(iB>=iA) iB++;
+		return getCost(iA,latencies,limiters,lNow)<=getCost(iB,latencies,limiters,lNow)
+			? iA : iB;
+	}
+
+	/**
+	 * @param iService Service index
+	 * @param latencies Average call times
+	 * @param limiters Requests in progress
+	 * @param lNow Current time
+	 * @return Cost of sending a request to the service
+	 */
+	private static double getCost(int iService,LatencyEWMA[] latencies,
+		RequestLimiter[] limiters,long lNow)
+	{
+		// +1.0 so that services with no data yet still compare by load
+		return (latencies[iService].get(lNow)+1.0)*(limiters[iService].getInProgress()+1);
+	}
+}
@@ -0,0 +1,175 @@
+/* OpenMark online assessment system
+   Copyright (C) 2007 The Open University
+
+   This program is free software; you can redistribute it and/or
+   modify it under the terms of the GNU General Public License
+   as published by the Free Software Foundation; either version 2
+   of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software
+   Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package util.servicebalancer;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the number of requests in progress to a single service. Requests
+ * beyond the limit can wait (for a limited time) for a slot. Also keeps
+ * statistics about requests and queueing for the status page.
+ */
+public class RequestLimiter
+{
+	/** Slots (null if there is no limit) */
+	private Semaphore s;
+
+	/** Maximum requests in progress (0 = no limit) */
+	private int iMaxRequests;
+
+	/** Requests currently in progress and currently waiting */
+	private AtomicInteger aiInProgress=new AtomicInteger(),aiQueued=new AtomicInteger();
+
+	/** Number of requests that had to wait, sent elsewhere, or gave up waiting */
+	private AtomicLong alWaits=new AtomicLong(),alSpills=new AtomicLong(),
+		alTimeouts=new AtomicLong();
+
+	/** Total and longest wait (ms) */
+	private AtomicLong alWaitTime=new AtomicLong(),alMaxWait=new AtomicLong();
+
+	/**
+	 * @param iMaxRequests Maximum number of requests in progress at once, or
+	 *   0 for no limit
+	 */
+	public RequestLimiter(int iMaxRequests)
+	{
+		this.iMaxRequests=iMaxRequests;
+		if(iMaxRequests>0) s=new Semaphore(iMaxRequests,true);
+	}
+
+	/**
+	 * Takes a slot if one is free right now. If this returns true, caller
+	 * must call {@link #release()} afterwards.
+	 * @return True if a slot was taken
+	 */
+	public boolean tryAcquire()
+	{
+		if(s!=null && !s.tryAcquire()) return false;
+		aiInProgress.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Takes a slot, waiting for one if necessary. If this returns true,
+	 * caller must call {@link #release()} afterwards.
+	 * @param lTimeout Maximum time to wait (ms)
+	 * @return True if a slot was taken, false if none became free in time
+	 */
+	public boolean acquire(long lTimeout)
+	{
+		if(tryAcquire()) return true;
+
+		aiQueued.incrementAndGet();
+		long lStart=System.currentTimeMillis();
+		boolean bOK=false;
+		try
+		{
+			bOK=s.tryAcquire(lTimeout,TimeUnit.MILLISECONDS);
+		}
+		catch(InterruptedException ie)
+		{
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			aiQueued.decrementAndGet();
+		}
+
+		long lWait=System.currentTimeMillis()-lStart;
+		alWaits.incrementAndGet();
+		alWaitTime.addAndGet(lWait);
+		while(true)
+		{
+			long lMax=alMaxWait.get();
+			if(lWait<=lMax || alMaxWait.compareAndSet(lMax,lWait)) break;
+		}
+
+		if(!bOK)
+		{
+			alTimeouts.incrementAndGet();
+			return false;
+		}
+		aiInProgress.incrementAndGet();
+		return true;
+	}
+
+	/** Frees a slot taken with {@link #tryAcquire()} or {@link #acquire(long)}. */
+	public void release()
+	{
+		aiInProgress.decrementAndGet();
+		if(s!=null) s.release();
+	}
+
+	/** Records that a request was sent to another service because this one was full. */
+	public void recordSpill()
+	{
+		alSpills.incrementAndGet();
+	}
+
+	/** @return Maximum requests in progress (0 = no limit) */
+	public int getMaxRequests()
+	{
+		return iMaxRequests;
+	}
+
+	/** @return Requests currently in progress */
+	public int getInProgress()
+	{
+		return aiInProgress.get();
+	}
+
+	/** @return Requests currently waiting for a slot */
+	public int getQueued()
+	{
+		return aiQueued.get();
+	}
+
+	/** @return Number of requests that have had to wait */
+	public long getWaits()
+	{
+		return alWaits.get();
+	}
+
+	/** @return Average wait (ms) of requests that had to wait, or 0 if none */
+	public double getMeanWait()
+	{
+		long lWaits=alWaits.get();
+		return lWaits==0 ? 0.0 : (double)alWaitTime.get()/lWaits;
+	}
+
+	/** @return Longest wait so far (ms) */
+	public long getMaxWait()
+	{
+		return alMaxWait.get();
+	}
+
+	/** @return Number of requests sent to another service because this one was full */
+	public long getSpills()
+	{
+		return alSpills.get();
+	}
+
+	/** @return Number of requests that gave up waiting */
+	public long getTimeouts()
+	{
+		return alTimeouts.get();
+	}
+}
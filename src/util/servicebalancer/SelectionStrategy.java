@@ -0,0 +1,61 @@
+/* OpenMark online assessment system
+   Copyright (C) 2007 The Open University
+
+   This program is free software; you can redistribute it and/or
+   modify it under the terms of the GNU General Public License
+   as published by the Free Software Foundation; either version 2
+   of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software
+   Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package util.servicebalancer;
+
+import java.util.Random;
+
+/**
+ * Decides which service a {@link ServiceBalancer} sends each new request to.
+ * Strategies are given the current statistics for every service; they must
+ * be safe to call from many threads at once.
+ */
+public abstract class SelectionStrategy
+{
+	/** Names accepted by {@link #create(String)} */
+	public final static String[] NAMES={
+		WeightedRandomStrategy.NAME,LeastOutstandingStrategy.NAME,PowerOfTwoStrategy.NAME};
+
+	/** Random numbers for strategies that need them */
+	protected final static Random RANDOM=new Random();
+
+	/**
+	 * Chooses a service.
+	 * @param averages Recent average call time of each service
+	 * @param latencies Decaying average call time of each service
+	 * @param limiters Requests in progress on each service
+	 * @param lNow Current time (ms)
+	 * @return Index of chosen service
+	 */
+	public abstract int pick(MovingAverage[] averages,LatencyEWMA[] latencies,
+		RequestLimiter[] limiters,long lNow);
+
+	/** @return Name of strategy as used in configuration */
+	public abstract String getName();
+
+	/**
+	 * @param sName Strategy name (one of {@link #NAMES})
+	 * @return New strategy, or null if the name isn't recognised
+	 */
+	public static SelectionStrategy create(String sName)
+	{
+		if(sName.equals(WeightedRandomStrategy.NAME)) return new WeightedRandomStrategy();
+		if(sName.equals(LeastOutstandingStrategy.NAME)) return new LeastOutstandingStrategy();
+		if(sName.equals(PowerOfTwoStrategy.NAME)) return new PowerOfTwoStrategy();
+		return null;
+	}
+}
@@ -17,10 +17,16 @@
  */
 package util.servicebalancer;
 
+import java.io.IOException;
 import java.net.URL;
 import java.rmi.RemoteException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.xml.rpc.ServiceException;
 
@@ -30,6 +36,7 @@ import om.tnavigator.NavigatorServlet.RequestTimings;
 
 import org.w3c.dom.Element;
 
+import util.misc.PeriodicThread;
 import util.misc.Strings;
 import util.xml.XML;
 
@@ -49,9 +56,26 @@ public abstract class ServiceBalancer<ServiceType extends java.rmi.Remote>
 	/** Number of measurements to track in the averaging process */
 	private final static int PERFORMANCEBUFFERSIZE = 20;
 
-	/** How often we add a zero to the averages (1 min, meaning a 'bad' number stays
-	 * for 20 mins) */
-	private final static int AVERAGEUPDATEDELAY=1*60*1000;
+	/** Weight of each new time in the decaying averages */
+	private final static double LATENCYWEIGHT = 0.3;
+
+	/** Half-life (ms) of the decaying averages while a service isn't used; currently 1 min */
+	private final static long LATENCYHALFLIFE = 60*1000;
+
+	/** Consecutive failures after which a service is taken out of use */
+	private final static int BREAKERFAILURES = 3;
+
+	/** Time (ms) a failed service is first kept out of use; currently 30s */
+	private final static long BREAKEROPENTIME = 30*1000;
+
+	/** Maximum time (ms) a failed service is kept out of use; currently 5 mins */
+	private final static long BREAKERMAXOPENTIME = 5*60*1000;
+
+	/**
+	 * With affinity, a service is passed over for a key if it has more than
+	 * this multiple of the average number of requests in progress
+	 */
+	private final static double AFFINITYLOADFACTOR = 1.25;
 
 	/** Array of available service URLs */
 	URL[] serviceUrls;
@@ -62,21 +86,58 @@ public abstract class ServiceBalancer<ServiceType extends java.rmi.Remote>
 	/** Track average performance of all services */
 	MovingAverage[] movingAverages;
 
+	/** Decaying average performance of all services (used by some strategies) */
+	LatencyEWMA[] latencies;
+
+	/** Chooses services for new requests */
+	private volatile SelectionStrategy strategy = new WeightedRandomStrategy();
+
 	/** Log */
 	Log l;
 
 	/** True if we should log additional debug info */
 	private boolean logExtraDebug;
 
-	/** Time of last pick */
-	private long lLastZero;
+	/** Limits on requests in progress to each service */
+	RequestLimiter[] limiters;
+
+	/** Maximum time (ms) a request waits for a busy service */
+	private int queueWait;
+
+	/** Tracks which services are failing */
+	CircuitBreaker[] breakers;
+
+	/** Background threads that check each service (null if not probing) */
+	private List<Prober> probers;
+
+	/** Maps affinity keys to preferred services (null if affinity is off) */
+	private volatile ConsistentHashRing affinityRing;
+
+	/** Requests with affinity that went to the first preferred service, or another */
+	private AtomicLong affinityHits = new AtomicLong(), affinityMisses = new AtomicLong();
+
+	/** Runs asynchronous calls (null to run them on the caller's thread) */
+	private volatile ExecutorService executor;
 
 	/**
 	 * @param serviceUrls Array of available services
 	 */
 	protected ServiceBalancer(URL[] serviceUrls, Log l, boolean logExtraDebug)
 			throws ServiceException {
+		this(serviceUrls, l, logExtraDebug, 0, 0);
+	}
+
+	/**
+	 * @param serviceUrls Array of available services
+	 * @param maxRequests Maximum requests in progress to each service at once
+	 *   (0 = no limit)
+	 * @param queueWait Maximum time (ms) a request waits for a free slot when
+	 *   a service is at its limit
+	 */
+	protected ServiceBalancer(URL[] serviceUrls, Log l, boolean logExtraDebug,
+			int maxRequests, int queueWait) throws ServiceException {
 		this.serviceUrls = serviceUrls;
+		this.queueWait = queueWait;
 		this.l = l;
 		this.logExtraDebug = logExtraDebug;
 		if (l == null) {
@@ -90,72 +151,239 @@ public abstract class ServiceBalancer<ServiceType extends java.rmi.Remote>
 		}
 
 		movingAverages=new MovingAverage[serviceUrls.length];
+		latencies = new LatencyEWMA[serviceUrls.length];
 		for (int i = 0; i < serviceUrls.length; i++) {
 			movingAverages[i] = new MovingAverage(PERFORMANCEBUFFERSIZE);
+			latencies[i] = new LatencyEWMA(LATENCYWEIGHT, LATENCYHALFLIFE);
 		}
 
-		lLastZero = System.currentTimeMillis();
+		limiters = new RequestLimiter[serviceUrls.length];
+		breakers = new CircuitBreaker[serviceUrls.length];
+		for (int i = 0; i < serviceUrls.length; i++) {
+			limiters[i] = new RequestLimiter(maxRequests);
+			breakers[i] = new CircuitBreaker(BREAKERFAILURES, BREAKEROPENTIME, BREAKERMAXOPENTIME);
+		}
 	}
 
 	protected abstract ServiceType createService(URL url) throws ServiceException;
 
-	/** Picks a random service (must be called from within synch block) */
-	private int pickServer() {
-		// Begin by adding zeros to the load balancer, corresponding to the time
-		// since last pick. This 'keeps it moving', meaning that 'bad' events
-		// are forgotten after 20 mins, otherwise it'd be very unlikely that a
-		// server would ever be chosen again...
-		long timeNow = System.currentTimeMillis();
-		while (lLastZero + AVERAGEUPDATEDELAY < timeNow) {
-			for (int i=0; i < movingAverages.length; i++) {
-				movingAverages[i].add(0);
+	/**
+	 * Sets the strategy used to choose a service for each new request.
+	 * @param strategy Strategy
+	 */
+	public void setStrategy(SelectionStrategy strategy) {
+		this.strategy = strategy;
+	}
+
+	/** @return Strategy used to choose a service for each new request */
+	public SelectionStrategy getStrategy() {
+		return strategy;
+	}
+
+	/**
+	 * Turns affinity on or off. With affinity on, tasks balanced with a key
+	 * go to the same service each time (chosen by consistent hashing on the
+	 * key), unless that service is out of use or has much more than its share
+	 * of requests in progress, in which case they go to the next service for
+	 * that key. Tasks without a key still use the strategy.
+	 * @param affinity True to turn affinity on
+	 */
+	public void setAffinity(boolean affinity) {
+		if (affinity) {
+			String[] names = new String[serviceUrls.length];
+			for (int i = 0; i < serviceUrls.length; i++) {
+				names[i] = serviceUrls[i].toString();
 			}
-			lLastZero += AVERAGEUPDATEDELAY;
+			affinityRing = new ConsistentHashRing(names);
+		} else {
+			affinityRing = null;
 		}
+	}
 
-		// Pick service with good recent performance according to random number
-		// and the algorithm:
+	/**
+	 * Sets the thread pool used for asynchronous calls. The balancer doesn't
+	 * shut it down.
+	 * @param executor Pool, or null to run asynchronous calls on the caller's
+	 *   thread before they return
+	 */
+	public void setExecutor(ExecutorService executor) {
+		this.executor = executor;
+	}
 
-		// p(choosing server A) = (sum(avgsq) - avgsq[A]) / (SERVERS-1)*(sum(avgsq))
+	/**
+	 * Runs a call in the background on the pool set with
+	 * {@link #setExecutor(ExecutorService)}. Any RemoteException it throws is
+	 * available from the future (wrapped in ExecutionException).
+	 * @param call Call to run
+	 * @return Future for the result
+	 */
+	protected <T extends Object> Future<T> submit(Callable<T> call) {
+		ExecutorService current = executor;
+		if (current != null) {
+			return current.submit(call);
+		}
+		FutureTask<T> task = new FutureTask<T>(call);
+		task.run();
+		return task;
+	}
 
-		double[] adAvg = new double[serviceUrls.length];
-		double[] adAvgSq = new double[serviceUrls.length];
-		double dSumAvgSq = 0;
+	/**
+	 * Picks a service for a key using the affinity ring, with a bound on load
+	 * so that a busy key spills over to the key's next service.
+	 * @param ring Affinity ring
+	 * @param key Key
+	 * @param unavailable Services that must not be chosen
+	 * @return Chosen service
+	 */
+	private int pickAffinity(ConsistentHashRing ring, String key, boolean[] unavailable) {
+		int total = 0, available = 0;
 		for (int i = 0; i < serviceUrls.length; i++) {
-			adAvg[i] = movingAverages[i].get() + 1.0; // The+1.0 is just to fudge it, otherwise when they're all 0 it's not so great
-			adAvgSq[i] = adAvg[i]*adAvg[i];
-			dSumAvgSq += adAvgSq[i];
+			if (!unavailable[i]) {
+				total += limiters[i].getInProgress();
+				available++;
+			}
 		}
-		double[] adProb = new double[serviceUrls.length];
-		double dDenominator = (serviceUrls.length - 1)*dSumAvgSq;
-		StringBuffer sb = null;
-		if (logExtraDebug) {
-			sb = new StringBuffer("QE performance: ");
+		double bound = Math.ceil(AFFINITYLOADFACTOR * (total + 1) / available);
+
+		int[] preference = ring.getPreference(key);
+		int first = -1;
+		for (int i = 0; i < preference.length; i++) {
+			int service = preference[i];
+			if (unavailable[service]) {
+				continue;
+			}
+			if (first == -1) {
+				first = service;
+			}
+			if (limiters[service].getInProgress() + 1 <= bound) {
+				if (service == preference[0]) {
+					affinityHits.incrementAndGet();
+				} else {
+					affinityMisses.incrementAndGet();
+				}
+				return service;
+			}
 		}
+		// Can't happen (the least busy service is always within bound) but
+		// just in case
+		affinityMisses.incrementAndGet();
+		return first;
+	}
+
+	/**
+	 * Finds services that shouldn't be used because their circuit breaker is
+	 * open. If all services are in that state, none are excluded (as there is
+	 * nothing better to try).
+	 * @param timeNow Current time
+	 * @return Array of flags, true if service should not be used
+	 */
+	private boolean[] getUnavailable(long timeNow) {
+		boolean[] unavailable = new boolean[serviceUrls.length];
+		boolean any = false;
 		for (int i = 0; i < serviceUrls.length; i++) {
-			if(dDenominator < 0.0001) {
-				adProb[i] = 1.0;
-			} else {
-				adProb[i] = (dSumAvgSq - adAvgSq[i]) / dDenominator;
-			}
+			unavailable[i] = !breakers[i].isAvailable(timeNow);
+			any |= !unavailable[i];
+		}
+		return any ? unavailable : new boolean[serviceUrls.length];
+	}
+
+	/**
+	 * @param unavailable Services that must not be chosen
+	 * @return Service chosen by the current strategy
+	 */
+	private int pickServer(boolean[] unavailable) {
+		long timeNow = System.currentTimeMillis();
+		SelectionStrategy current = strategy;
 
-			if(logExtraDebug) {
-				sb.append("[" + (i + 1) + "] " + Strings.formatOneDecimal(adAvg[i]) +
-						"ms, " + Strings.formatOneDecimal(adProb[i]*100.0) + "% ");
+		// Give the strategy only the services that can be used
+		int[] index = new int[serviceUrls.length];
+		int count = 0;
+		for (int i = 0; i < serviceUrls.length; i++) {
+			if (!unavailable[i]) {
+				index[count++] = i;
+			}
+		}
+		int pick;
+		if (count == serviceUrls.length) {
+			pick = current.pick(movingAverages, latencies, limiters, timeNow);
+		} else {
+			MovingAverage[] availableAverages = new MovingAverage[count];
+			LatencyEWMA[] availableLatencies = new LatencyEWMA[count];
+			RequestLimiter[] availableLimiters = new RequestLimiter[count];
+			for (int i = 0; i < count; i++) {
+				availableAverages[i] = movingAverages[index[i]];
+				availableLatencies[i] = latencies[index[i]];
+				availableLimiters[i] = limiters[index[i]];
 			}
+			pick = index[current.pick(availableAverages, availableLatencies, availableLimiters, timeNow)];
 		}
+
 		if (logExtraDebug) {
+			StringBuffer sb = new StringBuffer("QE performance (" + current.getName() + "): ");
+			for (int i = 0; i < serviceUrls.length; i++) {
+				sb.append("[" + (i + 1) + "] " + Strings.formatOneDecimal(movingAverages[i].get()) +
+						"ms, " + Strings.formatOneDecimal(latencies[i].get(timeNow)) + "ms decaying, " +
+						limiters[i].getInProgress() + " in progress" +
+						(unavailable[i] ? ", unavailable " : " "));
+			}
+			sb.append("- picked [" + (pick + 1) + "]");
 			l.logDebug("OmServiceBalancer", sb.toString());
 		}
+		return pick;
+	}
+
+	/**
+	 * Records the time taken by a successful call.
+	 * @param iService Service index
+	 * @param elapsedTime Time (ms)
+	 */
+	private void recordTime(int iService, long elapsedTime) {
+		movingAverages[iService].add(elapsedTime);
+		latencies[iService].add(elapsedTime, System.currentTimeMillis());
+		breakers[iService].recordSuccess();
+	}
+
+	/**
+	 * Adds a penalty for a failed call, and updates the circuit breaker if
+	 * the service itself failed.
+	 * @param iService Service index
+	 * @param re Exception from the call
+	 */
+	private void recordFailure(int iService, RemoteException re) {
+		movingAverages[iService].add(FAILUREPENALTY);
+		latencies[iService].add(FAILUREPENALTY, System.currentTimeMillis());
+		if (isServiceFailure(re)) {
+			recordBreakerFailure(iService);
+		} else {
+			breakers[iService].recordNoResult();
+		}
+	}
+
+	/**
+	 * Updates the circuit breaker after a service failure.
+	 * @param iService Service index
+	 */
+	private void recordBreakerFailure(int iService) {
+		if (breakers[iService].recordFailure(System.currentTimeMillis()) && l != null) {
+			l.logWarning("OmServiceBalancer", "Service " + serviceUrls[iService] +
+					" taken out of use after " + BREAKERFAILURES + " consecutive failures");
+		}
+	}
 
-		double dPick = Math.random();
-		for(int i = 0;i < serviceUrls.length; i++) {
-			dPick -= adProb[i];
-			if (dPick < 0) {
-				return i;
+	/**
+	 * Decides whether an exception means the service isn't working (as opposed
+	 * to reporting an error in the request). The default treats exceptions
+	 * caused by communication errors as service failures.
+	 * @param re Exception from a call
+	 * @return True if the service failed
+	 */
+	protected boolean isServiceFailure(RemoteException re) {
+		for (Throwable t = re.getCause(); t != null; t = t.getCause()) {
+			if (t instanceof IOException && !(t instanceof RemoteException)) {
+				return true;
 			}
 		}
-		return serviceUrls.length - 1;
+		return false;
 	}
 
 	/** Interface for things that can be balanced using balanceThing() */
@@ -168,23 +396,90 @@ public abstract class ServiceBalancer<ServiceType extends java.rmi.Remote>
 		protected abstract T run(ServiceType service) throws RemoteException;
 	}
 
+	/**
+	 * Takes a request slot on a service. If the service is at its limit, the
+	 * request goes to another service that has a free slot (if allowed), or
+	 * else waits for a slot on the chosen one.
+	 * @param pick Chosen service
+	 * @param spillTo Services that may be used instead (array of flags,
+	 *   true = exclude), or null if the request must use the chosen one
+	 * @return Index of service whose slot was taken (caller must release it)
+	 * @throws RemoteException If no slot became free in time
+	 */
+	private int acquire(int pick, boolean[] spillTo) throws RemoteException {
+		if (limiters[pick].tryAcquire()) {
+			return pick;
+		}
+		if (spillTo != null) {
+			for (int i = 1; i < serviceUrls.length; i++) {
+				int other = (pick + i) % serviceUrls.length;
+				if (!spillTo[other] && limiters[other].tryAcquire()) {
+					limiters[pick].recordSpill();
+					if (logExtraDebug) {
+						l.logDebug("OmServiceBalancer", "Service " + serviceUrls[pick] +
+								" busy, using " + serviceUrls[other]);
+					}
+					return other;
+				}
+			}
+		}
+		if (limiters[pick].acquire(queueWait)) {
+			return pick;
+		}
+		throw new RemoteException("Service " + serviceUrls[pick] + " busy: " +
+				limiters[pick].getMaxRequests() + " requests in progress, none finished within " +
+				queueWait + "ms");
+	}
+
 	/**
 	 * Load-balances (retrying across different services) a task.
 	 * @param rt Receives timing information (may be null)
 	 * @param b Task to balance
-	 * @throws RemoteException If the task fails on all services
+	 * @throws RemoteException If the task fails on all services, or if all
+	 *   services are busy
 	 */
 	protected <T extends Object> T balanceServiceTask(RequestTimings rt, ServiceTask<T> b) throws RemoteException {
-		int initialPick=pickServer();
-		int iService=initialPick;
+		return balanceServiceTask(rt, null, b);
+	}
+
+	/**
+	 * Load-balances (retrying across different services) a task, using
+	 * affinity if it is turned on.
+	 * @param rt Receives timing information (may be null)
+	 * @param affinityKey Key that decides the preferred service when affinity
+	 *   is on (e.g. question ID), or null to use the strategy
+	 * @param b Task to balance
+	 * @throws RemoteException If the task fails on all services, or if all
+	 *   services are busy
+	 */
+	protected <T extends Object> T balanceServiceTask(RequestTimings rt, String affinityKey,
+			ServiceTask<T> b) throws RemoteException {
+		// Services with open circuit breakers count as already tried
+		boolean[] tried = getUnavailable(System.currentTimeMillis());
+		ConsistentHashRing ring = affinityRing;
+		int iPick = (ring != null && affinityKey != null)
+				? pickAffinity(ring, affinityKey, tried) : pickServer(tried);
 		while (true) {
+			int iService = acquire(iPick, tried);
+			tried[iService] = true;
+
+			// A half-open service takes only one trial request at a time; others
+			// go elsewhere if there is anywhere left
+			if (!breakers[iService].tryRequest(System.currentTimeMillis())) {
+				int iNext = nextUntried(iService, tried);
+				if (iNext != -1) {
+					limiters[iService].release();
+					iPick = iNext;
+					continue;
+				}
+			}
 			try {
 				long startTime = System.currentTimeMillis();
 
 				T result = b.run(services.get(iService));
 
 				long elapsedTime = System.currentTimeMillis() - startTime;
-				movingAverages[iService].add(elapsedTime);
+				recordTime(iService, elapsedTime);
 				if (rt != null) {
 					rt.recordServiceTime(elapsedTime);
 				}
@@ -195,17 +490,85 @@ public abstract class ServiceBalancer<ServiceType extends java.rmi.Remote>
 							"failed at balanced task", re);
 				}
 				// Add a penalty for not working
-				movingAverages[iService].add(FAILUREPENALTY);
+				recordFailure(iService, re);
 
-				// Try next service - if there are any left!
-				iService = (iService + 1) % serviceUrls.length;
-				if (iService==initialPick) {
+				// Try next service - if there are any left! (The call may have
+				// spilled away from iPick, so look at every service.)
+				iPick = nextUntried(iService, tried);
+				if (iPick == -1) {
 					throw re;
 				}
+			} finally {
+				limiters[iService].release();
 			}
 		}
 	}
 
+	/**
+	 * @param iService Service to start after
+	 * @param tried Services already tried (array of flags)
+	 * @return Next service not yet tried, or -1 if there are none
+	 */
+	private int nextUntried(int iService, boolean[] tried) {
+		for (int i = 1; i <= serviceUrls.length; i++) {
+			int iNext = (iService + i) % serviceUrls.length;
+			if (!tried[iNext]) {
+				return iNext;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Runs a task on every service in turn (for tasks that affect the state of
+	 * each service, such as warming it up, rather than obtaining a result).
+	 * Failures are logged and penalised as for balanced tasks, but don't stop
+	 * the task running on the remaining services. Services whose circuit
+	 * breaker is open are skipped.
+	 * @param rt Receives timing information (may be null)
+	 * @param b Task to run
+	 * @return Number of services on which the task succeeded
+	 */
+	protected <T extends Object> int broadcastServiceTask(RequestTimings rt, ServiceTask<T> b) {
+		int successes = 0;
+		for (int iService = 0; iService < serviceUrls.length; iService++) {
+			if (!breakers[iService].isAvailable(System.currentTimeMillis())) {
+				continue;
+			}
+			try {
+				acquire(iService, null);
+			} catch (RemoteException re) {
+				if (l != null) {
+					l.logError("OmServiceBalancer" , "Service " + serviceUrls[iService] +
+							"skipped for broadcast task", re);
+				}
+				continue;
+			}
+			try {
+				long startTime = System.currentTimeMillis();
+
+				b.run(services.get(iService));
+
+				long elapsedTime = System.currentTimeMillis() - startTime;
+				recordTime(iService, elapsedTime);
+				if (rt != null) {
+					rt.recordServiceTime(elapsedTime);
+				}
+				successes++;
+			} catch (RemoteException re) {
+				if (l != null) {
+					l.logError("OmServiceBalancer" , "Service " + serviceUrls[iService] +
+							"failed at broadcast task", re);
+				}
+				// Add a penalty for not working
+				recordFailure(iService, re);
+			} finally {
+				limiters[iService].release();
+			}
+		}
+		return successes;
+	}
+
 	/**
 	 * @return A relatively cheap service task that can be called to check that the remote
 	 * service is still working. Obviously, this should not have any permanent effect.
@@ -218,20 +581,19 @@ public abstract class ServiceBalancer<ServiceType extends java.rmi.Remote>
 	 */
 	public class StickySession {
 		/** Service index */
+		private final int serviceIndex;
 		private final ServiceType service;
-		private final MovingAverage movingAverage;
 		private final URL serviceUrl;
 		/**
 		 * @param service
-		 * @param movingAverage
 		 */
 		protected StickySession(ServiceType service) {
 			this.service = service;
 			for (int i = 0; i < serviceUrls.length; i++) {
 				ServiceType tempService = services.get(i);
 				if (service == tempService) {
+					serviceIndex = i;
 					serviceUrl = serviceUrls[i];
-					movingAverage = movingAverages[i];
 					return;
 
 				}
@@ -239,14 +601,22 @@ public abstract class ServiceBalancer<ServiceType extends java.rmi.Remote>
 			throw new OmUnexpectedException("Attemtpt to start a StickySession with an unrecognise service.");
 		}
 
+		/**
+		 * Runs a task on this session's service. If the service is at its
+		 * limit, waits for a free slot.
+		 * @param rt Receives timing information (may be null)
+		 * @param b Task to run
+		 * @throws RemoteException If the task fails, or the service stays busy
+		 */
 		protected <T extends Object> T doServiceTask(RequestTimings rt, ServiceTask<T> b) throws RemoteException {
+			acquire(serviceIndex, null);
 			try {
 				long startTime = System.currentTimeMillis();
 
 				T result = b.run(service);
 
 				long elapsedTime = System.currentTimeMillis() - startTime;
-				movingAverage.add(elapsedTime);
+				recordTime(serviceIndex, elapsedTime);
 				if (rt != null) {
 					rt.recordServiceTime(elapsedTime);
 				}
@@ -257,8 +627,10 @@ public abstract class ServiceBalancer<ServiceType extends java.rmi.Remote>
 							"failed at task", re);
 				}
 				// Add a penalty for not working
-				movingAverage.add(ServiceBalancer.FAILUREPENALTY);
+				recordFailure(serviceIndex, re);
 				throw re;
+			} finally {
+				limiters[serviceIndex].release();
 			}
 		}
 
@@ -282,6 +654,82 @@ public abstract class ServiceBalancer<ServiceType extends java.rmi.Remote>
 		return (int) (System.currentTimeMillis() - startTime);
 	}
 
+	/**
+	 * Starts background threads that regularly run the check task on each
+	 * service and update its circuit breaker, so that a failed service is
+	 * taken out of use (and put back when it recovers) without waiting for
+	 * user requests to find out.
+	 * @param interval Time (ms) between checks of each service
+	 */
+	public synchronized void startProbing(int interval) {
+		if (probers != null) {
+			return;
+		}
+		probers = new ArrayList<Prober>(serviceUrls.length);
+		for (int i = 0; i < serviceUrls.length; i++) {
+			probers.add(new Prober(interval, i));
+		}
+	}
+
+	/**
+	 * Stops the background threads started by {@link #startProbing(int)}, if
+	 * any. (Waits for any check in progress to finish.)
+	 */
+	public synchronized void close() {
+		if (probers == null) {
+			return;
+		}
+		for (Prober p : probers) {
+			p.close();
+		}
+		probers = null;
+	}
+
+	/** Thread that checks one service */
+	private class Prober extends PeriodicThread {
+		/** Service index */
+		private int serviceIndex;
+
+		/**
+		 * @param interval Time (ms) between checks
+		 * @param serviceIndex Service index
+		 */
+		Prober(int interval, int serviceIndex) {
+			super(interval);
+			this.serviceIndex = serviceIndex;
+			setName("Service prober: " + serviceUrls[serviceIndex]);
+		}
+
+		@Override
+		protected void tick() {
+			try {
+				long startTime = System.currentTimeMillis();
+				getCheckTask().run(services.get(serviceIndex));
+				long timeNow = System.currentTimeMillis();
+
+				CircuitBreaker cb = breakers[serviceIndex];
+				boolean wasOut = cb.getState(timeNow) != CircuitBreaker.State.CLOSED;
+				cb.recordSuccess();
+				if (wasOut) {
+					// Forget the failure penalties, otherwise strategies would keep
+					// avoiding the service long after it recovered
+					movingAverages[serviceIndex].clear();
+					latencies[serviceIndex].reset(timeNow - startTime, timeNow);
+					if (l != null) {
+						l.logNormal("OmServiceBalancer", "Service " + serviceUrls[serviceIndex] +
+								" is working again");
+					}
+				}
+			} catch (RemoteException re) {
+				if (logExtraDebug) {
+					l.logDebug("OmServiceBalancer", "Service " + serviceUrls[serviceIndex] +
+							" failed check", re);
+				}
+				recordBreakerFailure(serviceIndex);
+			}
+		}
+	}
+
 	/**
 	 * Obtains information about question engine performance.
 	 * @return XHTML element that can be added to server status page.
@@ -290,10 +738,28 @@ public abstract class ServiceBalancer<ServiceType extends java.rmi.Remote>
 	{
 		Element eTable = XML.createDocument().createElement("table");
 		eTable.setAttribute("class", "topheaders");
+		String caption = "Balancing strategy: " + strategy.getName();
+		if (affinityRing != null) {
+			long hits = affinityHits.get(), total = hits + affinityMisses.get();
+			caption += "; question affinity: " + (total == 0 ? "no requests yet"
+					: Strings.formatOneDecimal(hits * 100.0 / total) + "% of " + total +
+					" to preferred engine");
+		}
+		XML.createText(eTable, "caption", caption);
 
 		Element eTR = XML.createChild(eTable,"tr");
 		XML.createText(eTR, "th", "Engine");
 		XML.createText(eTR, "th", "Performance");
+		XML.createText(eTR, "th", "Decaying average");
+		XML.createText(eTR, "th", "In progress");
+		XML.createText(eTR, "th", "Queued");
+		XML.createText(eTR, "th", "Waits");
+		XML.createText(eTR, "th", "Mean wait");
+		XML.createText(eTR, "th", "Max wait");
+		XML.createText(eTR, "th", "Spilled");
+		XML.createText(eTR, "th", "Timed out");
+		XML.createText(eTR, "th", "Status");
+		XML.createText(eTR, "th", "Times failed");
 
 		for(int i = 0; i < serviceUrls.length; i++)
 		{
@@ -301,6 +767,21 @@ public abstract class ServiceBalancer<ServiceType extends java.rmi.Remote>
 			XML.createText(eTR, "td", serviceUrls[i].getHost().replaceAll(".open.ac.uk", "") +
 					serviceUrls[i].getPath());
 			XML.createText(eTR, "td", "" + (int) movingAverages[i].get());
+			XML.createText(eTR, "td", "" + (int) latencies[i].get(System.currentTimeMillis()));
+			RequestLimiter rl = limiters[i];
+			XML.createText(eTR, "td", rl.getInProgress() +
+					(rl.getMaxRequests() > 0 ? " / " + rl.getMaxRequests() : ""));
+			XML.createText(eTR, "td", "" + rl.getQueued());
+			XML.createText(eTR, "td", "" + rl.getWaits());
+			XML.createText(eTR, "td", Strings.formatOneDecimal(rl.getMeanWait()));
+			XML.createText(eTR, "td", "" + rl.getMaxWait());
+			XML.createText(eTR, "td", "" + rl.getSpills());
+			XML.createText(eTR, "td", "" + rl.getTimeouts());
+			CircuitBreaker cb = breakers[i];
+			CircuitBreaker.State state = cb.getState(System.currentTimeMillis());
+			XML.createText(eTR, "td", state == CircuitBreaker.State.CLOSED ? "OK"
+					: state == CircuitBreaker.State.OPEN ? "Out of use" : "Retrying");
+			XML.createText(eTR, "td", "" + cb.getTrips());
 		}
 
 		return eTable;
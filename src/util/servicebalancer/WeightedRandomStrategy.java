@@ -0,0 +1,90 @@
+/* OpenMark online assessment system
+   Copyright (C) 2007 The Open University
+
+   This program is free software; you can redistribute it and/or
+   modify it under the terms of the GNU General Public License
+   as published by the Free Software Foundation; either version 2
+   of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software
+   Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package util.servicebalancer;
+
+/**
+ * The original balancing strategy. Picks a service at random, weighted
+ * against those with a high recent average call time:
+ * <p>
+ * p(choosing server A) = (sum(avgsq) - avgsq[A]) / (SERVERS-1)*(sum(avgsq))
+ * <p>
+ * Zeros are added to every average once a minute so that 'bad' times are
+ * forgotten after 20 minutes; otherwise it would be very unlikely that a
+ * slow server would ever be chosen again.
+ */
+public class WeightedRandomStrategy extends SelectionStrategy
+{
+	/** Name in configuration */
+	public final static String NAME="weighted";
+
+	/** How often we add a zero to the averages (1 min, meaning a 'bad' number stays
+	 * for 20 mins) */
+	private final static int AVERAGEUPDATEDELAY=1*60*1000;
+
+	/** Time of last zero (-1 before first pick) */
+	private long lLastZero=-1;
+
+	@Override
+	public String getName()
+	{
+		return NAME;
+	}
+
+	@Override
+	public int pick(MovingAverage[] averages,LatencyEWMA[] latencies,
+		RequestLimiter[] limiters,long lNow)
+	{
+		addZeros(averages,lNow);
+
+		double[] adAvgSq=new double[averages.length];
+		double dSumAvgSq=0;
+		for(int i=0;i<averages.length;i++)
+		{
+			double dAvg=averages[i].get()+1.0; // The+1.0 is just to fudge it, otherwise when they're all 0 it's not so great
+			adAvgSq[i]=dAvg*dAvg;
+			dSumAvgSq+=adAvgSq[i];
+		}
+		double dDenominator=(averages.length-1)*dSumAvgSq;
+
+		double dPick=RANDOM.nextDouble();
+		for(int i=0;i<averages.length;i++)
+		{
+			dPick-=dDenominator<0.0001 ? 1.0 : (dSumAvgSq-adAvgSq[i])/dDenominator;
+			if(dPick<0) return i;
+		}
+		return averages.length-1;
+	}
+
+	/**
+	 * Adds zeros to the averages, one for each minute since the last time.
+	 * @param averages Averages
+	 * @param lNow Current time
+	 */
+	private synchronized void addZeros(MovingAverage[] averages,long lNow)
+	{
+		if(lLastZero==-1) lLastZero=lNow;
+		while(lLastZero+AVERAGEUPDATEDELAY<lNow)
+		{
+			for(int i=0;i<averages.length;i++)
+			{
+				averages[i].add(0);
+			}
+			lLastZero+=AVERAGEUPDATEDELAY;
+		}
+	}
+}
@@ -0,0 +1,455 @@
+/* OpenMark online assessment system
+   Copyright (C) 2007 The Open University
+
+   This program is free software; you can redistribute it and/or
+   modify it under the terms of the GNU General Public License
+   as published by the Free Software Foundation; either version 2
+   of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software
+   Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package util.xml;
+
+import java.io.*;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.w3c.dom.*;
+
+/**
+ * An XHTML page template converted, once, into the exact bytes that
+ * {@link XHTML#saveFullDocument(Document, Writer, boolean, String)} would
+ * produce, split into static segments around the parts that vary per page.
+ * Pages can then be written straight to an output stream without cloning
+ * the template, replacing tokens in it, or serializing it again.
+ * <p>
+ * The varying parts are:
+ * <ul>
+ * <li>%%TOKEN%% values in text and attributes, with the same rules as
+ *   {@link XML#replaceTokens(Node, Map)}: %%%% becomes %%, and tokens that
+ *   are not in the map are left alone. A token mapped to null removes any
+ *   attribute whose whole value is that token.</li>
+ * <li>Slots at the start and end of chosen elements (identified by id, or by
+ *   tag name for elements without an id), which receive DOM content when the
+ *   page is written. The slot at the start of element x is called x:start
+ *   and the one at the end is called x.</li>
+ * <li>Optional elements (identified by id), which can be left out of the
+ *   page.</li>
+ * </ul>
+ * Instances are immutable and may be shared between threads.
+ */
+public class CompiledTemplate
+{
+	/** Token pattern, as used by XML.replaceTokens */
+	private final static Pattern TOKENS=Pattern.compile("%%(.*?)%%",Pattern.DOTALL);
+
+	/** Suffix for names of slots at the start of an element */
+	public final static String SLOTSTART=":start";
+
+	/** Part types */
+	private final static int
+		PART_BYTES=0,PART_TEXT=1,PART_ATTRIBUTE=2,PART_ROOTATTRIBUTE=3,
+		PART_SLOT=4,PART_OPTIONAL=5;
+
+	/** One piece of the compiled page */
+	private static class Part
+	{
+		int iType;
+		/** Static bytes (PART_BYTES) */
+		byte[] abBytes;
+		/** Slot name, optional element id, or attribute name */
+		String sName;
+		/** Alternating literal text and token names (PART_TEXT, PART_ATTRIBUTE) */
+		String[] asPieces;
+		/** Index of the first part after this optional element (PART_OPTIONAL) */
+		int iSkipTo;
+	}
+
+	/** Compiled parts in order */
+	private Part[] ap;
+
+	/** Slots and optional elements, used while compiling */
+	private Set<String> sSlots,sOptional;
+
+	/** Parts so far, used while compiling */
+	private List<Part> lParts=new LinkedList<Part>();
+
+	/** Static content not yet stored as a part, used while compiling */
+	private StringBuffer sbPending=new StringBuffer();
+
+	/**
+	 * Compiles a template. The document is not changed or kept.
+	 * @param d Template document (root element will be replaced by &lt;html&gt;
+	 *   as in XHTML.saveFullDocument)
+	 * @param sLang Default language of page
+	 * @param asSlots Ids (or tag names) of elements that have slots
+	 * @param asOptional Ids of elements that can be left out
+	 * @throws IOException Any error
+	 */
+	public CompiledTemplate(Document d,String sLang,String[] asSlots,String[] asOptional)
+		throws IOException
+	{
+		sSlots=new HashSet<String>(Arrays.asList(asSlots));
+		sOptional=new HashSet<String>(Arrays.asList(asOptional));
+
+		// Prologue, without the closing > of the html tag
+		StringWriter sw=new StringWriter();
+		XHTML.writePrologue(sw,false,sLang,null);
+		String sPrologue=sw.toString();
+		sbPending.append(sPrologue.substring(0,sPrologue.lastIndexOf('>')));
+
+		Element eRoot=d.getDocumentElement();
+		NamedNodeMap nnm=eRoot.getAttributes();
+		for(int i=0;i<nnm.getLength();i++)
+		{
+			Attr a=(Attr)nnm.item(i);
+			String[] asPieces=split(a.getValue());
+			if(asPieces.length==1)
+			{
+				sbPending.append(" "+a.getName()+"='"+
+					XHTML.escape(asPieces[0],XHTML.ESCAPE_ATTRSQ)+"'");
+			}
+			else
+			{
+				Part p=addPart(PART_ROOTATTRIBUTE);
+				p.sName=a.getName();
+				p.asPieces=asPieces;
+			}
+		}
+		sbPending.append(">\n");
+
+		compileChildren(eRoot);
+		sbPending.append("</html>");
+		flushPending();
+
+		ap=lParts.toArray(new Part[lParts.size()]);
+		lParts=null;
+		sbPending=null;
+		sSlots=null;
+		sOptional=null;
+	}
+
+	/**
+	 * Splits a string into literal text and tokens.
+	 * @param sValue String from template
+	 * @return Array alternating literal text (even indexes) and token names
+	 *   (odd indexes); a single literal if there are no tokens
+	 */
+	private static String[] split(String sValue)
+	{
+		List<String> l=new ArrayList<String>();
+		StringBuffer sbLiteral=new StringBuffer();
+		Matcher m=TOKENS.matcher(sValue);
+		int iPos=0;
+		while(m.find())
+		{
+			sbLiteral.append(sValue.substring(iPos,m.start()));
+			iPos=m.end();
+			if(m.group(1).equals(""))
+			{
+				sbLiteral.append("%%");
+			}
+			else
+			{
+				l.add(sbLiteral.toString());
+				sbLiteral.setLength(0);
+				l.add(m.group(1));
+			}
+		}
+		sbLiteral.append(sValue.substring(iPos));
+		l.add(sbLiteral.toString());
+		return l.toArray(new String[l.size()]);
+	}
+
+	/**
+	 * Stores pending static content as a part.
+	 * @throws IOException Any error
+	 */
+	private void flushPending() throws IOException
+	{
+		if(sbPending.length()==0) return;
+		Part p=new Part();
+		p.iType=PART_BYTES;
+		p.abBytes=sbPending.toString().getBytes("UTF-8");
+		lParts.add(p);
+		sbPending.setLength(0);
+	}
+
+	/**
+	 * Adds a part after any pending static content.
+	 * @param iType Part type
+	 * @return New part
+	 * @throws IOException Any error
+	 */
+	private Part addPart(int iType) throws IOException
+	{
+		flushPending();
+		Part p=new Part();
+		p.iType=iType;
+		lParts.add(p);
+		return p;
+	}
+
+	/**
+	 * Compiles the children of an element, treating adjacent text nodes as one
+	 * (as XML.replaceTokens does).
+	 * @param e Element
+	 * @throws IOException Any error
+	 */
+	private void compileChildren(Element e) throws IOException
+	{
+		StringBuffer sbText=null;
+		for(Node n=e.getFirstChild();n!=null;n=n.getNextSibling())
+		{
+			if(n instanceof Text)
+			{
+				if(sbText==null) sbText=new StringBuffer();
+				sbText.append(n.getNodeValue());
+				continue;
+			}
+			if(sbText!=null)
+			{
+				compileText(sbText.toString());
+				sbText=null;
+			}
+			compileNode(n);
+		}
+		if(sbText!=null) compileText(sbText.toString());
+	}
+
+	/**
+	 * Compiles a text run.
+	 * @param sText Text
+	 * @throws IOException Any error
+	 */
+	private void compileText(String sText) throws IOException
+	{
+		String[] asPieces=split(sText);
+		for(int i=0;i<asPieces.length;i+=2)
+		{
+			asPieces[i]=XHTML.escape(asPieces[i],XHTML.ESCAPE_TEXT);
+		}
+		if(asPieces.length==1)
+		{
+			sbPending.append(asPieces[0]);
+		}
+		else
+		{
+			addPart(PART_TEXT).asPieces=asPieces;
+		}
+	}
+
+	/**
+	 * Compiles a non-text node, matching XHTML.save.
+	 * @param n Node
+	 * @throws IOException Any error
+	 */
+	private void compileNode(Node n) throws IOException
+	{
+		if(n.getNodeType()==Node.COMMENT_NODE)
+		{
+			sbPending.append("<!-- "+n.getNodeValue()+" -->");
+			return;
+		}
+		if(n.getNodeType()!=Node.ELEMENT_NODE)
+		{
+			StringWriter sw=new StringWriter();
+			XHTML.save(n,sw);
+			sbPending.append(sw.toString());
+			return;
+		}
+
+		Element e=(Element)n;
+		String sId=e.getAttribute("id");
+		Part pOptional=null;
+		if(sOptional.contains(sId))
+		{
+			pOptional=addPart(PART_OPTIONAL);
+			pOptional.sName=sId;
+		}
+
+		sbPending.append("<"+e.getTagName());
+		NamedNodeMap nnm=e.getAttributes();
+		for(int i=0;i<nnm.getLength();i++)
+		{
+			Attr a=(Attr)nnm.item(i);
+			String[] asPieces=split(a.getValue());
+			if(asPieces.length==1)
+			{
+				appendAttribute(sbPending,a.getName(),asPieces[0]);
+			}
+			else
+			{
+				Part p=addPart(PART_ATTRIBUTE);
+				p.sName=a.getName();
+				p.asPieces=asPieces;
+			}
+		}
+
+		if(XHTML.isMinimized(e.getTagName()))
+		{
+			sbPending.append(" />");
+		}
+		else
+		{
+			sbPending.append(">");
+			String sSlot=sId.length()>0 ? sId : e.getTagName();
+			boolean bSlot=sSlots.contains(sSlot);
+			if(bSlot) addPart(PART_SLOT).sName=sSlot+SLOTSTART;
+			compileChildren(e);
+			if(bSlot) addPart(PART_SLOT).sName=sSlot;
+			sbPending.append("</"+e.getTagName()+">");
+		}
+
+		if(pOptional!=null)
+		{
+			flushPending();
+			pOptional.iSkipTo=lParts.size();
+		}
+	}
+
+	/**
+	 * Appends an attribute in the same way as XHTML.save.
+	 * @param sb Buffer
+	 * @param sName Attribute name
+	 * @param sValue Attribute value
+	 */
+	private static void appendAttribute(StringBuffer sb,String sName,String sValue)
+	{
+		if(sValue.indexOf('\"')!=-1)
+			sb.append(" "+sName+"=\'"+XHTML.escape(sValue,XHTML.ESCAPE_ATTRSQ)+"\'");
+		else
+			sb.append(" "+sName+"=\""+XHTML.escape(sValue,XHTML.ESCAPE_ATTRDQ)+"\"");
+	}
+
+	/**
+	 * Resolves tokens.
+	 * @param asPieces Literal text and token names, from split
+	 * @param mTokens Token values
+	 * @param bEscape True to escape token values as text
+	 * @return Resolved string
+	 */
+	private static String resolve(String[] asPieces,Map<String,String> mTokens,boolean bEscape)
+	{
+		StringBuffer sb=new StringBuffer(asPieces[0]);
+		for(int i=1;i<asPieces.length;i+=2)
+		{
+			String sValue=mTokens.get(asPieces[i]);
+			if(sValue==null) sValue="%%"+asPieces[i]+"%%";
+			sb.append(bEscape ? XHTML.escape(sValue,XHTML.ESCAPE_TEXT) : sValue);
+			sb.append(asPieces[i+1]);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @param asPieces Literal text and token names, from split
+	 * @param mTokens Token values
+	 * @return True if the attribute should be left out
+	 */
+	private static boolean isRemoved(String[] asPieces,Map<String,String> mTokens)
+	{
+		return asPieces.length==3 && asPieces[0].length()==0 && asPieces[2].length()==0
+			&& mTokens.containsKey(asPieces[1]) && mTokens.get(asPieces[1])==null;
+	}
+
+	/**
+	 * Outputs a page in response to a servlet request, setting headers in the
+	 * same way as {@link XHTML#output(Document, HttpServletRequest, HttpServletResponse, String)}.
+	 * @param request Servlet request
+	 * @param response Servlet response
+	 * @param mTokens Map of token name to value
+	 * @param mSlots Map of slot name to content
+	 * @param sOmit Ids of optional elements to leave out
+	 * @throws IOException In event of I/O errors
+	 */
+	public void output(HttpServletRequest request,HttpServletResponse response,
+		Map<String,String> mTokens,Map<String,? extends Node> mSlots,Set<String> sOmit)
+		throws IOException
+	{
+		if(XHTML.isIE9(request))
+		{
+			response.addHeader("X-UA-Compatible","IE=8");
+		}
+		XHTML.setContentType(request,response);
+		OutputStream os=new BufferedOutputStream(response.getOutputStream());
+		write(os,mTokens,mSlots,sOmit);
+		os.close();
+	}
+
+	/**
+	 * Writes a page.
+	 * @param os Output stream (receives UTF-8; not closed)
+	 * @param mTokens Map of token name to value
+	 * @param mSlots Map of slot name to content (an element, or a
+	 *   DocumentFragment for several nodes); slots not in the map stay empty
+	 * @param sOmit Ids of optional elements to leave out
+	 * @throws IOException Any error
+	 */
+	public void write(OutputStream os,Map<String,String> mTokens,
+		Map<String,? extends Node> mSlots,Set<String> sOmit) throws IOException
+	{
+		Writer w=new OutputStreamWriter(os,"UTF-8");
+		for(int i=0;i<ap.length;i++)
+		{
+			Part p=ap[i];
+			switch(p.iType)
+			{
+			case PART_BYTES:
+				os.write(p.abBytes);
+				break;
+			case PART_TEXT:
+				w.write(resolve(p.asPieces,mTokens,true));
+				w.flush();
+				break;
+			case PART_ATTRIBUTE:
+				if(!isRemoved(p.asPieces,mTokens))
+				{
+					StringBuffer sb=new StringBuffer();
+					appendAttribute(sb,p.sName,resolve(p.asPieces,mTokens,false));
+					w.write(sb.toString());
+					w.flush();
+				}
+				break;
+			case PART_ROOTATTRIBUTE:
+				if(!isRemoved(p.asPieces,mTokens))
+				{
+					w.write(" "+p.sName+"='"+XHTML.escape(
+						resolve(p.asPieces,mTokens,false),XHTML.ESCAPE_ATTRSQ)+"'");
+					w.flush();
+				}
+				break;
+			case PART_SLOT:
+				Node n=mSlots.get(p.sName);
+				if(n==null) break;
+				if(n instanceof DocumentFragment)
+				{
+					for(Node nChild=n.getFirstChild();nChild!=null;nChild=nChild.getNextSibling())
+					{
+						XHTML.save(nChild,w);
+					}
+				}
+				else
+				{
+					XHTML.save(n,w);
+				}
+				w.flush();
+				break;
+			case PART_OPTIONAL:
+				if(sOmit.contains(p.sName)) i=p.iSkipTo-1;
+				break;
+			}
+		}
+	}
+}
@@ -34,6 +34,15 @@ public class XHTML
 	private static Collection<String> sMinimize=new HashSet<String>(Arrays.asList(
 			new String[] {"br","img","hr","meta","link","input"}));
 
+	/**
+	 * @param sTagName Element name
+	 * @return True if the element is always written minimized, with no content
+	 */
+	static boolean isMinimized(String sTagName)
+	{
+		return sMinimize.contains(sTagName);
+	}
+
 	private static String USER_AGENT = "User-Agent";
 
 	private static String MSIE_9 = "MSIE 9.";